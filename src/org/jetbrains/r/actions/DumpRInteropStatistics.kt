@@ -0,0 +1,39 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.actions
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.fileEditor.FileEditorManager
+import com.intellij.openapi.vfs.LocalFileSystem
+import org.jetbrains.r.console.RConsoleManager
+import java.nio.file.Paths
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Saves per-method statistics of the requests to RWrapper (see [org.jetbrains.r.rinterop.RInteropStatistics])
+ * into the log directory and opens the file
+ */
+class DumpRInteropStatistics : AnAction() {
+  private val dateFormat = SimpleDateFormat("yyyy-MM-dd-HH-mm-ss")
+
+  override fun actionPerformed(e: AnActionEvent) {
+    val project = e.project ?: return
+    val json = RConsoleManager.getInstance(project).currentConsoleOrNull?.rInterop?.rInteropGrpcLogger?.statistics?.toJson() ?: return
+    val file = Paths.get(PathManager.getLogPath(), "rinterop-statistics-" + dateFormat.format(Date()) + ".json").toFile()
+    file.writeText(json)
+    LocalFileSystem.getInstance().refreshAndFindFileByIoFile(file)?.let { FileEditorManager.getInstance(project).openFile(it, true) }
+  }
+
+  override fun update(e: AnActionEvent) {
+    val project = e.project
+    e.presentation.isEnabledAndVisible = project != null && RConsoleManager.getInstance(project).currentConsoleOrNull != null
+  }
+
+  override fun getActionUpdateThread() = ActionUpdateThread.BGT
+}
@@ -5,6 +5,7 @@
 package org.jetbrains.r.console
 
 import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.runReadAction
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.Key
 import com.intellij.psi.PsiFile
@@ -12,12 +13,15 @@ import org.jetbrains.annotations.TestOnly
 import org.jetbrains.r.classes.r6.R6ClassInfo
 import org.jetbrains.r.classes.s4.classInfo.RS4ClassInfo
 import org.jetbrains.r.hints.parameterInfo.RExtraNamedArgumentsInfo
+import org.jetbrains.r.psi.RElementFactory
 import org.jetbrains.r.psi.TableInfo
+import org.jetbrains.r.psi.api.RAssignmentStatement
 import org.jetbrains.r.psi.api.RFunctionExpression
-import org.jetbrains.r.rinterop.RInterop
-import org.jetbrains.r.rinterop.RReference
-import org.jetbrains.r.rinterop.RValue
-import org.jetbrains.r.rinterop.getWithCheckCanceled
+import org.jetbrains.r.refactoring.RNamesValidator
+import org.jetbrains.concurrency.CancellablePromise
+import org.jetbrains.concurrency.Promise
+import org.jetbrains.r.rinterop.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicReference
 
 interface RConsoleRuntimeInfo {
@@ -39,6 +43,20 @@ interface RConsoleRuntimeInfo {
   fun loadTableColumns(expression: String): TableInfo
   val rInterop: RInterop
 
+  /**
+   * Parameter list of the function [name] from the R session whose [header] is `function(...)`.
+   * The header is parsed only when the value is requested
+   */
+  fun getFunctionParameters(name: String, header: String): Lazy<String> {
+    return lazy { parseFunctionParameters(rInterop.project, name, header) }
+  }
+
+  /**
+   * Starts all [queries] at once, so the following `load*` calls for them don't wait for separate round-trips
+   */
+  fun prefetch(queries: Collection<RRuntimeQuery<*>>) {
+  }
+
   companion object {
     fun get(psiFile: PsiFile): RConsoleRuntimeInfo? {
       if (ApplicationManager.getApplication().isUnitTestMode) psiFile.getUserData(KEY)?.let { return it }
@@ -54,24 +72,36 @@ interface RConsoleRuntimeInfo {
 }
 
 class RConsoleRuntimeInfoImpl(override val rInterop: RInterop) : RConsoleRuntimeInfo {
-  private val objectNamesCache by rInterop.Cached { mutableMapOf<String, List<String>>() }
-  private val distinctStringsCache by rInterop.Cached { mutableMapOf<String, List<String>>() }
-  private val inheritorNamedArgumentsCache by rInterop.Cached { mutableMapOf<String, List<String>>() }
-  private val extraNamedArgumentsCache by rInterop.Cached { mutableMapOf<String, RExtraNamedArgumentsInfo>() }
-  private val extraNamedArgumentsStampCache by rInterop.Cached { mutableMapOf<String, Long>() }
-  private val formalArgumentsCache by rInterop.Cached { mutableMapOf<String, List<String>>() }
-  private val tableColumnsCache by rInterop.Cached { mutableMapOf<String, TableInfo>() }
-  private val s4ClassInfosByObjectNameCache by rInterop.Cached { mutableMapOf<String, RS4ClassInfo?>() }
-  private val s4ClassInfosByClassNameCache by rInterop.Cached { mutableMapOf<String, RS4ClassInfo?>() }
-  private val r6ClassInfosByObjectNameCache by rInterop.Cached { mutableMapOf<String, R6ClassInfo?>() }
-  private val r6ClassInfosByClassNameCache by rInterop.Cached { mutableMapOf<String, R6ClassInfo?>() }
-  private val loadedShortS4ClassInfosCache by rInterop.Cached { AtomicReference<List<RS4ClassInfo>?>(null) }
-  private val loadedShortR6ClassInfosCache by rInterop.Cached { AtomicReference<List<R6ClassInfo>?>(null) }
+  /**
+   * Results of [RRuntimeQuery]s. Promises are cached, so concurrent requests for the same query
+   * (e.g. from completion and highlighting) share one call to the R session.
+   */
+  private val environmentQueryCache by rInterop.Cached(scopes = RRuntimeQuery.ENVIRONMENT_SCOPES) {
+    ConcurrentHashMap<RRuntimeQuery<*>, CancellablePromise<*>>()
+  }
+  private val definitionQueryCache by rInterop.Cached(scopes = RRuntimeQuery.DEFINITION_SCOPES) {
+    ConcurrentHashMap<RRuntimeQuery<*>, CancellablePromise<*>>()
+  }
+  /**
+   * Extra named arguments of functions from the files, by function name with the modification stamp of the file.
+   * Such function doesn't depend on the session variables, only on the functions it calls
+   */
+  private val fileExtraNamedArgumentsCache by rInterop.Cached(scopes = RRuntimeQuery.DEFINITION_SCOPES) {
+    ConcurrentHashMap<String, Pair<Long, RExtraNamedArgumentsInfo>>()
+  }
+  private val loadedShortS4ClassInfosCache by rInterop.Cached(scopes = RRuntimeQuery.DEFINITION_SCOPES) {
+    AtomicReference<List<RS4ClassInfo>?>(null)
+  }
+
+  /**
+   * Unlike the caches above it isn't dropped after each command: an entry is replaced only when the header of the function changes
+   */
+  private val functionParametersCache = ConcurrentHashMap<String, Pair<String, Lazy<String>>>()
 
   override val rMarkdownChunkOptions by lazy { rInterop.rMarkdownChunkOptions }
 
   override val variables
-    get() = rInterop.currentEnvLoader.variables.map { it.name to it.value }.toMap()
+    get() = interactive { rInterop.currentEnvLoader.variables }.map { it.name to it.value }.toMap()
   override val loadedPackages
     get() = rInterop.loadedPackages.safeGet()
   override val workingDir
@@ -81,37 +111,60 @@ class RConsoleRuntimeInfoImpl(override val rInterop: RInterop) : RConsoleRuntime
     rInterop.loadLibrary(name).getWithCheckCanceled()
   }
 
-  override fun loadDistinctStrings(expression: String): List<String> {
-    return distinctStringsCache.getOrPut(expression) { RReference.expressionRef(expression, rInterop).getDistinctStrings() }
+  override fun prefetch(queries: Collection<RRuntimeQuery<*>>) {
+    queries.forEach { getPromise(it) }
   }
 
-  override fun loadObjectNames(expression: String): List<String> {
-    return objectNamesCache.getOrPut(expression) { RReference.expressionRef(expression, rInterop).ls() }
+  private fun getQueryCache(query: RRuntimeQuery<*>) =
+    if (RInterop.CacheScope.ENVIRONMENTS in query.scopes) environmentQueryCache else definitionQueryCache
+
+  private fun <T> getPromise(query: RRuntimeQuery<T>): CancellablePromise<T> {
+    val cache = getQueryCache(query)
+    var created: CancellablePromise<*>? = null
+    val promise = cache.compute(query) { _, cached ->
+      cached?.takeIf { it.state != Promise.State.REJECTED } ?: interactive { query.execute(rInterop) }.also { created = it }
+    }!!
+    // Failed and cancelled requests are not cached. It's subscribed outside of `compute` since the promise may be already rejected
+    created?.onError { cache.remove(query, promise) }
+    @Suppress("UNCHECKED_CAST")
+    return promise as CancellablePromise<T>
   }
 
-  override fun loadInheritorNamedArguments(baseFunctionName: String): List<String> {
-    return inheritorNamedArgumentsCache.getOrPut(baseFunctionName) {
-      rInterop.findInheritorNamedArguments(RReference.expressionRef("'$baseFunctionName'", rInterop))
-    }
-  }
+  /**
+   * Requests of the runtime info are made by completion, parameter info and inspections the user is waiting for
+   */
+  private fun <T> interactive(task: () -> T): T = rInterop.scheduler.withPriority(RInteropPriority.INTERACTIVE, task = task)
 
-  override fun loadExtraNamedArguments(functionName: String): RExtraNamedArgumentsInfo {
-    return extraNamedArgumentsCache.getOrPut(functionName) {
-      rInterop.findExtraNamedArguments(RReference.expressionRef("'$functionName'", rInterop))
+  /**
+   * The promise is shared by all the callers, so it isn't cancelled when one of them is
+   */
+  private fun <T> load(query: RRuntimeQuery<T>): T {
+    return try {
+      getPromise(query).getWithCheckCanceled(cancelOnInterrupt = false)
+    } catch (e: RInteropTerminated) {
+      query.defaultValue
     }
   }
 
-  @Synchronized
+  override fun loadDistinctStrings(expression: String): List<String> = load(RRuntimeQuery.DistinctStrings(expression))
+
+  override fun loadObjectNames(expression: String): List<String> = load(RRuntimeQuery.ObjectNames(expression))
+
+  override fun loadInheritorNamedArguments(baseFunctionName: String): List<String> =
+    load(RRuntimeQuery.InheritorNamedArguments(baseFunctionName))
+
+  override fun loadExtraNamedArguments(functionName: String): RExtraNamedArgumentsInfo =
+    load(RRuntimeQuery.ExtraNamedArguments(functionName))
+
   override fun loadExtraNamedArguments(functionName: String, functionExpression: RFunctionExpression): RExtraNamedArgumentsInfo {
     val stamp = functionExpression.containingFile.modificationStamp
-    val oldStamp = extraNamedArgumentsStampCache[functionName]
-    if (oldStamp == null || stamp < 0 || stamp != oldStamp) {
-      extraNamedArgumentsStampCache[functionName] = stamp
-      return rInterop.findExtraNamedArguments(RReference.expressionRef("'${functionExpression.text}'", rInterop)).also {
-        extraNamedArgumentsCache[functionName] = it
+    val cached = fileExtraNamedArgumentsCache[functionName]
+    if (cached == null || stamp < 0 || stamp != cached.first) {
+      return interactive { rInterop.findExtraNamedArguments(RReference.expressionRef("'${functionExpression.text}'", rInterop)) }.also {
+        fileExtraNamedArgumentsCache[functionName] = stamp to it
       }
     }
-    return extraNamedArgumentsCache.getValue(functionName)
+    return cached.second
   }
 
   /**
@@ -120,39 +173,42 @@ class RConsoleRuntimeInfoImpl(override val rInterop: RInterop) : RConsoleRuntime
   override fun loadShortS4ClassInfos(): List<RS4ClassInfo> {
     loadedShortS4ClassInfosCache.get().let { infos ->
       if (infos != null) return infos
-      return rInterop.getLoadedShortS4ClassInfos().also {
+      return interactive { rInterop.getLoadedShortS4ClassInfos() }.also {
         loadedShortS4ClassInfosCache.set(it)
       } ?: emptyList()
     }
   }
 
-  override fun loadS4ClassInfoByObjectName(objectName: String): RS4ClassInfo? {
-    return s4ClassInfosByObjectNameCache.getOrPut(objectName) {
-      rInterop.getS4ClassInfoByObjectName(RReference.expressionRef(objectName, rInterop))
-    }
-  }
+  override fun loadS4ClassInfoByObjectName(objectName: String): RS4ClassInfo? = load(RRuntimeQuery.S4ClassInfoByObjectName(objectName))
 
-  override fun loadS4ClassInfoByClassName(className: String): RS4ClassInfo? {
-    return s4ClassInfosByClassNameCache.getOrPut(className) {
-      rInterop.getS4ClassInfoByClassName(className)
-    }
-  }
+  override fun loadS4ClassInfoByClassName(className: String): RS4ClassInfo? = load(RRuntimeQuery.S4ClassInfoByClassName(className))
+
+  override fun loadR6ClassInfoByObjectName(objectName: String): R6ClassInfo? = load(RRuntimeQuery.R6ClassInfoByObjectName(objectName))
+
+  override fun getFormalArguments(expression: String): List<String> = load(RRuntimeQuery.FormalArguments(expression))
+
+  override fun loadTableColumns(expression: String): TableInfo = load(RRuntimeQuery.TableColumns(expression))
 
-  override fun loadR6ClassInfoByObjectName(objectName: String): R6ClassInfo? {
-    return r6ClassInfosByObjectNameCache.getOrPut(objectName) {
-      rInterop.getR6ClassInfoByObjectName(RReference.expressionRef(objectName, rInterop))
+  override fun getFunctionParameters(name: String, header: String): Lazy<String> {
+    functionParametersCache[name]?.let { (cachedHeader, parameters) ->
+      if (cachedHeader == header) return parameters
     }
+    if (functionParametersCache.size >= MAX_CACHED_FUNCTIONS) {
+      functionParametersCache.clear()
+    }
+    return super.getFunctionParameters(name, header).also { functionParametersCache[name] = header to it }
   }
 
-  override fun getFormalArguments(expression: String): List<String> {
-    return formalArgumentsCache.getOrPut(expression) { rInterop.getFormalArguments(RReference.expressionRef(expression, rInterop)) }
+  companion object {
+    private const val MAX_CACHED_FUNCTIONS = 20000
   }
+}
 
-  override fun loadTableColumns(expression: String): TableInfo {
-    return tableColumnsCache.getOrPut(expression) {
-      rInterop.getTableColumnsInfo(RReference.expressionRef(expression, rInterop))
-    }
-  }
+private fun parseFunctionParameters(project: Project, name: String, header: String): String {
+  val code = "${RNamesValidator.quoteIfNeeded(name)} <- $header NULL"
+  return runReadAction {
+    (RElementFactory.createRPsiElementFromTextOrNull(project, code) as? RAssignmentStatement)?.functionParameters
+  } ?: ""
 }
 
 @TestOnly
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.console
+
+import org.jetbrains.concurrency.CancellablePromise
+import org.jetbrains.r.classes.r6.R6ClassInfo
+import org.jetbrains.r.classes.s4.classInfo.RS4ClassInfo
+import org.jetbrains.r.hints.parameterInfo.RExtraNamedArgumentsInfo
+import org.jetbrains.r.psi.TableInfo
+import org.jetbrains.r.psi.TableType
+import org.jetbrains.r.rinterop.RInterop
+import org.jetbrains.r.rinterop.RReference
+
+/**
+ * Lookup in the R session performed by [RConsoleRuntimeInfo].
+ * Queries are used as cache keys, so several of them can be requested at once with [RConsoleRuntimeInfo.prefetch].
+ */
+sealed class RRuntimeQuery<T>(val defaultValue: T) {
+  internal abstract fun execute(rInterop: RInterop): CancellablePromise<T>
+
+  /**
+   * Cached result is dropped when any of these scopes changes. Expressions and functions looked up by name
+   * may depend on values of any variables (e.g. a function can be redefined), so they depend on the environments
+   */
+  internal open val scopes: Set<RInterop.CacheScope>
+    get() = ENVIRONMENT_SCOPES
+
+  data class DistinctStrings(val expression: String) : RRuntimeQuery<List<String>>(emptyList()) {
+    override fun execute(rInterop: RInterop) = RReference.expressionRef(expression, rInterop).getDistinctStringsAsync()
+  }
+
+  data class ObjectNames(val expression: String) : RRuntimeQuery<List<String>>(emptyList()) {
+    override fun execute(rInterop: RInterop) = RReference.expressionRef(expression, rInterop).lsAsync()
+  }
+
+  data class InheritorNamedArguments(val baseFunctionName: String) : RRuntimeQuery<List<String>>(emptyList()) {
+    override fun execute(rInterop: RInterop) =
+      rInterop.findInheritorNamedArgumentsAsync(RReference.expressionRef("'$baseFunctionName'", rInterop))
+  }
+
+  data class ExtraNamedArguments(val functionName: String)
+    : RRuntimeQuery<RExtraNamedArgumentsInfo>(RExtraNamedArgumentsInfo(emptyList(), emptyList())) {
+    override fun execute(rInterop: RInterop) =
+      rInterop.findExtraNamedArgumentsAsync(RReference.expressionRef("'$functionName'", rInterop))
+  }
+
+  data class FormalArguments(val expression: String) : RRuntimeQuery<List<String>>(emptyList()) {
+    override fun execute(rInterop: RInterop) = rInterop.getFormalArgumentsAsync(RReference.expressionRef(expression, rInterop))
+  }
+
+  data class TableColumns(val expression: String) : RRuntimeQuery<TableInfo>(TableInfo(emptyList(), TableType.UNKNOWN)) {
+    override fun execute(rInterop: RInterop) = rInterop.getTableColumnsInfoAsync(RReference.expressionRef(expression, rInterop))
+  }
+
+  data class S4ClassInfoByObjectName(val objectName: String) : RRuntimeQuery<RS4ClassInfo?>(null) {
+    override fun execute(rInterop: RInterop) = rInterop.getS4ClassInfoByObjectNameAsync(RReference.expressionRef(objectName, rInterop))
+  }
+
+  data class S4ClassInfoByClassName(val className: String) : RRuntimeQuery<RS4ClassInfo?>(null) {
+    override fun execute(rInterop: RInterop) = rInterop.getS4ClassInfoByClassNameAsync(className)
+
+    // Classes are defined by packages or by `setClass` which adds `.__C__<name>` to the global environment
+    override val scopes get() = DEFINITION_SCOPES
+  }
+
+  data class R6ClassInfoByObjectName(val objectName: String) : RRuntimeQuery<R6ClassInfo?>(null) {
+    override fun execute(rInterop: RInterop) = rInterop.getR6ClassInfoByObjectNameAsync(RReference.expressionRef(objectName, rInterop))
+  }
+
+  internal companion object {
+    val ENVIRONMENT_SCOPES = setOf(RInterop.CacheScope.ENVIRONMENTS)
+    val DEFINITION_SCOPES = setOf(RInterop.CacheScope.PACKAGES, RInterop.CacheScope.GLOBAL_NAMES)
+  }
+}
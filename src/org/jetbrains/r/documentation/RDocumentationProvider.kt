@@ -35,6 +35,7 @@ import org.jetbrains.r.psi.api.*
 import org.jetbrains.r.refactoring.RNamesValidator
 import org.jetbrains.r.rendering.toolwindow.RToolWindowFactory
 import org.jetbrains.r.rinterop.RInterop
+import org.jetbrains.r.rinterop.RInteropPriority
 import org.jetbrains.r.rinterop.RSourceFileManager
 import org.jetbrains.r.rinterop.getWithCheckCanceled
 import java.awt.Color
@@ -288,7 +289,12 @@ class RDocumentationProvider : AbstractDocumentationProvider() {
       else -> element.text to null
     }
     return Supplier {
-      val docText = rInterop.getDocumentationForSymbol(symbol, pkg).getWithCheckCanceled()?.let { convertHelpPage(it) }
+      // Note: a new popup makes the previous one obsolete, so its request is dropped if it hasn't been sent yet
+      val token = rInterop.scheduler.supersede(RDocumentationProvider::class.java)
+      val promise = rInterop.scheduler.withPriority(RInteropPriority.INTERACTIVE, token) {
+        rInterop.getDocumentationForSymbol(symbol, pkg)
+      }
+      val docText = promise.getWithCheckCanceled()?.let { convertHelpPage(it) }
       FetchedDoc(docText)
     }
   }
@@ -37,6 +37,7 @@ import org.jetbrains.r.codeInsight.table.RTableColumnCollectProcessor
 import org.jetbrains.r.codeInsight.table.RTableContextManager
 import org.jetbrains.r.console.RConsoleRuntimeInfo
 import org.jetbrains.r.console.RConsoleView
+import org.jetbrains.r.console.RRuntimeQuery
 import org.jetbrains.r.console.runtimeInfo
 import org.jetbrains.r.editor.completion.*
 import org.jetbrains.r.hints.parameterInfo.RArgumentInfo
@@ -47,7 +48,6 @@ import org.jetbrains.r.psi.api.*
 import org.jetbrains.r.psi.references.RSearchScopeUtil
 import org.jetbrains.r.psi.stubs.classes.R6ClassNameIndex
 import org.jetbrains.r.psi.stubs.classes.RS4ClassNameIndex
-import org.jetbrains.r.refactoring.RNamesValidator
 import org.jetbrains.r.rinterop.RValueFunction
 import org.jetbrains.r.skeleton.psi.RSkeletonAssignmentStatement
 import org.jetbrains.r.util.RPathUtil
@@ -325,16 +325,13 @@ class RCompletionContributor : CompletionContributor() {
                                      shownNames: HashSet<String>,
                                      result: CompletionResultSet,
                                      elementFactory: RLookupElementFactory) {
-      originFile.runtimeInfo?.variables?.let { variables ->
-        variables.filterKeys { shownNames.add(it) }.forEach { (name, value) ->
-          if (value is RValueFunction) {
-            val code = "${RNamesValidator.quoteIfNeeded(name)} <- ${value.header} NULL"
-            val element =
-              RElementFactory.createRPsiElementFromTextOrNull(originFile.project, code) as? RAssignmentStatement ?: return@forEach
-            result.consume(elementFactory.createFunctionLookupElement(element, isLocal = true))
-          } else {
-            result.consume(elementFactory.createLocalVariableLookupElement(name, false))
-          }
+      val runtimeInfo = originFile.runtimeInfo ?: return
+      runtimeInfo.variables.filterKeys { shownNames.add(it) }.forEach { (name, value) ->
+        if (value is RValueFunction) {
+          val parameters = runtimeInfo.getFunctionParameters(name, value.header)
+          result.consume(elementFactory.createRuntimeFunctionLookupElement(name, parameters))
+        } else {
+          result.consume(elementFactory.createLocalVariableLookupElement(name, false))
         }
       }
     }
@@ -412,9 +409,12 @@ class RCompletionContributor : CompletionContributor() {
         is RIdentifierExpression -> expression.name
         else -> return
       }
+      val singleDeclaration = declarations.singleOrNull()
+      if (singleDeclaration == null) {
+        info?.prefetch(listOf(RRuntimeQuery.InheritorNamedArguments(mainFunctionName), RRuntimeQuery.ExtraNamedArguments(mainFunctionName)))
+      }
       info?.loadInheritorNamedArguments(mainFunctionName)?.forEach { consumeParameter(it, shownNames, result) }
 
-      val singleDeclaration = declarations.singleOrNull()
       val extraNamedArguments =
         when (singleDeclaration) {
           null -> info?.loadExtraNamedArguments(mainFunctionName)
@@ -38,12 +38,16 @@ const val PACKAGE_PRIORITY = -1.0
 const val GLOBAL_GROUPING = 0
 const val NAMESPACE_NAME_GROUPING = -1
 
+/**
+ * @param lazyTailText is used instead of [tailText] when the tail is expensive to compute, it's computed on the first rendering
+ */
 class RLookupElement(val lookup: String,
                      private val bold: Boolean,
                      private val icon: Icon? = null,
                      val packageName: String? = null,
                      private val tailText: String? = null,
-                     private val itemText: String = lookup) : LookupElement() {
+                     private val itemText: String = lookup,
+                     private val lazyTailText: Lazy<String>? = null) : LookupElement() {
 
   override fun getLookupString() = lookup
 
@@ -52,7 +56,8 @@ class RLookupElement(val lookup: String,
     presentation.isItemTextBold = bold
     presentation.icon = icon
     presentation.typeText = packageName
-    if (tailText != null) presentation.appendTailText(tailText, true)
+    val tail = tailText ?: lazyTailText?.value
+    if (tail != null) presentation.appendTailText(tail, true)
   }
 }
 
@@ -106,6 +111,18 @@ class RLookupElementFactory(private val functionInsertHandler: RLookupElementIns
                                      functionAssignment.functionParameters, functionAssignment, isLocal)
   }
 
+  /**
+   * Element of a function from the R session. Its [parameters] are computed only when the element is rendered or inserted
+   */
+  fun createRuntimeFunctionLookupElement(name: String, parameters: Lazy<String>): LookupElement {
+    if (name.startsWith("%")) return createOperatorLookupElement(name, null, VARIABLE_GROUPING)
+    val insertHandler = InsertHandler<LookupElement> { context, item ->
+      functionInsertHandler.getInsertHandlerForFunctionCall(parameters.value).handleInsert(context, item)
+    }
+    return createLookupElementWithGrouping(RLookupElement(name, false, AllIcons.Nodes.Function, lazyTailText = parameters),
+                                           insertHandler, VARIABLE_GROUPING)
+  }
+
   fun createS4GenericLookupElement(genericExpression: RS4GenericOrMethodHolder): LookupElement {
     val functionParameters =
       when (genericExpression) {
@@ -198,6 +215,10 @@ class RLookupElementFactory(private val functionInsertHandler: RLookupElementIns
 
   private fun createOperatorLookupElement(functionAssignment: RAssignmentStatement, isLocal: Boolean): LookupElement {
     val packageName = if (isLocal) null else RPackage.getOrCreateRPackageBySkeletonFile(functionAssignment.containingFile)?.name
+    return createOperatorLookupElement(functionAssignment.name, packageName, if (isLocal) VARIABLE_GROUPING else GLOBAL_GROUPING)
+  }
+
+  private fun createOperatorLookupElement(name: String, packageName: String?, grouping: Int): LookupElement {
     val icon = AllIcons.Nodes.Function
     val insertHandler = InsertHandler<LookupElement> { context, _ ->
       val document = context.document
@@ -208,8 +229,7 @@ class RLookupElementFactory(private val functionInsertHandler: RLookupElementIns
         document.replaceString(startOffset, endOffset, "")
       }
     }
-    return createLookupElementWithGrouping(RLookupElement(functionAssignment.name, false, icon, packageName),
-                                           insertHandler, if (isLocal) VARIABLE_GROUPING else GLOBAL_GROUPING)
+    return createLookupElementWithGrouping(RLookupElement(name, false, icon, packageName), insertHandler, grouping)
   }
 
   companion object {
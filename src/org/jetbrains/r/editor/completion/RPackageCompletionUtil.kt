@@ -6,6 +6,7 @@ package org.jetbrains.r.editor.completion
 
 import com.intellij.codeInsight.completion.CompletionParameters
 import com.intellij.codeInsight.completion.CompletionResultSet
+import com.intellij.codeInsight.completion.PrefixMatcher
 import com.intellij.codeInsight.lookup.LookupElement
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.vfs.VirtualFile
@@ -74,47 +75,56 @@ object RPackageCompletionUtil {
                                isInternalAccess: Boolean = false) {
     val runtimeInfo = originFile.runtimeInfo
     val state = RInterpreterStateManager.getCurrentStateOrNull(project) ?: return
+    val matcher = result.prefixMatcher
     var hasElementsWithPrefix = false
     if (runtimeInfo != null) {
       val loadedPackages = runtimeInfo.loadedPackages
         .mapNotNull { state.getSkeletonFileByPackageName(it.key)?.virtualFile?.to(it.value) }
         .toMap()
       val runtimeScope = GlobalSearchScope.filesScope(originFile.project, loadedPackages.keys).intersectWith(scope)
-      val lookupElements = mutableMapOf<String, Pair<LookupElement, Int?>>()
-      processElementsFromIndex(project, runtimeScope, isInternalAccess, elementFactory) { element, file ->
-        if (shownNames.contains(element.lookupString)) return@processElementsFromIndex
-        if (element.lookupString.startsWith(prefix)) {
+      val candidates = mutableMapOf<String, Pair<() -> LookupElement, Int?>>()
+      processElementsFromIndex(project, runtimeScope, matcher, isInternalAccess, elementFactory) { name, file, createElement ->
+        if (shownNames.contains(name)) return@processElementsFromIndex
+        if (name.startsWith(prefix)) {
           hasElementsWithPrefix = true
         }
-        val previousPriority = lookupElements[element.lookupString]?.second
+        val previousPriority = candidates[name]?.second
         val currentPriority = loadedPackages[file]
         if (previousPriority == null || (currentPriority != null && currentPriority < previousPriority)) {
-          lookupElements[element.lookupString] = element to currentPriority
+          candidates[name] = createElement to currentPriority
         }
       }
-      result.addAllElements(lookupElements.values.map { it.first })
-      shownNames.addAll(lookupElements.keys)
+      result.addAllElements(candidates.values.map { it.first() })
+      shownNames.addAll(candidates.keys)
     }
     if (!hasElementsWithPrefix) {
-      processElementsFromIndex(project, scope, isInternalAccess, elementFactory) { it, _ ->
-        if (shownNames.add(it.lookupString)) result.consume(it)
+      processElementsFromIndex(project, scope, matcher, isInternalAccess, elementFactory) { name, _, createElement ->
+        if (shownNames.add(name)) result.consume(createElement())
       }
     }
   }
 
+  /**
+   * Passes the names of the symbols matching [matcher] to [consumer] along with a factory of their lookup elements,
+   * so the elements are created only for the symbols which are actually shown
+   */
   private fun processElementsFromIndex(project: Project,
                                        scope: GlobalSearchScope,
+                                       matcher: PrefixMatcher,
                                        isInternalAccess: Boolean,
                                        elementFactory: RLookupElementFactory,
-                                       consumer: (LookupElement, VirtualFile) -> Unit) {
+                                       consumer: (String, VirtualFile, () -> LookupElement) -> Unit) {
     val indexAccessor = if (isInternalAccess) RInternalAssignmentCompletionIndex else RAssignmentCompletionIndex
-    indexAccessor.process("", project, scope, Processor { assignment ->
-      consumer(elementFactory.createGlobalLookupElement(assignment), assignment.containingFile.virtualFile)
-      return@Processor true
-    })
-    RS4GenericIndex.processAll(project, scope, Processor {
-      consumer(elementFactory.createS4GenericLookupElement(it), it.containingFile.virtualFile)
+    indexAccessor.processForCompletion(matcher.prefix, project, scope, Processor { assignment ->
+      val name = assignment.name
+      if (matcher.prefixMatches(name)) {
+        consumer(name, assignment.containingFile.virtualFile) { elementFactory.createGlobalLookupElement(assignment) }
+      }
       return@Processor true
     })
+    RS4GenericIndex.processByNames(project, scope, matcher::prefixMatches) { name, generic ->
+      consumer(name, generic.containingFile.virtualFile) { elementFactory.createS4GenericLookupElement(generic) }
+      true
+    }
   }
 }
\ No newline at end of file
@@ -20,6 +20,11 @@ class RInstalledPackage(
   val libraryPath: String,
   val canonicalPackagePath: String,
   val description: Map<String, String>,
+  /**
+   * Digest of the installed package DESCRIPTION, see [RSkeletonUtil.computeContentHash].
+   * `null` if it's unknown (e.g. RWrapper hasn't sent the DESCRIPTION or it has no installation stamp)
+   */
+  val contentHash: String? = null,
 ) : InstalledPackage(packageName, version) {
 
   val isBase: Boolean
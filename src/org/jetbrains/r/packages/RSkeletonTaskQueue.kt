@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.packages
+
+import com.intellij.openapi.diagnostic.Logger
+import java.io.File
+import java.io.IOException
+import java.nio.file.Path
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Historical time (in ms) of skeleton generation per package, stored in [file] (if any).
+ * Packages which have never been generated are estimated with [DEFAULT_COST]
+ */
+internal class RSkeletonGenerationCosts(private val file: File?) {
+  private val costs = ConcurrentHashMap<String, Long>()
+
+  init {
+    if (file != null && file.exists()) {
+      try {
+        for (line in file.readLines()) {
+          val parts = line.split('\t')
+          val cost = parts.getOrNull(1)?.toLongOrNull() ?: continue
+          costs[parts[0]] = cost
+        }
+      } catch (e: IOException) {
+        LOG.warn("Cannot read skeleton generation costs from $file", e)
+      }
+    }
+  }
+
+  fun estimate(packageName: String): Long = costs[packageName] ?: DEFAULT_COST
+
+  fun record(packageName: String, millis: Long) {
+    costs[packageName] = millis
+  }
+
+  /**
+   * Records the cost of a package which crashed or hung the helper after [millis] ms.
+   * It's at least [FAILURE_COST], so the package is processed alone next time
+   */
+  fun recordFailure(packageName: String, millis: Long) {
+    record(packageName, maxOf(millis, FAILURE_COST))
+  }
+
+  @Synchronized
+  fun save() {
+    if (file == null) return
+    try {
+      file.writeText(costs.entries.joinToString(separator = "") { "${it.key}\t${it.value}\n" })
+    } catch (e: IOException) {
+      LOG.warn("Cannot save skeleton generation costs to $file", e)
+    }
+  }
+
+  companion object {
+    private val LOG = Logger.getInstance(RSkeletonGenerationCosts::class.java)
+
+    const val FILE_NAME = "generation-costs"
+    internal const val DEFAULT_COST = 2000L
+    internal const val FAILURE_COST = RSkeletonTaskQueue.MAX_BATCH_COST
+  }
+}
+
+/**
+ * Queue of skeleton generation tasks shared by the workers.
+ *
+ * Tasks are ordered by [RSkeletonGenerationCosts] so the most expensive packages are started first
+ * and can't stall the end of the generation. Every worker takes the next batch when it's done with the previous one,
+ * so nobody idles while there are tasks left. A batch (one helper process, which amortizes the start of R)
+ * contains at most [maxBatchSize] packages (memory of the process grows with each loaded package)
+ * and at most [MAX_BATCH_COST] ms of the estimated work, so the expensive packages are processed alone.
+ *
+ * A package which crashed the helper is [retry]ed alone once, the rest of its batch is returned to the queue
+ */
+internal class RSkeletonTaskQueue(tasks: List<Pair<RPackage, Path>>,
+                                  private val costs: RSkeletonGenerationCosts,
+                                  private val maxBatchSize: Int) {
+  private class Task(val rPackage: RPackage, val skeletonPath: Path, val cost: Long, val attempt: Int = 0)
+
+  private val queue = ArrayDeque<Task>()
+  private val attempts = HashMap<Pair<RPackage, Path>, Int>()
+
+  init {
+    tasks.map { Task(it.first, it.second, costs.estimate(it.first.name)) }.sortedByDescending { it.cost }.forEach { queue.add(it) }
+  }
+
+  @Synchronized
+  fun takeBatch(): List<Pair<RPackage, Path>>? {
+    val first = queue.pollFirst() ?: return null
+    val batch = mutableListOf(first)
+    var cost = first.cost
+    if (first.attempt == 0) {
+      while (batch.size < maxBatchSize) {
+        val next = queue.peekFirst() ?: break
+        if (next.attempt > 0 || cost + next.cost > MAX_BATCH_COST) break
+        batch.add(queue.pollFirst())
+        cost += next.cost
+      }
+    }
+    for (task in batch) {
+      attempts[task.rPackage to task.skeletonPath] = task.attempt
+    }
+    return batch.map { it.rPackage to it.skeletonPath }
+  }
+
+  /**
+   * @return `false` if [task] has already been retried
+   */
+  @Synchronized
+  fun retry(task: Pair<RPackage, Path>): Boolean {
+    val attempt = attempts[task] ?: 0
+    if (attempt >= MAX_RETRIES) return false
+    queue.addFirst(Task(task.first, task.second, costs.estimate(task.first.name), attempt + 1))
+    return true
+  }
+
+  @Synchronized
+  fun putBack(tasks: List<Pair<RPackage, Path>>) {
+    for (task in tasks.asReversed()) {
+      queue.addFirst(Task(task.first, task.second, costs.estimate(task.first.name), attempts[task] ?: 0))
+    }
+  }
+
+  companion object {
+    internal const val MAX_BATCH_COST = 30 * 1000L
+    private const val MAX_RETRIES = 1
+  }
+}
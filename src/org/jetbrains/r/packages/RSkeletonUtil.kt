@@ -18,7 +18,6 @@ import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiFile
 import com.intellij.psi.util.CachedValueProvider
 import com.intellij.psi.util.CachedValuesManager
-import org.jetbrains.concurrency.AsyncPromise
 import org.jetbrains.r.RPluginUtil
 import org.jetbrains.r.classes.S4ClassInfo
 import org.jetbrains.r.interpreter.RMultiOutputProcessor
@@ -32,35 +31,60 @@ import org.jetbrains.r.packages.remote.RepoUtils
 import org.jetbrains.r.rinterop.RInterop
 import org.jetbrains.r.skeleton.RSkeletonFileType
 import java.io.File
-import java.io.FileOutputStream
 import java.io.IOException
-import java.lang.Integer.min
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.concurrent.ExecutorService
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 
 object RSkeletonUtil {
-  private const val CUR_SKELETON_VERSION = 14
+  internal const val CUR_SKELETON_VERSION = 14
   const val SKELETON_DIR_NAME = "r_skeletons"
-  private const val MAX_THREAD_POOL_SIZE = 4
-  private const val FAILED_SUFFIX = ".failed"
+  private const val MAX_THREAD_POOL_SIZE = 8
+  private const val DEFAULT_THREAD_POOL_SIZE = 4
+  private const val HELPER_BASE_MEMORY = 100
+  private const val HELPER_PACKAGE_MEMORY = 6
   private const val PRIORITY_PREFIX = "## Package priority: "
   private const val DEFAULT_MAX_BUCKET_SIZE = 25 // 4 threads consume a total of ~1GB memory
+  private const val CONTENT_HASH_BYTES = 16
+  private const val LIBRARY_PATH_FIELD = "LibPath"
+
+  /**
+   * `Built` is added by `R CMD INSTALL`, `MD5sum` and `Packaged` by building of a binary and a source package
+   */
+  private val INSTALLATION_STAMP_FIELDS = listOf("Built", "MD5sum", "Packaged")
 
   private val RAM_SIZE_HELPER by lazy { RPluginUtil.findFileInRHelpers("R/ram_size.R") }
 
   private val LOG = Logger.getInstance(RSkeletonUtil::class.java)
 
-  fun checkVersion(skeletonsDirectoryPath: String) {
+  /**
+   * In-place upgrades of skeletons: `MIGRATIONS[v]` converts a skeleton of version `v` to version `v + 1`.
+   * When [CUR_SKELETON_VERSION] is bumped, add a migration if the new format can be derived from the old one,
+   * otherwise all the skeletons are regenerated
+   */
+  private val MIGRATIONS: Map<Int, (RLibraryPackage) -> RLibraryPackage> = emptyMap()
+
+  /**
+   * Skeletons directory is shared by all the interpreters and projects, so it's checked under the lock
+   * @param migrations see [MIGRATIONS]
+   */
+  @Synchronized
+  fun checkVersion(skeletonsDirectoryPath: String,
+                   migrations: Map<Int, (RLibraryPackage) -> RLibraryPackage> = MIGRATIONS) {
     val skeletonsDirectory = File(skeletonsDirectoryPath)
     val versionFile = File(skeletonsDirectory, "skeletons-version")
-    if (versionFile.exists() && versionFile.readText() == CUR_SKELETON_VERSION.toString()) {
+    val version = if (versionFile.exists()) versionFile.readText().toIntOrNull() else null
+    if (version == CUR_SKELETON_VERSION) {
       return
     }
-    skeletonsDirectory.deleteRecursively()
+    if (version == null || version > CUR_SKELETON_VERSION || !migrateSkeletons(skeletonsDirectory, version, migrations)) {
+      skeletonsDirectory.listFiles()?.filter { it.name != RSkeletonGenerationCosts.FILE_NAME }?.forEach { it.deleteRecursively() }
+    }
     if (!skeletonsDirectory.mkdirs()) {
       if (!skeletonsDirectory.exists())
         throw IOException("Can't create skeletons directory")
@@ -71,6 +95,28 @@ object RSkeletonUtil {
     }
   }
 
+  /**
+   * @return `false` if there is no migration from [version], in this case nothing is changed.
+   * Skeletons which fail to migrate are removed and will be regenerated
+   */
+  private fun migrateSkeletons(skeletonsDirectory: File,
+                               version: Int,
+                               allMigrations: Map<Int, (RLibraryPackage) -> RLibraryPackage>): Boolean {
+    val migrations = (version until CUR_SKELETON_VERSION).map { allMigrations[it] ?: return false }
+    LOG.info("Migrating skeletons from version $version to $CUR_SKELETON_VERSION")
+    skeletonsDirectory.walkTopDown().filter { it.isFile && it.extension == RSkeletonFileType.EXTENSION }.forEach { file ->
+      try {
+        val binPackage = file.inputStream().use { parseFrom(it) }
+        writeSkeleton(file.toPath(), migrations.fold(binPackage) { acc, migration -> migration(acc) })
+      }
+      catch (e: Exception) {
+        LOG.warn("Failed to migrate skeleton $file", e)
+        file.delete()
+      }
+    }
+    return true
+  }
+
   fun updateSkeletons(interop: RInterop, progressIndicator: ProgressIndicator? = null): Boolean {
     val state = interop.state
     checkVersion(state.skeletonsDirectory)
@@ -79,6 +125,7 @@ object RSkeletonUtil {
 
     for (installedPackage in installedPackages) {
       val skeletonPath = installedPackageToSkeletonPath(state.skeletonsDirectory, installedPackage)
+      migrateLegacySkeleton(state.skeletonsDirectory, installedPackage, skeletonPath)
       val skeletonFile = skeletonPath.toFile()
       if (!skeletonFile.exists() && !isBanned(installedPackage.name)) {
         val rPackage = RPackage(installedPackage.name, installedPackage.version)
@@ -86,35 +133,58 @@ object RSkeletonUtil {
         generationList.add(rPackage to skeletonPath)
       }
     }
-    return generateSkeletons(generationList, interop, progressIndicator)
+    val costsFile = File(state.skeletonsDirectory, RSkeletonGenerationCosts.FILE_NAME)
+    // Note: the same package installed into several libraries might be mapped to the same skeleton,
+    // it mustn't be generated (and written) twice at the same time
+    return generateSkeletons(generationList.distinctBy { it.second }, interop, progressIndicator, costsFile)
   }
 
+  /**
+   * Generates skeletons by several helper processes which take batches of packages from [RSkeletonTaskQueue].
+   * Skeletons are written as soon as they are generated and costs are saved after each batch,
+   * so an interrupted generation is resumed by the next [updateSkeletons] with the remaining packages
+   */
   internal fun generateSkeletons(generationList: List<Pair<RPackage, Path>>,
                                  interop: RInterop,
-                                 progressIndicator: ProgressIndicator? = null): Boolean {
+                                 progressIndicator: ProgressIndicator? = null,
+                                 costsFile: File? = null): Boolean {
     if (generationList.isEmpty()) return false
-    var result = false
-
-    val es = Executors.newFixedThreadPool(MAX_THREAD_POOL_SIZE)
-
-    val promises = mutableListOf<AsyncPromise<Boolean>>()
-    val fullSize = generationList.size
-    val newPackages = generationList.shuffled() // to increase the probability of uniform distribution between threads
-    var bucketSize = newPackages.size / MAX_THREAD_POOL_SIZE
-    if (newPackages.size % MAX_THREAD_POOL_SIZE != 0) ++bucketSize
-    val maxBucketSize = getLimitedByRAMBucketSize(interop)
-    bucketSize = min(bucketSize, maxBucketSize)
-    for (i in newPackages.indices step bucketSize) {
-      val rPackages = (i until i + bucketSize).mapNotNull { newPackages.getOrNull(it) }
-      val skeletonFiles = rPackages.map { it.second.toFile() }
-      val indicator: ProgressIndicator? = progressIndicator ?: ProgressIndicatorProvider.getInstance().progressIndicator
-      val skeletonProcessor = RSkeletonProcessor(es, interop, indicator, fullSize, rPackages.map { it.first }, skeletonFiles)
-      promises.add(skeletonProcessor.runSkeletonHelper())
-    }
+    val hasGeneratedSkeletons = AtomicBoolean(false)
 
-    for (promise in promises) {
-      val timeout = maxBucketSize * 15 * 1000 // 15 seconds for each package
-      promise.blockingGet(timeout)?.let { result = result || it } // Wait for all helpers
+    val ram = interop.interpreter.runHelper(RAM_SIZE_HELPER, emptyList()).toDoubleOrNull()
+    val maxBatchSize = getLimitedByRAMBucketSize(ram)
+    val workerCount = getWorkerCount(interop, ram, maxBatchSize, generationList.size)
+    val costs = RSkeletonGenerationCosts(costsFile)
+    val queue = RSkeletonTaskQueue(generationList, costs, maxBatchSize)
+    val indicator: ProgressIndicator? = progressIndicator ?: ProgressIndicatorProvider.getInstance().progressIndicator
+    indicator?.isIndeterminate = false
+    LOG.info("Generating ${generationList.size} skeletons by $workerCount workers, at most $maxBatchSize packages per helper")
+
+    val es = Executors.newFixedThreadPool(workerCount)
+    repeat(workerCount) {
+      es.submit {
+        while (indicator?.isCanceled != true) {
+          val batch = queue.takeBatch() ?: break
+          val skeletonProcessor = RSkeletonProcessor(interop, indicator, generationList.size, batch.map { it.first },
+                                                     batch.map { it.second.toFile() }) { rPackage, millis ->
+            costs.record(rPackage.name, millis)
+          }
+          val failedIndex = skeletonProcessor.run()
+          if (skeletonProcessor.hasGeneratedSkeletons) hasGeneratedSkeletons.set(true)
+          if (failedIndex != null) {
+            queue.putBack(batch.subList(failedIndex + 1, batch.size))
+            val failed = batch[failedIndex]
+            costs.recordFailure(failed.first.name, skeletonProcessor.failedPackageMillis)
+            if (queue.retry(failed)) {
+              LOG.warn("Skeleton generation for '${failed.first}' failed, retrying it separately")
+            }
+            else {
+              LOG.warn("Skeleton generation for '${failed.first}' failed again, skipping it")
+            }
+          }
+          costs.save()
+        }
+      }
     }
 
     try {
@@ -124,11 +194,10 @@ object RSkeletonUtil {
     catch (e: InterruptedException) {
       e.printStackTrace()
     }
-    return result
+    return hasGeneratedSkeletons.get()
   }
 
-  private fun getLimitedByRAMBucketSize(interop: RInterop): Int {
-    val ram = interop.interpreter.runHelper(RAM_SIZE_HELPER, emptyList()).toDoubleOrNull()
+  private fun getLimitedByRAMBucketSize(ram: Double?): Int {
     return if (ram == null) DEFAULT_MAX_BUCKET_SIZE
     else when {
       // See more information in testData/misc/skeleton_ram_usage.csv
@@ -139,13 +208,84 @@ object RSkeletonUtil {
     }
   }
 
+  /**
+   * One core is left for the IDE. All the helpers together may take up to a quarter of [ram] (in GB),
+   * a helper needs about [HELPER_BASE_MEMORY] MB plus [HELPER_PACKAGE_MEMORY] MB per package of a batch
+   */
+  private fun getWorkerCount(interop: RInterop, ram: Double?, maxBatchSize: Int, packageCount: Int): Int {
+    val cores = if (interop.interpreter.isLocal()) Runtime.getRuntime().availableProcessors() - 1 else DEFAULT_THREAD_POOL_SIZE
+    val byMemory = if (ram == null) DEFAULT_THREAD_POOL_SIZE
+                   else (ram * 1024 / 4 / (HELPER_BASE_MEMORY + HELPER_PACKAGE_MEMORY * maxBatchSize)).toInt()
+    return minOf(cores, byMemory, MAX_THREAD_POOL_SIZE, packageCount).coerceAtLeast(1)
+  }
+
   private fun hash(libraryPath: String): String {
     return Path.of(libraryPath).joinToString(separator = "", postfix = "-${libraryPath.hashCode()}") { it.toString().subSequence(0, 1) }
   }
 
+  /**
+   * Digest of the package DESCRIPTION. It's computed only if the DESCRIPTION contains a stamp of the installation
+   * (one of [INSTALLATION_STAMP_FIELDS]), so any reinstallation changes it, otherwise the skeleton is keyed by the package path.
+   * The digest doesn't depend on the package files, so it's the same for local and remote interpreters,
+   * and the same package installed in several libraries (e.g. renv ones) gets the same digest and shares the skeleton
+   */
+  fun computeContentHash(description: Map<String, String>): String? {
+    if (INSTALLATION_STAMP_FIELDS.none { description.containsKey(it) }) return null
+    val digest = MessageDigest.getInstance("SHA-256")
+    for ((key, value) in description.toSortedMap()) {
+      if (key == LIBRARY_PATH_FIELD) continue // Added by `installed.packages()`, differs between the copies
+      digest.update("$key: $value\n".toByteArray())
+    }
+    return digest.digest().take(CONTENT_HASH_BYTES).joinToString("") { "%02x".format(it) }
+  }
+
+  /**
+   * Skeletons are keyed by [RInstalledPackage.contentHash] and fall back to the package path if it's unknown
+   */
   fun installedPackageToSkeletonPath(skeletonsDirectory: String, installedPackage: RInstalledPackage): Path {
-    val dirName = installedPackage.name + "-" + installedPackage.version
-    return Path.of(skeletonsDirectory, dirName, hash(installedPackage.canonicalPackagePath) + "." + RSkeletonFileType.EXTENSION)
+    val contentHash = installedPackage.contentHash ?: return legacySkeletonPath(skeletonsDirectory, installedPackage)
+    return Path.of(skeletonsDirectory, skeletonDirName(installedPackage), contentHash + "." + RSkeletonFileType.EXTENSION)
+  }
+
+  private fun legacySkeletonPath(skeletonsDirectory: String, installedPackage: RInstalledPackage): Path {
+    val fileName = hash(installedPackage.canonicalPackagePath) + "." + RSkeletonFileType.EXTENSION
+    return Path.of(skeletonsDirectory, skeletonDirName(installedPackage), fileName)
+  }
+
+  private fun skeletonDirName(installedPackage: RInstalledPackage) = installedPackage.name + "-" + installedPackage.version
+
+  /**
+   * Moves the skeleton generated for the package path to [skeletonPath] (or removes it if there is one already),
+   * so skeletons of the previous layout aren't regenerated
+   */
+  private fun migrateLegacySkeleton(skeletonsDirectory: String, installedPackage: RInstalledPackage, skeletonPath: Path) {
+    val legacyPath = legacySkeletonPath(skeletonsDirectory, installedPackage)
+    if (legacyPath == skeletonPath || !Files.exists(legacyPath)) return
+    try {
+      if (Files.exists(skeletonPath)) {
+        Files.delete(legacyPath)
+      }
+      else {
+        Files.move(legacyPath, skeletonPath, StandardCopyOption.ATOMIC_MOVE)
+      }
+    }
+    catch (e: IOException) {
+      LOG.warn("Cannot migrate skeleton $legacyPath", e)
+    }
+  }
+
+  /**
+   * Skeletons are shared, so they are written to a temporary file first and readers never see a partial one
+   */
+  private fun writeSkeleton(skeletonPath: Path, binPackage: RLibraryPackage) {
+    val tempFile = Files.createTempFile(skeletonPath.parent, skeletonPath.fileName.toString(), ".tmp")
+    try {
+      Files.newOutputStream(tempFile).use { binPackage.writeTo(it) }
+      Files.move(tempFile, skeletonPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+    finally {
+      Files.deleteIfExists(tempFile)
+    }
   }
 
   fun installedPackageToSkeletonFile(skeletonsDirectory: String, installedPackage: RInstalledPackage): VirtualFile? {
@@ -185,13 +325,12 @@ object RSkeletonUtil {
 
   private const val invalidPackageFormat = "Invalid package summary format"
 
-  private fun convertToBinFormat(packageName: String, packageSummary: String): RLibraryPackage {
+  internal fun convertToBinFormat(packageName: String, packageSummary: String): RLibraryPackage {
     val packageBuilder = newBuilder().setName(packageName)
-    packageBuilder.setName(packageName)
-    val lines: List<String> = packageSummary.lines()
-    if (lines.isEmpty()) throw IOException("Empty summary")
+    val reader = RSummaryReader(packageSummary)
+    if (!reader.nextLine()) throw IOException("Empty summary")
 
-    val priority = when (val it = lines[0].trim()) {
+    val priority = when (val it = reader.line.trim()) {
       "", "NA" -> Priority.NA
       "BASE" -> Priority.BASE
       "RECOMMENDED" -> Priority.RECOMMENDED
@@ -204,87 +343,57 @@ object RSkeletonUtil {
     }
     packageBuilder.setPriority(priority)
 
-    val symbols = lines.subList(1, lines.size)
-
-    var index = 0
-    while (index < symbols.size) {
-      val lineNum = index + 1
-      val line = symbols[index]
-      index++
-
-      val parts = line.split('\u0001')
-
-      if (parts.size < 3) {
-        throw IOException("Too short line $lineNum: " + line)
-      }
-
-      val methodName = parts[0]
-      val exported = parts[1] == "TRUE"
+    while (reader.nextLine()) {
       val builder = RLibrarySymbol.newBuilder()
-        .setName(methodName)
-        .setExported(exported)
+        .setName(reader.nextField())
+        .setExported(reader.nextField() == "TRUE")
 
-      val (types, typesEndIndex) = readRepeatedAttribute(parts, 2) {
-        throw IOException("Expected $it types in line $lineNum: $line")
-      }
+      val types = ArrayList<String>(2)
+      reader.readRepeatedField("types") { types.add(it) }
 
       if (types.contains("function")) {
-        if (typesEndIndex < parts.size) {
+        if (reader.hasNextField) {
           //No "function" description for exported symbols like `something <- .Primitive("some_primitive")`
 
           val functionRepresentationBuilder = RLibrarySymbol.FunctionRepresentation.newBuilder()
-          val functionSignatureStartIndex =
-            when {
-              types.contains("standardGeneric") -> {
-                builder.type = RLibrarySymbol.Type.S4GENERIC
-                val (argNames, argNamesEndIndex) = readRepeatedAttribute(parts, typesEndIndex) {
-                  throw IOException("Expected $it argument names in line $lineNum: $line")
-                }
-                val (valueClasses, valueClassesEndIndex) = readRepeatedAttribute(parts, argNamesEndIndex) {
-                  throw IOException("Expected $it value classes in line $lineNum: $line")
-                }
-                val s4GenericSignature = RLibrarySymbol.FunctionRepresentation.S4GenericSignature.newBuilder()
-                  .addAllParameters(argNames)
-                  .addAllValueClasses(valueClasses)
-                  .build()
-                functionRepresentationBuilder.s4GenericSignature = s4GenericSignature
-                valueClassesEndIndex
-              }
-              types.contains("MethodDefinition") -> {
-                builder.type = RLibrarySymbol.Type.S4METHOD
-                val (argNames, argNamesEndIndex) = readRepeatedAttribute(parts, typesEndIndex) {
-                  throw IOException("Expected $it argument names in line $lineNum: $line")
-                }
-                val (argTypes, argTypesEndIndex) = readRepeatedAttribute(parts, argNamesEndIndex) {
-                  throw IOException("Expected $it argument types in line $lineNum: $line")
-                }
-                val s4MethodTypes = (argNames zip argTypes).map { (name, type) ->
-                  RLibrarySymbol.FunctionRepresentation.S4MethodParameter.newBuilder().setName(name).setType(type).build()
+          when {
+            types.contains("standardGeneric") -> {
+              builder.type = RLibrarySymbol.Type.S4GENERIC
+              val s4GenericSignature = RLibrarySymbol.FunctionRepresentation.S4GenericSignature.newBuilder()
+              reader.readRepeatedField("argument names") { s4GenericSignature.addParameters(it) }
+              reader.readRepeatedField("value classes") { s4GenericSignature.addValueClasses(it) }
+              functionRepresentationBuilder.s4GenericSignature = s4GenericSignature.build()
+            }
+            types.contains("MethodDefinition") -> {
+              builder.type = RLibrarySymbol.Type.S4METHOD
+              val argNames = ArrayList<String>()
+              reader.readRepeatedField("argument names") { argNames.add(it) }
+              val parametersWrapper = RLibrarySymbol.FunctionRepresentation.S4MethodParametersWrapper.newBuilder()
+              var argIndex = 0
+              reader.readRepeatedField("argument types") { type ->
+                if (argIndex < argNames.size) {
+                  parametersWrapper.addS4MethodParameters(
+                    RLibrarySymbol.FunctionRepresentation.S4MethodParameter.newBuilder().setName(argNames[argIndex++]).setType(type))
                 }
-                val parametersWrapper = RLibrarySymbol.FunctionRepresentation.S4MethodParametersWrapper.newBuilder()
-                parametersWrapper.addAllS4MethodParameters(s4MethodTypes)
-                functionRepresentationBuilder.s4ParametersInfo = parametersWrapper.build()
-                argTypesEndIndex
-              }
-              else -> {
-                builder.type = RLibrarySymbol.Type.FUNCTION
-                typesEndIndex
               }
+              functionRepresentationBuilder.s4ParametersInfo = parametersWrapper.build()
             }
+            else -> builder.type = RLibrarySymbol.Type.FUNCTION
+          }
 
-          val signature = parts[functionSignatureStartIndex]
+          val signature = reader.nextField()
           val prefix = "function ("
           if (!signature.startsWith(prefix) || !signature.endsWith(") ")) {
-            throw IOException("Invalid function description at $lineNum: " + signature)
+            throw IOException("Invalid function description at ${reader.lineNumber}: " + signature)
           }
 
           val parameters = signature.substring(prefix.length, signature.length - 2)
           functionRepresentationBuilder.parameters = parameters
 
-          if (builder.type == RLibrarySymbol.Type.FUNCTION && parts.size > functionSignatureStartIndex + 1) {
+          if (builder.type == RLibrarySymbol.Type.FUNCTION && reader.hasNextField) {
             val extraNamedArgsBuilder = RLibrarySymbol.FunctionRepresentation.ExtraNamedArguments.newBuilder()
-            extraNamedArgsBuilder.addAllArgNames(parts[functionSignatureStartIndex + 1].split(";"))
-            extraNamedArgsBuilder.addAllFunArgNames(parts[functionSignatureStartIndex + 2].split(";"))
+            extraNamedArgsBuilder.addAllArgNames(reader.nextField().split(";"))
+            extraNamedArgsBuilder.addAllFunArgNames(reader.nextField().split(";"))
             functionRepresentationBuilder.extraNamedArguments = extraNamedArgsBuilder.build()
           }
           builder.setFunctionRepresentation(functionRepresentationBuilder)
@@ -293,18 +402,16 @@ object RSkeletonUtil {
           builder.type = RLibrarySymbol.Type.PRIMITIVE
         }
       }
-      else if (types.contains("classRepresentation") && parts.size > typesEndIndex) {
+      else if (types.contains("classRepresentation") && reader.hasNextField) {
         builder.type = RLibrarySymbol.Type.S4CLASS
         val s4ClassRepresentationBuilder = S4ClassInfo.newBuilder()
 
         s4ClassRepresentationBuilder.packageName = packageName
-        val (slots, slotsEndIndex) = readRepeatedAttribute(parts, typesEndIndex) {
-          throw IOException("Expected $it slots in line $lineNum: $line")
-        }
-        val (superClasses, superClassesEndIndex) = readRepeatedAttribute(parts, slotsEndIndex) {
-          throw IOException("Expected $it superClasses in line $lineNum: $line")
-        }
-        val isVirtual = parts[superClassesEndIndex] == "TRUE"
+        val slots = ArrayList<String>()
+        reader.readRepeatedField("slots") { slots.add(it) }
+        val superClasses = ArrayList<String>()
+        reader.readRepeatedField("superClasses") { superClasses.add(it) }
+        val isVirtual = reader.nextField() == "TRUE"
 
         for (i in slots.indices step 3) {
           val slotBuilder = S4ClassInfo.S4ClassSlot.newBuilder()
@@ -332,39 +439,101 @@ object RSkeletonUtil {
     return packageBuilder.build()
   }
 
-  private inline fun readRepeatedAttribute(parts: List<String>, ind: Int, onError: (Int) -> Unit): Pair<List<String>, Int> {
-    val attrNumber = parts[ind].toInt()
-    val attrEndIndex = ind + attrNumber + 1
-    if (parts.size < attrEndIndex) {
-      onError(attrNumber)
-      return emptyList<String>() to -1
+  /**
+   * Reads the output of the package summary helper: lines (split as by [String.lines]) of `\u0001`-separated fields.
+   * Fields are read in place, so neither the lines nor the lists of their fields are allocated
+   */
+  private class RSummaryReader(private val text: String) {
+    private var lineStart = 0
+    private var lineEnd = -1
+    private var nextLineStart = 0
+    private var position = 0
+
+    var lineNumber = -1
+      private set
+
+    val line: String
+      get() = text.substring(lineStart, lineEnd)
+
+    val hasNextField: Boolean
+      get() = position <= lineEnd
+
+    fun nextLine(): Boolean {
+      if (nextLineStart > text.length) return false
+      lineStart = nextLineStart
+      var end = lineStart
+      while (end < text.length && text[end] != '\n' && text[end] != '\r') end++
+      lineEnd = end
+      nextLineStart = if (end + 1 < text.length && text[end] == '\r' && text[end + 1] == '\n') end + 2 else end + 1
+      position = lineStart
+      lineNumber++
+      return true
+    }
+
+    fun nextField(): String {
+      if (!hasNextField) throw IOException("Too short line $lineNumber: $line")
+      var end = position
+      while (end < lineEnd && text[end] != FIELD_SEPARATOR) end++
+      val field = text.substring(position, end)
+      position = end + 1
+      return field
+    }
+
+    /**
+     * Reads the number of values and then the values themselves
+     */
+    inline fun readRepeatedField(description: String, consumer: (String) -> Unit) {
+      val count = nextField().toInt()
+      repeat(count) {
+        if (!hasNextField) throw IOException("Expected $count $description in line $lineNumber: $line")
+        consumer(nextField())
+      }
+    }
+
+    companion object {
+      private const val FIELD_SEPARATOR = '\u0001'
     }
-    return parts.subList(ind + 1, attrEndIndex) to attrEndIndex
   }
 
-  private class RSkeletonProcessor(private val es: ExecutorService,
-                                   rInterop: RInterop,
+  /**
+   * Generates skeletons for [rPackages] by a single helper process.
+   * Once [run] returns, the output of the helper is ignored: it might still be running after a timeout,
+   * and it mustn't overwrite the skeletons which are generated by the retry
+   */
+  private class RSkeletonProcessor(rInterop: RInterop,
                                    private val indicator: ProgressIndicator?,
                                    private val allNewPackagesCnt: Int,
                                    private val rPackages: List<RPackage>,
-                                   private val skeletonFiles: List<File>) : RMultiOutputProcessor {
+                                   private val skeletonFiles: List<File>,
+                                   private val onPackageProcessed: (RPackage, Long) -> Unit) : RMultiOutputProcessor {
 
-    private val resPromise = AsyncPromise<Boolean>()
     private var curPackage: Int = -1
+    private var curPackageStart = 0L
     private val rInterpreter = rInterop.interpreter
     private val workingDir = rInterop.workingDir.takeIf { it.isNotEmpty() } ?: rInterpreter.basePath
     private val extraNamedArgumentsHelperPath = rInterpreter.uploadFileToHost(extraNamedArgumentsHelper)
     private val packageNames = rPackages.map { it.name }
-    private var hasGeneratedSkeletons = false
+    private var isStopped = false
+    var hasGeneratedSkeletons = false
+      private set
+
+    /**
+     * Time spent on the package which the helper has failed on
+     */
+    var failedPackageMillis = 0L
+      private set
 
+    @Synchronized
     override fun beforeStart() {
-      indicator?.isIndeterminate = false
       nextPackageProcess()
     }
 
+    @Synchronized
     override fun onOutputAvailable(output: String) {
+      if (isStopped) return
       val rPackage = rPackages[curPackage]
       val skeletonFile = skeletonFiles[curPackage]
+      onPackageProcessed(rPackage, System.currentTimeMillis() - curPackageStart)
       nextPackageProcess()
       try {
         if (output.startsWith("intellij-cannot-load-package")) {
@@ -372,7 +541,7 @@ object RSkeletonUtil {
           return
         }
         val binPackage: RLibraryPackage = convertToBinFormat(rPackage.name, output)
-        FileOutputStream(skeletonFile).use { binPackage.writeTo(it) }
+        writeSkeleton(skeletonFile.toPath(), binPackage)
         hasGeneratedSkeletons = true
       }
       catch (e: Throwable) {
@@ -391,35 +560,39 @@ object RSkeletonUtil {
           If you think this issue with plugin and not your R installation, please file a ticket
         """.trimIndent()
         if (curPackage < rPackages.size) {
-          LOG.error("Failed to generate skeleton for '" + rPackages[curPackage] + "'. $errorSuffix")
+          LOG.warn("Failed to generate skeleton for '" + rPackages[curPackage] + "'. $errorSuffix")
         }
         else {
           LOG.error("Skeleton generation has not zero exit code. $errorSuffix")
         }
-        if (curPackage < rPackages.size - 1) {
-          runSkeletonHelper() // Rerun helper for tail
-          return
-        }
       }
-      resPromise.setResult(hasGeneratedSkeletons)
     }
 
     /**
-     * @return an [AsyncPromise] that will be set when generation is complete for all [rPackages].
-     * Set to `true` if at least 1 skeleton is generated successfully. `False` otherwise
+     * Runs the helper and waits for it
+     * @return index of the package which the helper has failed on or `null` if all the packages were processed
      */
-    fun runSkeletonHelper(): AsyncPromise<Boolean> {
-      val resPromise = resPromise
-      es.submit {
-        val packageNames = packageNames.subList(curPackage + 1, packageNames.size)
+    fun run(): Int? {
+      try {
         rInterpreter.runMultiOutputHelper(RepoUtils.PACKAGE_SUMMARY, workingDir,
                                           listOf(extraNamedArgumentsHelperPath) + packageNames, this)
       }
-      return resPromise
+      catch (e: Throwable) {
+        LOG.warn("Skeleton helper failed for $packageNames", e)
+      }
+      synchronized(this) {
+        isStopped = true
+        val failedIndex = curPackage.coerceAtLeast(0).takeIf { it < rPackages.size }
+        if (failedIndex != null) {
+          failedPackageMillis = System.currentTimeMillis() - curPackageStart
+        }
+        return failedIndex
+      }
     }
 
     private fun nextPackageProcess() {
       ++curPackage
+      curPackageStart = System.currentTimeMillis()
       if (curPackage < rPackages.size) {
         indicator?.apply {
           fraction += 1.0 / allNewPackagesCnt
@@ -10,6 +10,7 @@ import com.intellij.psi.stubs.IndexSink
 import com.intellij.psi.stubs.StubIndex
 import com.intellij.psi.stubs.StubIndexKey
 import com.intellij.util.Processor
+import com.intellij.util.text.NameUtil
 import org.jetbrains.r.psi.api.RAssignmentStatement
 
 open class CompletionIndexAccessBase(name: String) {
@@ -22,4 +23,50 @@ open class CompletionIndexAccessBase(name: String) {
   fun process(name: String, project: Project, scope: GlobalSearchScope, processor: Processor<in RAssignmentStatement>): Boolean {
     return StubIndex.getInstance().processElements(KEY, name, project, scope, RAssignmentStatement::class.java, processor)
   }
+
+  /**
+   * Records [name] under every key from [getCompletionKeys] as well as under [ALL_SYMBOLS_KEY]
+   */
+  fun sinkForCompletion(sink: IndexSink, name: String) {
+    for (key in getCompletionKeys(name)) {
+      sink.occurrence(KEY, key)
+    }
+    sink.occurrence(KEY, ALL_SYMBOLS_KEY)
+  }
+
+  /**
+   * Processes the symbols which may match [prefix] (each of them once)
+   */
+  fun processForCompletion(prefix: String,
+                           project: Project,
+                           scope: GlobalSearchScope,
+                           processor: Processor<in RAssignmentStatement>): Boolean {
+    return process(if (prefix.isEmpty()) ALL_SYMBOLS_KEY else getCompletionKey(prefix), project, scope, processor)
+  }
+
+  companion object {
+    /**
+     * Key of all the symbols which is used for an empty prefix.
+     * Note: it can't clash with the other keys since they consist of a single character
+     */
+    private const val ALL_SYMBOLS_KEY = ""
+
+    /**
+     * Completion matches the typed prefix case-insensitively against the beginning of a symbol
+     * as well as against its word starts (`frame` for `data.frame`, `VC` for `isVirtualClass`, `in` for `%in%`),
+     * so a symbol is indexed by the lowercased first characters of all its words.
+     * The word starts are the same as the ones of [com.intellij.psi.codeStyle.MinusculeMatcher]
+     */
+    fun getCompletionKeys(name: String): Set<String> {
+      val keys = HashSet<String>()
+      for ((index, char) in name.withIndex()) {
+        if (index == 0 || NameUtil.isWordStart(name, index)) {
+          keys.add(char.toLowerCase().toString())
+        }
+      }
+      return keys
+    }
+
+    fun getCompletionKey(prefix: String): String = prefix.first().toLowerCase().toString()
+  }
 }
\ No newline at end of file
@@ -20,5 +20,9 @@ class RAssignmentCompletionIndex : StringStubIndexExtension<RAssignmentStatement
     return KEY
   }
 
+  override fun getVersion(): Int {
+    return super.getVersion() + 2
+  }
+
   companion object : CompletionIndexAccessBase("R.function.completion")
 }
@@ -20,5 +20,9 @@ class RInternalAssignmentCompletionIndex : StringStubIndexExtension<RAssignmentS
     return KEY
   }
 
+  override fun getVersion(): Int {
+    return super.getVersion() + 2
+  }
+
   companion object : CompletionIndexAccessBase("R.internal.package.completion")
 }
@@ -25,6 +25,19 @@ class RS4GenericIndex : StringStubIndexExtension<RS4GenericOrMethodHolder>() {
       return StubIndex.getElements(KEY, name, project, scope, RS4GenericOrMethodHolder::class.java)
     }
 
+    /**
+     * Processes the generics whose names satisfy [nameFilter] without loading the others
+     */
+    fun processByNames(project: Project,
+                       scope: GlobalSearchScope,
+                       nameFilter: (String) -> Boolean,
+                       processor: (String, RS4GenericOrMethodHolder) -> Boolean) {
+      StubIndex.getInstance().getAllKeys(KEY, project).filter(nameFilter).forEach { name ->
+        StubIndex.getInstance().processElements(KEY, name, project, scope, RS4GenericOrMethodHolder::class.java,
+                                                Processor { processor(name, it) })
+      }
+    }
+
     fun processAll(project: Project, scope: GlobalSearchScope, processor: Processor<in RS4GenericOrMethodHolder>) {
       StubIndex.getInstance().getAllKeys(KEY, project).forEach {
         StubIndex.getInstance().processElements(KEY, it, project, scope, RS4GenericOrMethodHolder::class.java, processor)
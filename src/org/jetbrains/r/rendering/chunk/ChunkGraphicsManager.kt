@@ -11,6 +11,7 @@ import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.Graphic
 import org.jetbrains.r.rendering.editor.chunkExecutionState
 import org.jetbrains.r.run.graphics.RGraphicsRepository
 import org.jetbrains.r.run.graphics.RGraphicsUtils
+import org.jetbrains.r.run.graphics.RPlotUtil
 import org.jetbrains.r.run.graphics.RSnapshot
 import org.jetbrains.r.settings.RGraphicsSettings
 import org.jetbrains.r.settings.RMarkdownGraphicsSettings
@@ -83,6 +84,7 @@ class ChunkGraphicsManager(private val project: Project) : GraphicsManager {
       val copy = copyFileTo(snapshot.file, directory)
       val groupPromise = repository.createDeviceGroupAsync(directory)
       val disposable = Disposable {
+        RPlotUtil.removeAll(directory)
         directory.deleteRecursively()
         groupPromise.onSuccess {
           it.dispose()
@@ -50,6 +50,7 @@ import org.jetbrains.r.rmarkdown.RMarkdownUtil
 import org.jetbrains.r.rmarkdown.R_FENCE_ELEMENT_TYPE
 import org.jetbrains.r.run.graphics.RGraphicsDevice
 import org.jetbrains.r.run.graphics.RGraphicsUtils
+import org.jetbrains.r.run.graphics.RPlotUtil
 import org.jetbrains.r.settings.RMarkdownGraphicsSettings
 import java.awt.Dimension
 import java.io.File
@@ -243,6 +244,7 @@ object RunChunkHandler {
   }
 
   private fun createCleanDirectory(directory: File) {
+    RPlotUtil.removeAll(directory)
     FileUtil.delete(directory)
     directory.mkdirs()
   }
@@ -369,7 +371,10 @@ object RunChunkHandler {
     } ?: return
     File(ChunkPath.getDirectoryForPath(path)).takeIf { it.exists() && it.isDirectory }?.listFiles()?.filter {
       !it.isDirectory || !presentChunks.contains(it.name)
-    }?.forEach { FileUtil.delete(it) }
+    }?.forEach {
+      RPlotUtil.removeAll(it)
+      FileUtil.delete(it)
+    }
   }
 
   private fun saveOutputs(outputs: List<ProcessOutput>, element: PsiElement) {
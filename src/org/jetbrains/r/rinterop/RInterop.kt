@@ -24,6 +24,7 @@ import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.*
 import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiManager
 import com.intellij.util.ConcurrencyUtil
@@ -35,6 +36,7 @@ import io.grpc.stub.StreamObserver
 import org.jetbrains.annotations.TestOnly
 import org.jetbrains.concurrency.*
 import org.jetbrains.r.RBundle
+import org.jetbrains.r.classes.S4ClassInfo
 import org.jetbrains.r.classes.r6.R6ClassActiveBinding
 import org.jetbrains.r.classes.r6.R6ClassField
 import org.jetbrains.r.classes.r6.R6ClassInfo
@@ -49,6 +51,7 @@ import org.jetbrains.r.hints.parameterInfo.RExtraNamedArgumentsInfo
 import org.jetbrains.r.interpreter.*
 import org.jetbrains.r.packages.RInstalledPackage
 import org.jetbrains.r.packages.RPackagePriority
+import org.jetbrains.r.packages.RSkeletonUtil
 import org.jetbrains.r.packages.RequiredPackageException
 import org.jetbrains.r.psi.TableColumnInfo
 import org.jetbrains.r.psi.TableInfo
@@ -89,6 +92,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     .executor(AppExecutorUtil.getAppExecutorService())
     .usePlaintext()
     .maxInboundMessageSize(MAX_MESSAGE_SIZE).build()
+  private val chunkedCalls = RInteropChunkedCalls(channel, project, !interpreter.isLocal(), this::processError)
 
   private val isUnitTestMode = ApplicationManager.getApplication().isUnitTestMode
   private val deadlineTest
@@ -97,20 +101,29 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
   internal val stub = RPIServiceGrpc.newBlockingStub(channel).let {
     if (isUnitTestMode) it.withDeadline(Deadline.after(deadlineTest, TimeUnit.SECONDS)) else it
   }
-  internal val asyncStub = RPIServiceGrpc.newFutureStub(channel).let {
+  internal val asyncStub = RPIServiceGrpc.newFutureStub(channel).withInterceptors(chunkedCalls.capabilitiesInterceptor).let {
     if (isUnitTestMode) it.withDeadline(Deadline.after(deadlineTest, TimeUnit.SECONDS)) else it
   }
   val executor = ConcurrencyUtil.newSingleThreadExecutor(RINTEROP_THREAD_NAME)
+  val scheduler = RInteropScheduler()
   private val heartbeatTimer: ScheduledFuture<*>
   private val asyncEventsListeners = Collections.newSetFromMap<AsyncEventsListener>(ConcurrentHashMap())
   private var asyncProcessingStarted = false
   private val asyncEventsBeforeStarted = mutableListOf<AsyncEvent>()
-  private val cacheIndex = AtomicInteger(0)
+  private val cacheIndices = CacheScope.values().associateWith { AtomicInteger(0) }
+  private var lastStateStamp: Map<Char, String>? = null
+  private val stateStampSequence = AtomicInteger(0)
+  private var lastStateStampSequence = 0
+  private val areStampedCachesComputed = AtomicBoolean(false)
   private val dataFrameViewerCache = ConcurrentHashMap<Int, RDataFrameViewer>()
   internal val sourceFileManager = RSourceFileManager(this)
   internal val isInSourceFileExecution = AtomicBoolean(false)
 
-  val rInteropGrpcLogger = RInteropGrpcLogger(if (ApplicationManager.getApplication().isInternal) null else GRPC_LOGGER_MAX_MESSAGES)
+  val rInteropGrpcLogger = if (ApplicationManager.getApplication().isInternal) {
+    RInteropGrpcLogger(null, 1)
+  } else {
+    RInteropGrpcLogger(GRPC_LOGGER_MAX_MESSAGES, Registry.intValue(GRPC_LOGGER_SAMPLE_RATE_REGISTRY_KEY, 0))
+  }
 
   val globalEnvRef = RReference(RRef.newBuilder().setGlobalEnv(Empty.getDefaultInstance()).build(), this)
   val globalEnvLoader = globalEnvRef.createVariableLoader()
@@ -142,13 +155,55 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
   val state: RInterpreterState = RInterpreterStateImpl(project, this)
   fun updateState() = state.updateState()
 
+  /**
+   * Sends the request when [scheduler] allows it. [priority] might be overridden by [RInteropScheduler.withPriority]
+   */
   internal fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> executeAsync(
     f: KFunction1<Request, ListenableFuture<Response>>,
-    request: Request
+    request: Request,
+    priority: RInteropPriority = RInteropPriority.NORMAL
   ) : CancellablePromise<Response> {
+    val promise = AsyncPromise<Response>()
+    scheduler.submit(priority, promise) {
+      try {
+        startCall(f, request, promise)
+      } catch (e: Throwable) {
+        promise.setError(processError(e, f.name))
+      }
+    }
+    return promise
+  }
+
+  private fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> startCall(
+    f: KFunction1<Request, ListenableFuture<Response>>,
+    request: Request,
+    promise: AsyncPromise<Response>
+  ) {
+    if (promise.isDone) {
+      return  // Note: cancelled while waiting in the queue
+    }
     val nextStubNumber = rInteropGrpcLogger.nextStubNumber()
     rInteropGrpcLogger.onStubMessageRequest(nextStubNumber, request, f.name)
-    val promise = AsyncPromise<Response>()
+    promise.onSuccess { rInteropGrpcLogger.onStubMessageResponse(nextStubNumber, it) }
+    promise.onError { rInteropGrpcLogger.onStubMessageError(nextStubNumber) }
+    if (chunkedCalls.isChunked(f.name)) {
+      chunkedCalls.start(f.name, request, asyncStub.callOptions, promise) {
+        try {
+          startUnaryCall(f, request, promise)
+        } catch (e: Throwable) {
+          promise.setError(processError(e, f.name))
+        }
+      }
+    } else {
+      startUnaryCall(f, request, promise)
+    }
+  }
+
+  private fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> startUnaryCall(
+    f: KFunction1<Request, ListenableFuture<Response>>,
+    request: Request,
+    promise: AsyncPromise<Response>
+  ) {
     val future = f.invoke(request)
     promise.onError { future.cancel(true) }
     future.addListener(Runnable {
@@ -160,9 +215,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
         return@Runnable
       }
       promise.setResult(result)
-      rInteropGrpcLogger.onStubMessageResponse(nextStubNumber, result)
     }, MoreExecutors.directExecutor())
-    return promise
   }
 
   internal fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> execute(
@@ -176,15 +229,16 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   internal fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> executeWithCheckCancel(
     f: KFunction1<Request, ListenableFuture<Response>>,
-    request: Request) : Response {
-    return executeAsync(f, request).getWithCheckCanceled()
+    request: Request,
+    priority: RInteropPriority = RInteropPriority.NORMAL) : Response {
+    return executeAsync(f, request, priority).getWithCheckCanceled()
   }
 
-  val workingDir: String by Cached("") {
+  val workingDir: String by Cached("", setOf(CacheScope.WORKING_DIR)) {
     executeWithCheckCancel(asyncStub::getWorkingDir, Empty.getDefaultInstance()).value
   }
 
-  val loadedPackages = AsyncCached<Map<String, Int>>(emptyMap()) {
+  val loadedPackages = AsyncCached<Map<String, Int>>(emptyMap(), setOf(CacheScope.PACKAGES)) {
     executeAsync(asyncStub::loaderGetLoadedNamespaces, Empty.getDefaultInstance()).thenCancellable {
       it.listList.mapIndexed { index, s -> s to index }.toMap().also {
         project.messageBus.syncPublisher(LOADED_LIBRARIES_UPDATED).onLibrariesUpdated()
@@ -192,7 +246,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     }
   }
 
-  val rMarkdownChunkOptions: List<String> by Cached(emptyList()) {
+  val rMarkdownChunkOptions: List<String> by Cached(emptyList(), setOf(CacheScope.PACKAGES)) {
     executeWithCheckCancel(asyncStub::getRMarkdownChunkOptions, Empty.getDefaultInstance()).listList
   }
 
@@ -262,7 +316,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
   fun setWorkingDir(dir: String) {
     try {
       executeWithCheckCancel(asyncStub::setWorkingDir, StringValue.of(dir))
-      invalidateCaches()
+      invalidateCaches(setOf(CacheScope.WORKING_DIR))
     } catch (ignored: RInteropTerminated) {
     }
   }
@@ -296,7 +350,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
       .setVariable(variableName)
       .build()
     return executeAsync(asyncStub::loadEnvironment, request).thenCancellable {
-      invalidateCaches()
+      invalidateCaches(setOf(CacheScope.ENVIRONMENTS))
     }
   }
 
@@ -694,7 +748,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun loadLibPaths(): List<RInterpreterState.LibraryPath> {
     return try {
-      executeWithCheckCancel(asyncStub::loadLibPaths, Empty.getDefaultInstance()).libPathsList.map {
+      executeWithCheckCancel(asyncStub::loadLibPaths, Empty.getDefaultInstance(), RInteropPriority.BACKGROUND).libPathsList.map {
         RInterpreterState.LibraryPath(it.path, it.isWritable)
       }
     }
@@ -705,14 +759,16 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun loadInstalledPackages(): List<RInstalledPackage> {
     return try {
-      val obtained = executeWithCheckCancel(asyncStub::loadInstalledPackages, Empty.getDefaultInstance()).packagesList.asSequence().map {
+      val obtained = executeWithCheckCancel(asyncStub::loadInstalledPackages, Empty.getDefaultInstance(),
+                                            RInteropPriority.BACKGROUND).packagesList.asSequence().map {
         val priority = when (it.priority) {
           RInstalledPackageList.RInstalledPackage.RPackagePriority.BASE -> RPackagePriority.BASE
           RInstalledPackageList.RInstalledPackage.RPackagePriority.RECOMMENDED -> RPackagePriority.RECOMMENDED
           else -> RPackagePriority.NA
         }
         val description = it.descriptionList.map { entry -> entry.key to entry.value }.toMap()
-        RInstalledPackage(it.packageName, it.packageVersion, priority, it.libraryPath, it.canonicalPackagePath, description)
+        val contentHash = RSkeletonUtil.computeContentHash(description)
+        RInstalledPackage(it.packageName, it.packageVersion, priority, it.libraryPath, it.canonicalPackagePath, description, contentHash)
       }
       // Obtained sequence contains duplicates of the same packages but for different versions.
       // The ones which will be used by R's functions go first.
@@ -823,21 +879,30 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun findInheritorNamedArguments(function: RReference): List<String> {
     return try {
-      executeWithCheckCancel(asyncStub::findInheritorNamedArguments, function.proto).listList
+      findInheritorNamedArgumentsAsync(function).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       emptyList()
     }
   }
 
+  fun findInheritorNamedArgumentsAsync(function: RReference): CancellablePromise<List<String>> {
+    return executeAsync(asyncStub::findInheritorNamedArguments, function.proto).thenCancellable { it.listList }
+  }
+
   fun findExtraNamedArguments(function: RReference): RExtraNamedArgumentsInfo {
     return try {
-      val res = executeWithCheckCancel(asyncStub::findExtraNamedArguments, function.proto)
-      RExtraNamedArgumentsInfo(res.argNamesList, res.funArgNamesList)
+      findExtraNamedArgumentsAsync(function).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       RExtraNamedArgumentsInfo(emptyList(), emptyList())
     }
   }
 
+  fun findExtraNamedArgumentsAsync(function: RReference): CancellablePromise<RExtraNamedArgumentsInfo> {
+    return executeAsync(asyncStub::findExtraNamedArguments, function.proto).thenCancellable {
+      RExtraNamedArgumentsInfo(it.argNamesList, it.funArgNamesList)
+    }
+  }
+
   /**
    * @return list of [RS4ClassInfo] without information about [RS4ClassInfo.slots] and [RS4ClassInfo.superClasses]
    */
@@ -853,30 +918,36 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun getS4ClassInfoByObjectName(ref: RReference): RS4ClassInfo? {
     return try {
-      val res = executeWithCheckCancel(asyncStub::getS4ClassInfoByObjectName, ref.proto)
-      if (res.className.isEmpty()) return null
-      RS4ClassInfo(res.className, res.packageName,
-                   res.slotsList.map { RS4ClassSlot(it.name, it.type, it.declarationClass) },
-                   res.superClassesList.map { RS4SuperClass(it.name, it.distance) },
-                   res.isVirtual)
+      getS4ClassInfoByObjectNameAsync(ref).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       null
     }
   }
 
+  fun getS4ClassInfoByObjectNameAsync(ref: RReference): CancellablePromise<RS4ClassInfo?> {
+    return executeAsync(asyncStub::getS4ClassInfoByObjectName, ref.proto).thenCancellable { s4ClassInfoFromProto(it) }
+  }
+
   fun getS4ClassInfoByClassName(className: String): RS4ClassInfo? {
     return try {
-      val res = executeWithCheckCancel(asyncStub::getS4ClassInfoByClassName, StringValue.of(className))
-      if (res.className.isEmpty()) return null
-      RS4ClassInfo(res.className, res.packageName,
-                   res.slotsList.map { RS4ClassSlot(it.name, it.type, it.declarationClass) },
-                   res.superClassesList.map { RS4SuperClass(it.name, it.distance) },
-                   res.isVirtual)
+      getS4ClassInfoByClassNameAsync(className).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       null
     }
   }
 
+  fun getS4ClassInfoByClassNameAsync(className: String): CancellablePromise<RS4ClassInfo?> {
+    return executeAsync(asyncStub::getS4ClassInfoByClassName, StringValue.of(className)).thenCancellable { s4ClassInfoFromProto(it) }
+  }
+
+  private fun s4ClassInfoFromProto(res: S4ClassInfo): RS4ClassInfo? {
+    if (res.className.isEmpty()) return null
+    return RS4ClassInfo(res.className, res.packageName,
+                        res.slotsList.map { RS4ClassSlot(it.name, it.type, it.declarationClass) },
+                        res.superClassesList.map { RS4SuperClass(it.name, it.distance) },
+                        res.isVirtual)
+  }
+
   /**
    * @return list of [R6ClassInfo] without information about [R6ClassInfo.fields], [R6ClassInfo.methods] and [R6ClassInfo.activeBindings]
    */
@@ -892,13 +963,18 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun getR6ClassInfoByObjectName(ref: RReference): R6ClassInfo? {
     return try {
-      val res = executeWithCheckCancel(asyncStub::getR6ClassInfoByObjectName, ref.proto)
+      getR6ClassInfoByObjectNameAsync(ref).getWithCheckCanceled()
+    } catch (e: RInteropTerminated) {
+      null
+    }
+  }
+
+  fun getR6ClassInfoByObjectNameAsync(ref: RReference): CancellablePromise<R6ClassInfo?> {
+    return executeAsync(asyncStub::getR6ClassInfoByObjectName, ref.proto).thenCancellable { res ->
       R6ClassInfo(res.className, res.superClassesList,
                   res.fieldsList.map { R6ClassField(it.name, it.isPublic) },
                   res.methodsList.map { R6ClassMethod(it.name, it.parameterList, it.isPublic) },
                   res.activeBindingsList.map { R6ClassActiveBinding(it.name) })
-    } catch (e: RInteropTerminated) {
-      null
     }
   }
 
@@ -916,23 +992,31 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
 
   fun getFormalArguments(function: RReference): List<String> {
     return try {
-      executeWithCheckCancel(asyncStub::getFormalArguments, function.proto).listList
+      getFormalArgumentsAsync(function).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       emptyList()
     }
   }
 
+  fun getFormalArgumentsAsync(function: RReference): CancellablePromise<List<String>> {
+    return executeAsync(asyncStub::getFormalArguments, function.proto).thenCancellable { it.listList }
+  }
+
   fun getTableColumnsInfo(table: RReference): TableInfo {
     return try {
-      val request = TableColumnsInfoRequest.newBuilder().setRef(table.proto).build()
-      executeWithCheckCancel(asyncStub::getTableColumnsInfo, request).run {
-        TableInfo(columnsList.map { TableColumnInfo(it.name, it.type) }, TableType.toTableType(tableType))
-      }
+      getTableColumnsInfoAsync(table).getWithCheckCanceled()
     } catch (e: RInteropTerminated) {
       TableInfo(emptyList(), TableType.UNKNOWN)
     }
   }
 
+  fun getTableColumnsInfoAsync(table: RReference): CancellablePromise<TableInfo> {
+    val request = TableColumnsInfoRequest.newBuilder().setRef(table.proto).build()
+    return executeAsync(asyncStub::getTableColumnsInfo, request).thenCancellable {
+      TableInfo(it.columnsList.map { column -> TableColumnInfo(column.name, column.type) }, TableType.toTableType(it.tableType))
+    }
+  }
+
   fun convertRoxygenToHTML(functionName: String, functionText: String): RIExecutionResult {
     val result = executeWithCheckCancel(asyncStub::convertRoxygenToHTML,
                                         ConvertRoxygenToHTMLRequest.newBuilder()
@@ -949,7 +1033,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
   fun clearEnvironment(env: RReference) {
     try {
       executeWithCheckCancel(asyncStub::clearEnvironment, env.proto)
-      invalidateCaches()
+      invalidateCaches(setOf(CacheScope.ENVIRONMENTS))
     } catch (ignored: RInteropTerminated) {
     }
   }
@@ -1057,13 +1141,13 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
         fireListeners { it.onBrowseURLRequest(event.browseURLRequest) }
       }
       AsyncEvent.EventCase.PROMPT -> {
-        invalidateCaches()
+        invalidateCachesAfterCommand()
         isDebug = false
         debugStack = emptyList()
         fireListeners { it.onPrompt() }
       }
       AsyncEvent.EventCase.DEBUGPROMPT -> {
-        invalidateCaches()
+        invalidateCachesAfterCommand()
         isDebug = true
         if (event.debugPrompt.changed) {
           debugStack = stackFromProto(event.debugPrompt.stack)
@@ -1280,12 +1364,81 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     terminationPromise.onProcessed { f() }
   }
 
-  fun invalidateCaches() {
-    invokeLater { if (!project.isDisposed) { PsiManager.getInstance(project).dropPsiCaches() } }
-    cacheIndex.incrementAndGet()
+  fun invalidateCaches(scopes: Set<CacheScope> = CacheScope.ALL, dropPsiCaches: Boolean = true) {
+    if (dropPsiCaches) {
+      invokeLater { if (!project.isDisposed) { PsiManager.getInstance(project).dropPsiCaches() } }
+    }
+    scopes.forEach { cacheIndices.getValue(it).incrementAndGet() }
   }
 
-  private fun processError(e: Throwable, methodName: String): Throwable {
+  /**
+   * Any command may modify environments, so their caches are always dropped after it.
+   * So are PSI caches: results of resolve and type inference may depend on runtime values (e.g. members of environments),
+   * which aren't covered by the stamp.
+   * Other caches are dropped only if the corresponding part of [STATE_STAMP_EXPRESSION] has changed.
+   * The stamp is requested asynchronously, so the events are not delayed by it,
+   * and only if some of these caches have been computed since they were dropped last time,
+   * otherwise they are just dropped, which costs nothing in contrast to the evaluation of the stamp
+   */
+  private fun invalidateCachesAfterCommand() {
+    val sequence = stateStampSequence.incrementAndGet()
+    if (!areStampedCachesComputed.getAndSet(false)) {
+      invalidateCaches()
+      applyStateStamp(sequence, null, isInvalidated = true)
+      return
+    }
+    invalidateCaches(setOf(CacheScope.ENVIRONMENTS))
+    RReference.expressionRef(STATE_STAMP_EXPRESSION, globalEnvRef).getDistinctStringsAsync()
+      .onSuccess { stamp -> applyStateStamp(sequence, stamp.filter { it.isNotEmpty() }.associate { it.first() to it.substring(1) }) }
+      .onError { applyStateStamp(sequence, null) }
+  }
+
+  /**
+   * [stamp] is `null` if it's unknown, in this case all the stamped caches are dropped (unless [isInvalidated])
+   * and the next stamp isn't compared with the previous one
+   */
+  @Synchronized
+  private fun applyStateStamp(sequence: Int, stamp: Map<Char, String>?, isInvalidated: Boolean = false) {
+    // A stamp which arrives after a newer one is outdated
+    if (sequence < lastStateStampSequence) return
+    lastStateStampSequence = sequence
+    val previous = lastStateStamp
+    lastStateStamp = stamp
+    if (stamp == null || previous == null) {
+      if (!isInvalidated) invalidateCaches(STAMPED_SCOPES)
+      return
+    }
+    val scopes = mutableSetOf<CacheScope>()
+    if (previous[STAMP_PACKAGES] != stamp[STAMP_PACKAGES]) scopes.add(CacheScope.PACKAGES)
+    if (previous[STAMP_WORKING_DIR] != stamp[STAMP_WORKING_DIR]) scopes.add(CacheScope.WORKING_DIR)
+    if (previous[STAMP_GLOBAL_NAMES] != stamp[STAMP_GLOBAL_NAMES]) scopes.add(CacheScope.GLOBAL_NAMES)
+    // Note: PSI caches are dropped again since they might have been computed with the outdated caches in the meantime
+    if (scopes.isNotEmpty()) invalidateCaches(scopes)
+  }
+
+  private fun onCacheComputed(scopes: Set<CacheScope>) {
+    if (scopes.any { it in STAMPED_SCOPES }) {
+      areStampedCachesComputed.set(true)
+    }
+  }
+
+  private fun getCacheIndex(scopes: Set<CacheScope>) = scopes.sumBy { cacheIndices.getValue(it).get() }
+
+  enum class CacheScope {
+    /** Values of variables in any environment */
+    ENVIRONMENTS,
+    /** Loaded namespaces and the search path */
+    PACKAGES,
+    /** Names (but not values) of variables in the global environment, e.g. defined functions and classes */
+    GLOBAL_NAMES,
+    WORKING_DIR;
+
+    companion object {
+      val ALL: Set<CacheScope> = values().toSet()
+    }
+  }
+
+  internal fun processError(e: Throwable, methodName: String): Throwable {
     (e as? ExecutionException)?.cause?.let { return processError(it, methodName) }
     if (!isAlive) return RInteropTerminated(this)
     if (e is StatusRuntimeException) {
@@ -1300,7 +1453,7 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     return e
   }
 
-  inner class Cached<T : Any>(defaultValue: T? = null, val f: () -> T) {
+  inner class Cached<T : Any>(defaultValue: T? = null, private val scopes: Set<CacheScope> = CacheScope.ALL, val f: () -> T) {
     private var previousValue = defaultValue ?: f()
     private val cached = object : AtomicClearableLazyValue<T>() {
       override fun compute(): T {
@@ -1315,16 +1468,18 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     private var cacheIndex = -1
 
     operator fun getValue(thisRef: Any?, property: KProperty<*>): T {
-      val currentCacheIndex = this@RInterop.cacheIndex.get()
+      val currentCacheIndex = getCacheIndex(scopes)
       if (cacheIndex < currentCacheIndex) {
         cached.drop()
         cacheIndex = currentCacheIndex
+        onCacheComputed(scopes)
       }
       return cached.value
     }
   }
 
-  inner class AsyncCached<T>(defaultValue: T, private val f: () -> CancellablePromise<T>) {
+  inner class AsyncCached<T>(defaultValue: T, private val scopes: Set<CacheScope> = CacheScope.ALL,
+                             private val f: () -> CancellablePromise<T>) {
     private var cached: T = defaultValue
     private var cacheIndex = -1
     private var currentPromise: CancellablePromise<T>? = null
@@ -1332,9 +1487,10 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     val value: T
       @Synchronized
       get() {
-        val currentCacheIndex = this@RInterop.cacheIndex.get()
+        val currentCacheIndex = getCacheIndex(scopes)
         if (cacheIndex < currentCacheIndex) {
           cacheIndex = currentCacheIndex
+          onCacheComputed(scopes)
           currentPromise?.cancel()
           val promise = AsyncPromise<T>().also { currentPromise = it }
           promise.onError {
@@ -1396,8 +1552,21 @@ class RInterop(val interpreter: RInterpreter, val processHandler: ProcessHandler
     private const val HEARTBEAT_PERIOD = 20L
     private const val EXECUTE_CODE_TEST_TIMEOUT = 20000
     private const val GRPC_LOGGER_MAX_MESSAGES = 30
+    private const val GRPC_LOGGER_SAMPLE_RATE_REGISTRY_KEY = "r.interop.payloadSampleRate"
     private const val MAX_MESSAGE_SIZE = 16 * 1024 * 1024  // 16 MiB (default is 4)
 
+    private const val STAMP_PACKAGES = 'p'
+    private const val STAMP_WORKING_DIR = 'w'
+    private const val STAMP_GLOBAL_NAMES = 'g'
+    private val STAMPED_SCOPES = setOf(CacheScope.PACKAGES, CacheScope.WORKING_DIR, CacheScope.GLOBAL_NAMES)
+    // Names of global variables are hashed on the R side, so the stamp stays small for large environments
+    private val STATE_STAMP_EXPRESSION = """local({
+      names <- utf8ToInt(paste(ls(globalenv(), all.names = TRUE), collapse = "\n"))
+      c(paste0("$STAMP_PACKAGES", paste(c(loadedNamespaces(), search()), collapse = ",")),
+        paste0("$STAMP_WORKING_DIR", getwd()),
+        paste0("$STAMP_GLOBAL_NAMES", length(names), ":", sum(as.numeric(names) * (seq_along(names) %% 65521))))
+    })"""
+
     internal val DEADLINE_TEST_KEY = Key<Long>("org.jetbrains.r.rinterop.RInterop.DeadlineTest")
   }
 }
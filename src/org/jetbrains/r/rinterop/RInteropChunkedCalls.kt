@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import com.google.protobuf.Any as ProtoAny
+import com.google.protobuf.ByteString
+import com.google.protobuf.BytesValue
+import com.google.protobuf.GeneratedMessageV3
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import io.grpc.*
+import io.grpc.protobuf.ProtoUtils
+import io.grpc.stub.ClientCalls
+import io.grpc.stub.StreamObserver
+import org.jetbrains.concurrency.AsyncPromise
+import org.jetbrains.r.RBundle
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Fetches responses which might not fit into a single gRPC message (see `MAX_MESSAGE_SIZE` in [RInterop]).
+ *
+ * The request of a method from [METHODS] is wrapped into [ProtoAny] whose type url is the full name of the method.
+ * RWrapper executes it and streams the serialized response back as [BytesValue] chunks which are reassembled here.
+ * Requests to remote interpreters ([isCompressed]) are gzip-compressed, RWrapper compresses the chunks the same way.
+ * If a transfer takes more than [PROGRESS_DELAY] ms, a cancellable background progress is shown.
+ *
+ * Chunked calls are used only if RWrapper advertises them in the [CAPABILITIES_KEY] header of its responses,
+ * which is read by [capabilitiesInterceptor] from the first response (`getInfo` during the initialization of [RInterop]),
+ * so older RWrapper versions aren't probed with requests they can't serve.
+ * If RWrapper answers `UNIMPLEMENTED` nevertheless, [isSupported] is reset and the caller falls back to the ordinary unary call
+ */
+internal class RInteropChunkedCalls(private val channel: Channel,
+                                    private val project: Project,
+                                    private val isCompressed: Boolean,
+                                    private val processError: (Throwable, String) -> Throwable) {
+  @Volatile
+  var isSupported = false
+    private set
+
+  @Volatile
+  private var areCapabilitiesReceived = false
+
+  /**
+   * Reads the capabilities of RWrapper from the headers of the calls made through it until they're received
+   */
+  val capabilitiesInterceptor = object : ClientInterceptor {
+    override fun <ReqT, RespT> interceptCall(method: MethodDescriptor<ReqT, RespT>, callOptions: CallOptions,
+                                             next: Channel): ClientCall<ReqT, RespT> {
+      val call = next.newCall(method, callOptions)
+      if (areCapabilitiesReceived) {
+        return call
+      }
+      return object : ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+        override fun start(responseListener: Listener<RespT>, headers: Metadata) {
+          super.start(object : ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+            override fun onHeaders(headers: Metadata) {
+              if (!areCapabilitiesReceived) {
+                isSupported = headers.get(CAPABILITIES_KEY)?.split(',')?.any { it.trim() == CHUNKED_CALL_CAPABILITY } == true
+                areCapabilitiesReceived = true
+              }
+              super.onHeaders(headers)
+            }
+          }, headers)
+        }
+      }
+    }
+  }
+
+  fun isChunked(methodName: String) = isSupported && methodName in METHODS
+
+  /**
+   * @param callOptions options of the stub the unary call would be made with (e.g. its deadline)
+   */
+  fun <Request : GeneratedMessageV3, Response : GeneratedMessageV3> start(
+    methodName: String,
+    request: Request,
+    callOptions: CallOptions,
+    promise: AsyncPromise<Response>,
+    fallback: () -> Unit
+  ) {
+    val fullMethodName = MethodDescriptor.generateFullMethodName(RPIServiceGrpc.SERVICE_NAME, methodName)
+    val call = channel.newCall(CHUNKED_CALL_METHOD, if (isCompressed) callOptions.withCompression("gzip") else callOptions)
+    val wrapped = ProtoAny.newBuilder().setTypeUrl(fullMethodName).setValue(request.toByteString()).build()
+    val received = AtomicLong()
+    var data = ByteString.EMPTY
+    promise.onError { call.cancel("Cancelled", null) }
+    ClientCalls.asyncServerStreamingCall(call, wrapped, object : StreamObserver<BytesValue> {
+      override fun onNext(value: BytesValue) {
+        data = data.concat(value.value)
+        received.addAndGet(value.value.size().toLong())
+      }
+
+      override fun onError(t: Throwable) {
+        if (t is StatusRuntimeException && t.status.code == Status.Code.UNIMPLEMENTED) {
+          isSupported = false
+          fallback()
+        } else {
+          promise.setError(processError(t, methodName))
+        }
+      }
+
+      override fun onCompleted() {
+        try {
+          promise.setResult(parseResponse(fullMethodName, data))
+        } catch (e: Throwable) {
+          promise.setError(e)
+        }
+      }
+    })
+    if (!ApplicationManager.getApplication().isUnitTestMode) {
+      AppExecutorUtil.getAppScheduledExecutorService().schedule({
+        if (!promise.isDone) showProgress(methodName, promise, received)
+      }, PROGRESS_DELAY, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  private fun showProgress(methodName: String, promise: AsyncPromise<*>, received: AtomicLong) {
+    val title = RBundle.message("rinterop.receiving.title", methodName)
+    ProgressManager.getInstance().run(object : Task.Backgroundable(project, title, true) {
+      override fun run(indicator: ProgressIndicator) {
+        indicator.isIndeterminate = true
+        while (!promise.isDone) {
+          if (indicator.isCanceled) {
+            promise.cancel()
+            return
+          }
+          indicator.text2 = RBundle.message("rinterop.receiving.details", StringUtil.formatFileSize(received.get()))
+          try {
+            promise.blockingGet(PROGRESS_UPDATE_PERIOD, TimeUnit.MILLISECONDS)
+          } catch (ignored: TimeoutException) {
+          } catch (ignored: Exception) {
+            return  // Note: failures are reported by the caller
+          }
+        }
+      }
+    })
+  }
+
+  companion object {
+    /**
+     * Methods whose responses may grow beyond the message size limit
+     */
+    private val METHODS = setOf("graphicsFetchPlot", "loaderGetVariables", "evaluateAsText")
+
+    private const val CHUNKED_CALL_CAPABILITY = "chunkedCall"
+    private const val PROGRESS_DELAY = 1000L
+    private const val PROGRESS_UPDATE_PERIOD = 100
+
+    /**
+     * Comma-separated capabilities of RWrapper which it sends in the headers of its responses
+     */
+    internal val CAPABILITIES_KEY: Metadata.Key<String> = Metadata.Key.of("rwrapper-capabilities", Metadata.ASCII_STRING_MARSHALLER)
+
+    internal val CHUNKED_CALL_METHOD = MethodDescriptor.newBuilder<ProtoAny, BytesValue>()
+      .setType(MethodDescriptor.MethodType.SERVER_STREAMING)
+      .setFullMethodName(MethodDescriptor.generateFullMethodName(RPIServiceGrpc.SERVICE_NAME, "chunkedCall"))
+      .setRequestMarshaller(ProtoUtils.marshaller(ProtoAny.getDefaultInstance()))
+      .setResponseMarshaller(ProtoUtils.marshaller(BytesValue.getDefaultInstance()))
+      .build()
+
+    internal fun <Response> parseResponse(fullMethodName: String, data: ByteString): Response {
+      val method = RPIServiceGrpc.getServiceDescriptor().methods.first { it.fullMethodName == fullMethodName }
+      @Suppress("UNCHECKED_CAST")
+      return (method.responseMarshaller as MethodDescriptor.Marshaller<Response>).parse(data.newInput())
+    }
+  }
+}
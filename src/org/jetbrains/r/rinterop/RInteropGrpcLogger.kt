@@ -11,29 +11,46 @@ import io.grpc.MethodDescriptor
 import java.lang.reflect.Type
 import java.util.*
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
-class RInteropGrpcLogger(private val maxMessages: Int? = null) {
-  val messages = ArrayDeque<Message>()
-  private val commandMessages = ConcurrentCollectionFactory.createConcurrentIntObjectMap<CommandMessage>()
-  private val stubMessages = ConcurrentCollectionFactory.createConcurrentIntObjectMap<Pair<ByteArray, String>>()
+/**
+ * Records the requests to RWrapper. Only sizes and timings of every call are kept by default (see [statistics]).
+ * Full payloads are captured for every [sampleRate]-th call (never if it's `0`) and the last [maxMessages] of them are kept
+ * (all of them if it's `null`). Captured messages are kept by reference (they are immutable)
+ * and serialized only when a dump is requested with [toJson]
+ */
+class RInteropGrpcLogger(private val maxMessages: Int? = null, private val sampleRate: Int = 0) {
+  private val recorded = ArrayDeque<() -> Message>()
+  private val commandMessages = ConcurrentCollectionFactory.createConcurrentIntObjectMap<CommandCall>()
+  private val stubMessages = ConcurrentCollectionFactory.createConcurrentIntObjectMap<StubCall>()
   private val stubMessageEnumerator: AtomicInteger = AtomicInteger(0)
 
+  val statistics = RInteropStatistics()
+
+  val messages: List<Message>
+    @Synchronized get() = recorded.map { it() }
+
   fun nextStubNumber(): Int {
     return stubMessageEnumerator.getAndIncrement()
   }
 
   fun <TRequest : GeneratedMessageV3, TResponse : GeneratedMessageV3>
     onExecuteRequestAsync(number: Int, methodDescriptor: MethodDescriptor<TRequest, TResponse>, request: TRequest) {
-    commandMessages.put(number, CommandMessage(methodDescriptor.fullMethodName.let { it.substring(it.indexOf('/') + 1) }, request.toByteArray()))
+    val methodName = methodDescriptor.fullMethodName.let { it.substring(it.indexOf('/') + 1) }
+    val message = if (isSampled(number)) CommandMessage(methodName, request.toByteArray()) else null
+    commandMessages.put(number, CommandCall(methodName, request.serializedSize, message, System.nanoTime()))
   }
 
   fun onExecuteRequestFinish(number: Int) {
-    addMessage(commandMessages.remove(number))
+    val call = commandMessages.remove(number) ?: return
+    statistics.record(call.methodName, call.startNanos, call.requestSize, call.outputSize.get().toInt())
+    call.message?.let { message -> addMessage { message } }
   }
 
   fun onOutputAvailable(number: Int, value: CommandOutput) {
-
-    commandMessages.get(number)?.apply {
+    val call = commandMessages.get(number) ?: return
+    call.outputSize.addAndGet(value.text.size().toLong())
+    call.message?.apply {
       when (value.type) {
         CommandOutput.Type.STDOUT -> stdout.append(value.text.toStringUtf8())
         CommandOutput.Type.STDERR -> stderr.append(value.text.toStringUtf8())
@@ -43,22 +60,47 @@ class RInteropGrpcLogger(private val maxMessages: Int? = null) {
   }
 
   fun onStubMessageRequest(number: Int, message: GeneratedMessageV3, methodName: String) {
-    stubMessages.put(number, Pair(message.toByteArray(), methodName))
+    val request = if (isSampled(number)) message else null
+    stubMessages.put(number, StubCall(methodName, message.serializedSize, request, System.nanoTime()))
   }
 
   fun onStubMessageResponse(number: Int, message: GeneratedMessageV3?) {
-    val (bytes, methodName) = stubMessages.remove(number)
-    addMessage(StubMessage(methodName, bytes, message?.toByteArray()))
+    val call = stubMessages.remove(number) ?: return
+    statistics.record(call.methodName, call.startNanos, call.requestSize, message?.serializedSize ?: 0)
+    if (call.request != null) {
+      addMessage { call.toMessage(call.request, message) }
+    }
+  }
+
+  fun onStubMessageError(number: Int) {
+    val call = stubMessages.remove(number) ?: return
+    statistics.record(call.methodName, call.startNanos, call.requestSize, null)
+    if (call.request != null) {
+      addMessage { call.toMessage(call.request, null) }
+    }
+  }
+
+  private fun isSampled(number: Int): Boolean {
+    return sampleRate > 0 && number % sampleRate == 0
   }
 
   @Synchronized
-  private fun addMessage(it: Message) {
-    messages.addLast(it)
-    if (maxMessages != null && messages.size > maxMessages) {
-      messages.removeFirst()
+  private fun addMessage(it: () -> Message) {
+    recorded.addLast(it)
+    if (maxMessages != null && recorded.size > maxMessages) {
+      recorded.removeFirst()
     }
   }
 
+  private class CommandCall(val methodName: String, val requestSize: Int, val message: CommandMessage?, val startNanos: Long) {
+    val outputSize = AtomicLong()
+  }
+
+  private class StubCall(val methodName: String, val requestSize: Int, val request: GeneratedMessageV3?, val startNanos: Long) {
+    fun toMessage(request: GeneratedMessageV3, response: GeneratedMessageV3?) =
+      StubMessage(methodName, request.toByteArray(), response?.toByteArray())
+  }
+
   interface Message {
     val methodName: String
     val request: ByteArray
@@ -83,11 +125,11 @@ class RInteropGrpcLogger(private val maxMessages: Int? = null) {
     return if (withPending) {
       gsonBuilder.toJson(mapOf<String, Any>(
         "messages" to messages,
-        "pending" to stubMessages.values().map { StubMessage(it.second, it.first, null) }
-          .plus(commandMessages.values()).toList()
+        "pending" to stubMessages.values().mapNotNull { call -> call.request?.let { call.toMessage(it, null) } }
+          .plus(commandMessages.values().mapNotNull { it.message }).toList()
       ))
     } else {
       gsonBuilder.toJson(messages)
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import org.jetbrains.concurrency.CancellablePromise
+import java.util.ArrayDeque
+import java.util.EnumMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+enum class RInteropPriority {
+  /** Requests the user is waiting for: completion, quick documentation, parameter info */
+  INTERACTIVE,
+  /** Everything else, e.g. execution of the console commands and debugger requests */
+  NORMAL,
+  /** Refreshes nobody is waiting for: variables view, installed packages, library paths */
+  BACKGROUND,
+}
+
+/**
+ * Token shared by the requests of a single caller's operation (e.g. a quick documentation popup).
+ * Once the token is cancelled, its requests which haven't been sent yet are dropped
+ * and the running ones are cancelled (so their results are ignored).
+ * Requests bound to a token are held for a short time before they are sent, so a token superseded right away
+ * (e.g. when the mouse moves over several identifiers) never reaches R.
+ * See [RInteropScheduler.supersede]
+ */
+class RInteropCancellationToken {
+  private val promises = CopyOnWriteArrayList<CancellablePromise<*>>()
+
+  @Volatile
+  var isCancelled = false
+    private set
+
+  fun cancel() {
+    isCancelled = true
+    for (promise in promises) {
+      promise.cancel()
+    }
+    promises.clear()
+  }
+
+  internal fun register(promise: CancellablePromise<*>) {
+    promises.add(promise)
+    promise.onProcessed { promises.remove(promise) }
+    if (isCancelled) {
+      promise.cancel()
+    }
+  }
+}
+
+/**
+ * Decides when requests to the R session are sent.
+ *
+ * All requests share a single channel and R serves them one by one, so a batch of background requests
+ * sent right before completion delays it by the time of the whole batch.
+ * That's why [RInteropPriority.INTERACTIVE] and [RInteropPriority.NORMAL] requests are sent immediately,
+ * while [RInteropPriority.BACKGROUND] ones are held while there are unfinished interactive requests
+ * (but not longer than [maxBackgroundDelay] ms, so they can't starve) and at most [maxBackgroundCalls] of them run at once.
+ * Non-background requests bound to a [RInteropCancellationToken] are held for [coalescingDelay] ms,
+ * so they are dropped if their token is superseded in the meantime.
+ *
+ * The priority of requests can be overridden for a block of code with [withPriority],
+ * e.g. a variables reload started by completion is interactive rather than background
+ */
+class RInteropScheduler(private val maxBackgroundCalls: Int = MAX_BACKGROUND_CALLS,
+                        private val maxBackgroundDelay: Long = MAX_BACKGROUND_DELAY,
+                        private val coalescingDelay: Long = COALESCING_DELAY) {
+  private enum class CallState { WAITING, RUNNING, FINISHED }
+
+  private class Call(val priority: RInteropPriority, val promise: CancellablePromise<*>, val start: () -> Unit) {
+    val submitTime = System.currentTimeMillis()
+    var state = CallState.WAITING
+  }
+
+  private class Context(val priority: RInteropPriority, val token: RInteropCancellationToken?)
+
+  private val context = ThreadLocal<Context?>()
+  private val tokens = ConcurrentHashMap<Any, RInteropCancellationToken>()
+  private val waiting = ArrayDeque<Call>()
+  private val coalescing = mutableListOf<Call>()
+  private val runningCounts = IntArray(RInteropPriority.values().size)
+  private var scheduledPumpTime = Long.MAX_VALUE
+
+  val statistics: Map<RInteropPriority, LaneStatistics> = EnumMap<RInteropPriority, LaneStatistics>(RInteropPriority::class.java).apply {
+    for (priority in RInteropPriority.values()) {
+      put(priority, LaneStatistics())
+    }
+  }
+
+  /**
+   * Runs [task] so that all requests submitted by it on the current thread have [priority] and are bound to [token]
+   */
+  fun <T> withPriority(priority: RInteropPriority, token: RInteropCancellationToken? = null, task: () -> T): T {
+    val previous = context.get()
+    context.set(Context(priority, token ?: previous?.token))
+    try {
+      return task()
+    } finally {
+      context.set(previous)
+    }
+  }
+
+  /**
+   * Cancels the previous token of [caller] (if any) and returns a new one
+   */
+  fun supersede(caller: Any): RInteropCancellationToken {
+    val token = RInteropCancellationToken()
+    tokens.put(caller, token)?.cancel()
+    return token
+  }
+
+  /**
+   * Schedules [start] which sends a request whose result is delivered to [promise].
+   * [defaultPriority] is used unless it's overridden by [withPriority]
+   */
+  fun submit(defaultPriority: RInteropPriority, promise: CancellablePromise<*>, start: () -> Unit) {
+    val current = context.get()
+    val call = Call(current?.priority ?: defaultPriority, promise, start)
+    statistics.getValue(call.priority).onSubmitted()
+    val isStarted = synchronized(this) {
+      when {
+        call.priority == RInteropPriority.BACKGROUND -> {
+          waiting.add(call)
+          updateQueueDepth(call.priority)
+          false
+        }
+        current?.token != null && coalescingDelay > 0L -> {
+          coalescing.add(call)
+          updateQueueDepth(call.priority)
+          false
+        }
+        else -> {
+          markRunning(call)
+          true
+        }
+      }
+    }
+    promise.onProcessed { onFinished(call) }
+    current?.token?.register(promise)
+    if (isStarted) {
+      call.start()
+    } else {
+      pump()
+    }
+  }
+
+  private fun onFinished(call: Call) {
+    val lane = statistics.getValue(call.priority)
+    synchronized(this) {
+      when (call.state) {
+        CallState.WAITING -> {
+          if (call.priority == RInteropPriority.BACKGROUND) waiting.remove(call) else coalescing.remove(call)
+          updateQueueDepth(call.priority)
+          lane.onDropped()
+        }
+        CallState.RUNNING -> {
+          runningCounts[call.priority.ordinal]--
+          lane.onCompleted(System.currentTimeMillis() - call.submitTime)
+        }
+        CallState.FINISHED -> return
+      }
+      call.state = CallState.FINISHED
+    }
+    if (LOGGER.isDebugEnabled) {
+      LOGGER.debug("${call.priority} lane: $lane")
+    }
+    pump()
+  }
+
+  private fun pump() {
+    val started = mutableListOf<Call>()
+    synchronized(this) {
+      val now = System.currentTimeMillis()
+      val iterator = coalescing.iterator()
+      while (iterator.hasNext()) {
+        val next = iterator.next()
+        if (now - next.submitTime >= coalescingDelay) {
+          iterator.remove()
+          markRunning(next)
+          started.add(next)
+        } else {
+          schedulePump(next.submitTime + coalescingDelay - now)
+        }
+      }
+      val hasInteractive = runningCounts[RInteropPriority.INTERACTIVE.ordinal] > 0 ||
+                           coalescing.any { it.priority == RInteropPriority.INTERACTIVE }
+      while (waiting.isNotEmpty() && runningCounts[RInteropPriority.BACKGROUND.ordinal] < maxBackgroundCalls) {
+        val next = waiting.first
+        if (hasInteractive && now - next.submitTime < maxBackgroundDelay) {
+          schedulePump(next.submitTime + maxBackgroundDelay - now)
+          break
+        }
+        waiting.removeFirst()
+        markRunning(next)
+        started.add(next)
+      }
+      for (priority in RInteropPriority.values()) {
+        updateQueueDepth(priority)
+      }
+    }
+    for (call in started) {
+      call.start()
+    }
+  }
+
+  private fun markRunning(call: Call) {
+    call.state = CallState.RUNNING
+    runningCounts[call.priority.ordinal]++
+    statistics.getValue(call.priority).onStarted(System.currentTimeMillis() - call.submitTime)
+  }
+
+  private fun updateQueueDepth(priority: RInteropPriority) {
+    val depth = if (priority == RInteropPriority.BACKGROUND) waiting.size else coalescing.count { it.priority == priority }
+    statistics.getValue(priority).onQueueChanged(depth)
+  }
+
+  /**
+   * Makes sure [pump] is called in [delay] ms at the latest
+   */
+  private fun schedulePump(delay: Long) {
+    val time = System.currentTimeMillis() + delay
+    if (time < scheduledPumpTime) {
+      scheduledPumpTime = time
+      AppExecutorUtil.getAppScheduledExecutorService().schedule({
+        synchronized(this) {
+          if (scheduledPumpTime <= System.currentTimeMillis()) {
+            scheduledPumpTime = Long.MAX_VALUE
+          }
+        }
+        pump()
+      }, delay, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  /**
+   * Metrics of a priority class. Latency is measured from the submission of a request to its completion,
+   * so it includes the time spent in the queue, which is also collected separately as the wait time
+   */
+  class LaneStatistics {
+    @get:Synchronized
+    var submitted = 0
+      private set
+
+    @get:Synchronized
+    var completed = 0
+      private set
+
+    @get:Synchronized
+    var dropped = 0
+      private set
+
+    @get:Synchronized
+    var running = 0
+      private set
+
+    @get:Synchronized
+    var queueDepth = 0
+      private set
+
+    @get:Synchronized
+    var maxQueueDepth = 0
+      private set
+
+    @get:Synchronized
+    var totalMillis = 0L
+      private set
+
+    @get:Synchronized
+    var maxMillis = 0L
+      private set
+
+    @get:Synchronized
+    var totalWaitMillis = 0L
+      private set
+
+    @get:Synchronized
+    var maxWaitMillis = 0L
+      private set
+
+    @Synchronized
+    internal fun onSubmitted() {
+      submitted++
+    }
+
+    @Synchronized
+    internal fun onStarted(waitMillis: Long) {
+      running++
+      totalWaitMillis += waitMillis
+      maxWaitMillis = maxOf(maxWaitMillis, waitMillis)
+    }
+
+    @Synchronized
+    internal fun onDropped() {
+      dropped++
+    }
+
+    @Synchronized
+    internal fun onQueueChanged(depth: Int) {
+      queueDepth = depth
+      maxQueueDepth = maxOf(maxQueueDepth, depth)
+    }
+
+    @Synchronized
+    internal fun onCompleted(millis: Long) {
+      running--
+      completed++
+      totalMillis += millis
+      maxMillis = maxOf(maxMillis, millis)
+    }
+
+    @Synchronized
+    override fun toString(): String {
+      val average = if (completed > 0) totalMillis / completed else 0L
+      val started = running + completed
+      val averageWait = if (started > 0) totalWaitMillis / started else 0L
+      return "submitted: $submitted, completed: $completed, dropped: $dropped, running: $running, queue: $queueDepth (max $maxQueueDepth), " +
+             "wait: $averageWait ms (max $maxWaitMillis ms), average: $average ms, max: $maxMillis ms"
+    }
+  }
+
+  companion object {
+    private val LOGGER = Logger.getInstance(RInteropScheduler::class.java)
+
+    private const val MAX_BACKGROUND_CALLS = 2
+    private const val MAX_BACKGROUND_DELAY = 2000L
+    private const val COALESCING_DELAY = 50L
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import com.google.gson.GsonBuilder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets:
+ * each power of two is split into [SUB_BUCKET_COUNT] equal buckets, so the relative error of percentiles
+ * is at most `1 / SUB_BUCKET_COUNT` while the whole range of [Long] needs only a few hundred counters
+ */
+class RInteropHistogram {
+  private val counts = AtomicLongArray(BUCKET_COUNT)
+  private val counter = LongAdder()
+  private val adder = LongAdder()
+  private val maxValue = AtomicLong()
+
+  val count: Long
+    get() = counter.sum()
+
+  val sum: Long
+    get() = adder.sum()
+
+  val max: Long
+    get() = maxValue.get()
+
+  val mean: Double
+    get() = count.let { if (it > 0) sum.toDouble() / it else 0.0 }
+
+  fun record(value: Long) {
+    val v = maxOf(value, 0L)
+    counts.incrementAndGet(bucketIndex(v))
+    counter.increment()
+    adder.add(v)
+    maxValue.accumulateAndGet(v) { a, b -> maxOf(a, b) }
+  }
+
+  /**
+   * Upper bound of the bucket containing the value at [percentile] (0..100)
+   */
+  fun percentile(percentile: Double): Long {
+    val count = count
+    if (count == 0L) return 0L
+    val rank = maxOf(1L, Math.ceil(percentile / 100.0 * count).toLong())
+    var accumulated = 0L
+    for (index in 0 until BUCKET_COUNT) {
+      accumulated += counts.get(index)
+      if (accumulated >= rank) {
+        return minOf(bucketUpperBound(index), max)
+      }
+    }
+    return max
+  }
+
+  fun toMap(): Map<String, Any> {
+    return linkedMapOf("count" to count, "mean" to mean, "p50" to percentile(50.0), "p90" to percentile(90.0),
+                       "p99" to percentile(99.0), "max" to max)
+  }
+
+  companion object {
+    private const val SUB_BUCKET_BITS = 3
+    private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+    private const val BUCKET_COUNT = (Long.SIZE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT
+
+    internal fun bucketIndex(value: Long): Int {
+      if (value < SUB_BUCKET_COUNT) return value.toInt()
+      val exponent = Long.SIZE_BITS - 1 - java.lang.Long.numberOfLeadingZeros(value)
+      val subBucket = (value ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKET_COUNT - 1)
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket
+    }
+
+    internal fun bucketUpperBound(index: Int): Long {
+      if (index < SUB_BUCKET_COUNT) return index.toLong()
+      val shift = index / SUB_BUCKET_COUNT - 1
+      val lower = (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT).toLong() shl shift
+      return lower + (1L shl shift) - 1
+    }
+  }
+}
+
+/**
+ * Per-method counters and histograms of the requests to RWrapper.
+ * Recording is lock-free and doesn't serialize messages (sizes are taken from the memoized [com.google.protobuf.MessageLite.getSerializedSize]),
+ * so it's always on. [toJson] shows which methods dominate a slow session
+ */
+class RInteropStatistics {
+  class MethodStatistics {
+    val calls = LongAdder()
+    val errors = LongAdder()
+    val latencyMicros = RInteropHistogram()
+    val requestBytes = RInteropHistogram()
+    val responseBytes = RInteropHistogram()
+
+    fun toMap(): Map<String, Any> {
+      return linkedMapOf("calls" to calls.sum(), "errors" to errors.sum(), "totalLatencyMillis" to totalLatencyMillis,
+                         "latencyMicros" to latencyMicros.toMap(), "requestBytes" to requestBytes.toMap(),
+                         "responseBytes" to responseBytes.toMap())
+    }
+
+    val totalLatencyMillis: Long
+      get() = latencyMicros.sum / 1000
+  }
+
+  private val methods = ConcurrentHashMap<String, MethodStatistics>()
+
+  val methodStatistics: Map<String, MethodStatistics>
+    get() = methods
+
+  fun record(methodName: String, startNanos: Long, requestBytes: Int, responseBytes: Int?) {
+    val statistics = methods.computeIfAbsent(methodName) { MethodStatistics() }
+    statistics.calls.increment()
+    statistics.latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos))
+    statistics.requestBytes.record(requestBytes.toLong())
+    if (responseBytes != null) {
+      statistics.responseBytes.record(responseBytes.toLong())
+    } else {
+      statistics.errors.increment()
+    }
+  }
+
+  /**
+   * Methods are sorted by the total time spent in them
+   */
+  fun toJson(): String {
+    val sorted = methods.entries.sortedByDescending { it.value.totalLatencyMillis }
+    return GsonBuilder().setPrettyPrinting().create().toJson(sorted.associateTo(linkedMapOf()) { it.key to it.value.toMap() })
+  }
+}
@@ -68,6 +68,10 @@ open class RReference internal constructor(internal val proto: RRef, internal va
     }
   }
 
+  fun getDistinctStringsAsync(): CancellablePromise<List<String>> {
+    return rInterop.executeAsync(rInterop.asyncStub::getDistinctStrings, proto).thenCancellable { it.listList }
+  }
+
   fun ls(): List<String> {
     return try {
       rInterop.executeWithCheckCancel(rInterop.asyncStub::loadObjectNames, proto).listList
@@ -76,6 +80,10 @@ open class RReference internal constructor(internal val proto: RRef, internal va
     }
   }
 
+  fun lsAsync(): CancellablePromise<List<String>> {
+    return rInterop.executeAsync(rInterop.asyncStub::loadObjectNames, proto).thenCancellable { it.listList }
+  }
+
   fun functionSourcePosition(): RSourcePosition? = functionSourcePositionWithText()?.first
 
   fun functionSourcePositionAsync(): CancellablePromise<RSourcePosition?> =
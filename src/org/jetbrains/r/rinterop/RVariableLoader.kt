@@ -4,16 +4,16 @@
 
 package org.jetbrains.r.rinterop
 
+import org.jetbrains.concurrency.AsyncPromise
 import org.jetbrains.concurrency.CancellablePromise
-import org.jetbrains.concurrency.resolvedCancellablePromise
-import org.jetbrains.r.util.thenAsyncCancellable
 import org.jetbrains.r.util.thenCancellable
+import kotlin.math.min
 
 class RVariableLoader internal constructor(val obj: RReference) {
   val rInterop = obj.rInterop
 
   val parentEnvironments = rInterop.AsyncCached(emptyList()) {
-    rInterop.executeAsync(rInterop.asyncStub::loaderGetParentEnvs, obj.proto).thenCancellable { response ->
+    rInterop.executeAsync(rInterop.asyncStub::loaderGetParentEnvs, obj.proto, RInteropPriority.BACKGROUND).thenCancellable { response ->
       response.envsList.mapIndexed { index, it ->
         REnvironmentRef(it.name, RReference(ProtoUtil.parentEnvRefProto(obj.proto, index + 1), rInterop))
       }
@@ -21,25 +21,8 @@ class RVariableLoader internal constructor(val obj: RReference) {
   }
 
   private val variablesAsync = rInterop.AsyncCached<List<RVar>>(emptyList()) {
-    loadVariablesPartially(0, BLOCK_SIZE).thenAsyncCancellable<VariablesPart, List<RVar>> {
-      if (it.totalCount <= BLOCK_SIZE) {
-        return@thenAsyncCancellable resolvedCancellablePromise(it.vars)
-      }
-      val result = it.vars.toMutableList()
-      var promise = resolvedCancellablePromise(Unit)
-      var offset = BLOCK_SIZE
-      while (offset < it.totalCount) {
-        val currentOffset = offset
-        offset += BLOCK_SIZE
-        promise = promise.thenAsyncCancellable {
-          loadVariablesPartially(currentOffset, currentOffset + BLOCK_SIZE).thenCancellable { part ->
-            result.addAll(part.vars)
-            Unit
-          }
-        }
-      }
-      promise.thenCancellable { result }
-    }
+    val result = mutableListOf<RVar>()
+    loadVariablesStreaming { result.addAll(it.vars) }.thenCancellable { result }
   }
   val variables get() = variablesAsync.safeGet()
 
@@ -51,7 +34,7 @@ class RVariableLoader internal constructor(val obj: RReference) {
     val request = GetVariablesRequest.newBuilder()
       .setObj(obj.proto).setStart(start).setEnd(end)
       .setNoHidden(!withHidden).setNoFunctions(noFunctions).setOnlyFunctions(onlyFunctions).build()
-    return rInterop.executeAsync(rInterop.asyncStub::loaderGetVariables, request)
+    return rInterop.executeAsync(rInterop.asyncStub::loaderGetVariables, request, RInteropPriority.BACKGROUND)
       .thenCancellable { response ->
         val vars = if (response.isEnv) {
           response.varsList.map { RVar(it.name, obj.getMemberRef(it.name), ProtoUtil.rValueFromProto(it.value)) }
@@ -64,7 +47,81 @@ class RVariableLoader internal constructor(val obj: RReference) {
       }
   }
 
+  /**
+   * Loads variables from [start] to [end] in blocks of [blockSize]. Once the total count is known,
+   * up to [MAX_PARALLEL_REQUESTS] blocks are requested at the same time.
+   * [onBlock] is called for every block in order as soon as the block and all the previous ones are loaded,
+   * so it should be fast.
+   *
+   * @return promise of the total number of variables
+   */
+  fun loadVariablesStreaming(
+    start: Long = 0, end: Long = Long.MAX_VALUE, blockSize: Long = BLOCK_SIZE, withHidden: Boolean = true,
+    noFunctions: Boolean = false, onlyFunctions: Boolean = false, onBlock: (VariablesPart) -> Unit): CancellablePromise<Long> {
+    return StreamingLoad(start, end, blockSize, onBlock) { from, to ->
+      loadVariablesPartially(from, to, withHidden, noFunctions, onlyFunctions)
+    }.result
+  }
+
+  private class StreamingLoad(start: Long, private var end: Long, private val blockSize: Long,
+                              private val onBlock: (VariablesPart) -> Unit,
+                              private val request: (Long, Long) -> CancellablePromise<VariablesPart>) {
+    val result = AsyncPromise<Long>()
+    private val pending = mutableListOf<CancellablePromise<VariablesPart>>()
+    private val loaded = HashMap<Long, VariablesPart>()
+    private var nextToRequest = start
+    private var nextToPublish = start
+    private var totalCount = -1L
+
+    init {
+      result.onError { synchronized(this) { pending.toList() }.forEach { it.cancel() } }
+      if (start >= end) {
+        // Nothing to load, but the callers need the total count for paging
+        request(start, start)
+          .onSuccess { result.setResult(it.totalCount) }
+          .onError { result.setError(it) }
+          .also { promise -> result.onError { promise.cancel() } }
+      } else {
+        synchronized(this) { requestNext() }
+      }
+    }
+
+    // The first block is requested alone: the number of blocks is not known before it is loaded
+    private fun requestNext() {
+      while (!result.isDone && nextToRequest < end && pending.size < (if (totalCount == -1L) 1 else MAX_PARALLEL_REQUESTS)) {
+        val offset = nextToRequest
+        nextToRequest = min(offset + blockSize, end)
+        val promise = request(offset, nextToRequest)
+        pending.add(promise)
+        promise
+          .onSuccess { part -> synchronized(this) { onLoaded(promise, offset, part) } }
+          .onError { result.setError(it) }
+      }
+    }
+
+    private fun onLoaded(promise: CancellablePromise<VariablesPart>, offset: Long, part: VariablesPart) {
+      pending.remove(promise)
+      if (result.isDone) return
+      if (totalCount == -1L) {
+        totalCount = part.totalCount
+        end = min(end, totalCount)
+      }
+      loaded[offset] = part
+      while (true) {
+        val next = loaded.remove(nextToPublish) ?: break
+        onBlock(next)
+        nextToPublish = min(nextToPublish + blockSize, end)
+      }
+      if (nextToPublish >= end) {
+        result.setResult(totalCount)
+      } else {
+        requestNext()
+      }
+    }
+  }
+
   companion object {
     private const val BLOCK_SIZE = 500L
+    private const val MAX_PARALLEL_REQUESTS = 4
   }
 }
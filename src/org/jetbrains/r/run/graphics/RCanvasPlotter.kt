@@ -3,9 +3,16 @@ package org.jetbrains.r.run.graphics
 import java.awt.*
 import java.awt.geom.*
 
-class RCanvasPlotterProvider(override val parameters: RGraphicsUtils.ScreenParameters, private val graphics: Graphics2D) : RPlotterProvider {
+/**
+ * @param bounds if specified, nothing is drawn outside of this area (used to replay a plot tile by tile)
+ */
+class RCanvasPlotterProvider(
+  override val parameters: RGraphicsUtils.ScreenParameters,
+  private val graphics: Graphics2D,
+  private val bounds: Rectangle2D? = null
+) : RPlotterProvider {
   override fun create(fonts: List<RFont>, colors: List<Color>, strokes: List<RStroke>): RPlotter {
-    return RCanvasPlotter(fonts.map { convert(it) }, colors, strokes.map { convert(it) }, graphics)
+    return RCanvasPlotter(fonts.map { convert(it) }, colors, strokes.map { convert(it) }, graphics, bounds)
   }
 
   private fun convert(font: RFont): Font {
@@ -47,14 +54,15 @@ class RCanvasPlotter(
   private val fonts: List<Font>,
   private val colors: List<Color>,
   private val strokes: List<Stroke>,
-  private val graphics: Graphics2D
+  private val graphics: Graphics2D,
+  private val bounds: Rectangle2D? = null
 ) : RPlotter {
   private val cachedRectangle = Rectangle2D.Float()
   private val cachedEllipse = Ellipse2D.Float()
   private val cachedLine = Line2D.Float()
 
   override fun setClippingArea(area: Rectangle2D.Float) {
-    graphics.clip = area
+    graphics.clip = bounds?.createIntersection(area) ?: area
   }
 
   override fun getWidthOf(text: String, fontIndex: Int): Int {
@@ -7,11 +7,29 @@ enum class RWinding {
   NON_ZERO,
 }
 
-class RPolyline(val points: LongArray, val previewCount: Int)
+/**
+ * Slice `[offset, offset + size)` of a packed point buffer.
+ * All polylines of a plot share the same buffer so no per-figure arrays are allocated
+ */
+class RPolyline(val points: LongArray, val previewCount: Int, val offset: Int = 0, val size: Int = points.size) {
+  /**
+   * The latest decimated version of this polyline along with the replay parameters it was calculated for, see [RPlotDecimator]
+   */
+  @Volatile
+  internal var decimated: RPlotDecimator.Decimation<RPolyline>? = null
+}
 
 sealed class RFigure {
   data class Circle(val center: Long, val radius: Int, val strokeIndex: Int, val colorIndex: Int, val fillIndex: Int) : RFigure()
 
+  /**
+   * Consecutive circles of the same radius and style (typically the points of a scatter plot)
+   */
+  class Circles(val centers: LongArray, val radius: Int, val strokeIndex: Int, val colorIndex: Int, val fillIndex: Int) : RFigure() {
+    @Volatile
+    internal var decimated: RPlotDecimator.Decimation<LongArray>? = null
+  }
+
   data class Line(val from: Long, val to: Long, val strokeIndex: Int, val colorIndex: Int) : RFigure()
 
   data class Path(val subPaths: List<RPolyline>, val winding: RWinding, val strokeIndex: Int, val colorIndex: Int,
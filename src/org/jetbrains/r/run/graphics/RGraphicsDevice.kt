@@ -34,6 +34,12 @@ class RGraphicsDevice(
   val project: Project
     get() = rInterop.project
 
+  /**
+   * Latency of in-memory rescales performed by this device
+   */
+  val rescaleStatistics: RGraphicsRescaleQueue.RescaleStatistics
+    get() = queue.statistics
+
   @Volatile
   var lastUpdate: RGraphicsUpdate = RGraphicsCompletedUpdate(lastOutputs)
     private set
@@ -178,13 +184,17 @@ class RGraphicsDevice(
   }
 
   private fun rescaleInMemoryAsync(snapshotNumber: Int, parameters: RGraphicsUtils.ScreenParameters): Promise<Unit> {
-    return queue.submit(snapshotNumber, parameters) {
+    return queue.submit(snapshotNumber, parameters) { isSuperseded ->
       val hint = createHintForInMemory(snapshotNumber)
       val promise = executeWithLogAsync(hint) {
         val result = rInterop.graphicsRescale(snapshotNumber, parameters)
         parseExecutionResult(result, hint)
       }
       promise.thenIfTrue {
+        // Note: there is no point to pull the snapshot if a newer rescale has been already requested
+        if (isSuperseded()) {
+          return@thenIfTrue
+        }
         pullInMemorySnapshot(snapshotNumber)?.let { pulled ->
           onNewSnapshot(pulled, parameters, snapshotNumber)
         }
@@ -430,6 +440,7 @@ class RGraphicsDevice(
       val output = outputs.find { it.number == number }
       return if (output != null) {
         output.snapshot?.apply {
+          RPlotUtil.remove(file.parentFile, number)
           recordedFile.delete()
           file.delete()
         }
@@ -442,6 +453,7 @@ class RGraphicsDevice(
     private fun deleteOutputs(outputs: List<RGraphicsOutput>) {
       for (output in outputs) {
         output.snapshot?.apply {
+          RPlotUtil.remove(file.parentFile, number)
           recordedFile.delete()
           file.delete()
         }
@@ -1,61 +1,153 @@
 package org.jetbrains.r.run.graphics
 
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
 import org.jetbrains.concurrency.AsyncPromise
 import org.jetbrains.concurrency.Promise
 import org.jetbrains.concurrency.resolvedPromise
 import org.jetbrains.r.rinterop.RInterop
-import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
 
-class RGraphicsRescaleQueue(private val deviceId: Long, private val interop: RInterop) {
-  private var isTaskRunning = false
-  private val queue = ArrayDeque<TaskWrapper>()
+/**
+ * Serializes graphics tasks of a device.
+ *
+ * Rescales are latest-wins: a rescale of a snapshot which is still waiting in the queue
+ * is replaced by the new one, and it's started only after [debounceDelay] ms without new requests for this snapshot.
+ * This way dragging of a splitter results in a single call to R instead of dozens of them.
+ * A rescale which has been superseded while running can't be interrupted on the R side
+ * but the task is notified via `isSuperseded` so it can skip pulling of the outdated result.
+ * A request with the same parameters as the running (and not superseded) rescale is not queued at all
+ * and shares the promise of the running one.
+ *
+ * Tasks without snapshot number (i.e. dumps) are not debounced and are merged only with an equal waiting one
+ */
+class RGraphicsRescaleQueue(private val deviceId: Long, private val isDeviceActive: () -> Boolean,
+                            private val debounceDelay: Long = DEBOUNCE_DELAY) {
+  constructor(deviceId: Long, interop: RInterop) : this(deviceId, { interop.graphicsDeviceManager.currentDeviceId == deviceId })
+
+  private var current: TaskWrapper? = null
+  private val queue = mutableListOf<TaskWrapper>()
+  private var isPumpScheduled = false
+
+  val statistics = RescaleStatistics()
 
   @Synchronized
-  fun submit(snapshotNumber: Int?, parameters: RGraphicsUtils.ScreenParameters?, task: () -> Promise<Unit>): Promise<Unit> {
-    if (isTaskRunning) {
-      // Schedule
-      for (wrapper in queue) {
-        if (wrapper.snapshotNumber == snapshotNumber && wrapper.parameters == parameters) {
-          // The same task has already been scheduled
-          return wrapper.promise
+  fun submit(snapshotNumber: Int?, parameters: RGraphicsUtils.ScreenParameters?,
+             task: (isSuperseded: () -> Boolean) -> Promise<Unit>): Promise<Unit> {
+    val now = System.currentTimeMillis()
+    val delay = if (snapshotNumber != null) debounceDelay else 0L
+    current?.let { running ->
+      if (snapshotNumber != null && running.snapshotNumber == snapshotNumber) {
+        if (running.parameters != parameters) {
+          running.isSuperseded = true
+        } else if (!running.isSuperseded) {
+          // Note: nothing can be waiting for this snapshot, otherwise the running rescale would have been superseded
+          return running.promise
         }
       }
-      val wrapper = TaskWrapper(snapshotNumber, parameters, task)
-      queue.add(wrapper)
-      return wrapper.promise
+    }
+    val waiting = queue.find { it.snapshotNumber == snapshotNumber }
+    val wrapper = if (waiting != null && (snapshotNumber != null || waiting.parameters == parameters)) {
+      waiting.also {
+        it.parameters = parameters
+        it.task = task
+        it.readyTime = now + delay
+      }
     } else {
-      // Execute right now
-      val wrapper = TaskWrapper(snapshotNumber, parameters, task)
-      return execute(wrapper)
+      TaskWrapper(snapshotNumber, parameters, task, now, now + delay).also { queue.add(it) }
     }
+    pump()
+    return wrapper.promise
   }
 
   @Synchronized
-  private fun executeNextOrStop() {
-    if (queue.isNotEmpty()) {
-      execute(queue.pollFirst())
-    } else {
-      isTaskRunning = false
+  private fun pump() {
+    if (current != null || queue.isEmpty()) {
+      return
+    }
+    val now = System.currentTimeMillis()
+    val ready = queue.find { it.readyTime <= now }
+    if (ready != null) {
+      queue.remove(ready)
+      execute(ready)
+    } else if (!isPumpScheduled) {
+      isPumpScheduled = true
+      val delay = queue.minOf { it.readyTime } - now
+      AppExecutorUtil.getAppScheduledExecutorService().schedule({
+        synchronized(this) {
+          isPumpScheduled = false
+          pump()
+        }
+      }, delay, TimeUnit.MILLISECONDS)
     }
   }
 
-  private fun execute(wrapper: TaskWrapper): Promise<Unit> {
-    isTaskRunning = true
-    val promise = launchOrIgnore(wrapper.task)
-    promise.processed(wrapper.promise)
-    return promise.onProcessed {
-      executeNextOrStop()
+  private fun execute(wrapper: TaskWrapper) {
+    current = wrapper
+    val promise = launchOrIgnore(wrapper)
+    promise.onProcessed {
+      if (wrapper.snapshotNumber != null && !wrapper.isSuperseded) {
+        val latency = System.currentTimeMillis() - wrapper.submitTime
+        statistics.record(latency)
+        LOGGER.debug("Rescale of snapshot #${wrapper.snapshotNumber} on device $deviceId took $latency ms ($statistics)")
+      }
+      synchronized(this) {
+        current = null
+        pump()
+      }
     }
+    promise.processed(wrapper.promise)
   }
 
-  private fun launchOrIgnore(task: () -> Promise<Unit>): Promise<Unit> {
-    return if (interop.graphicsDeviceManager.currentDeviceId == deviceId) task() else resolvedPromise()  // Ignore
+  private fun launchOrIgnore(wrapper: TaskWrapper): Promise<Unit> {
+    return if (isDeviceActive()) wrapper.task { wrapper.isSuperseded } else resolvedPromise()  // Ignore
   }
 
-  private data class TaskWrapper(
+  /**
+   * Latency of rescales measured from the first request of a snapshot's rescale to its completion
+   */
+  class RescaleStatistics {
+    @get:Synchronized
+    var count = 0
+      private set
+
+    @get:Synchronized
+    var totalMillis = 0L
+      private set
+
+    @get:Synchronized
+    var maxMillis = 0L
+      private set
+
+    @Synchronized
+    fun record(millis: Long) {
+      count++
+      totalMillis += millis
+      maxMillis = maxOf(maxMillis, millis)
+    }
+
+    @Synchronized
+    override fun toString(): String {
+      val average = if (count > 0) totalMillis / count else 0L
+      return "count: $count, average: $average ms, max: $maxMillis ms"
+    }
+  }
+
+  private class TaskWrapper(
     val snapshotNumber: Int?,
-    val parameters: RGraphicsUtils.ScreenParameters?,
-    val task: () -> Promise<Unit>,
+    @Volatile var parameters: RGraphicsUtils.ScreenParameters?,
+    @Volatile var task: (() -> Boolean) -> Promise<Unit>,
+    val submitTime: Long,
+    @Volatile var readyTime: Long,
     val promise: AsyncPromise<Unit> = AsyncPromise()
-  )
+  ) {
+    @Volatile
+    var isSuperseded = false
+  }
+
+  companion object {
+    private val LOGGER = Logger.getInstance(RGraphicsRescaleQueue::class.java)
+
+    private const val DEBOUNCE_DELAY = 150L
+  }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import java.awt.Color
+import java.awt.Font
+import java.awt.Shape
+import java.awt.geom.PathIterator
+import java.awt.geom.Rectangle2D
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.nio.charset.Charset
+import java.util.zip.DeflaterOutputStream
+import kotlin.math.cos
+import kotlin.math.sin
+
+class RPdfPlotterProvider(override val parameters: RGraphicsUtils.ScreenParameters) : RPlotterProvider {
+  private var plotter: RPdfPlotter? = null
+
+  override val pixelScale: Int
+    get() = RVectorPlotter.RASTER_SCALE
+
+  override fun create(fonts: List<RFont>, colors: List<Color>, strokes: List<RStroke>): RPlotter {
+    return RPdfPlotter(fonts, colors, strokes, parameters).also { plotter = it }
+  }
+
+  /**
+   * Writes the document produced by the last created plotter to [output]
+   */
+  fun finish(output: OutputStream) {
+    plotter?.finish(output)
+  }
+}
+
+/**
+ * Writes a plot as a single-page PDF document.
+ * Only the standard 14 fonts are used (so nothing has to be embedded), that's why
+ * characters outside of WinAnsi encoding are replaced with '?'
+ */
+class RPdfPlotter(
+  fonts: List<RFont>,
+  colors: List<Color>,
+  strokes: List<RStroke>,
+  private val parameters: RGraphicsUtils.ScreenParameters
+) : RVectorPlotter(fonts, colors, strokes) {
+  private val content = StringBuilder()
+  private val fontNames = LinkedHashMap<String, String>()
+  private val alphaStates = LinkedHashMap<String, String>()
+  private val images = mutableListOf<BufferedImage>()
+
+  private val scale = POINTS_PER_INCH / (parameters.resolution ?: RGraphicsUtils.DEFAULT_RESOLUTION).toFloat()
+  private val pageWidth = parameters.width * scale
+  private val pageHeight = parameters.height * scale
+
+  init {
+    // Note: flip the page so the plot can be written in screen coordinates
+    content.append("${format(scale)} 0 0 ${format(-scale)} 0 ${format(pageHeight)} cm\n")
+    content.append("q\n")
+  }
+
+  override fun setClip(area: Rectangle2D.Float) {
+    content.append("Q q ${format(area.x)} ${format(area.y)} ${format(area.width)} ${format(area.height)} re W n\n")
+  }
+
+  override fun fill(shape: Shape, color: Color, isEvenOdd: Boolean) {
+    setColor(color, "rg", "ca")
+    appendPath(shape)
+    content.append(if (isEvenOdd) "f*\n" else "f\n")
+  }
+
+  override fun stroke(shape: Shape, color: Color, stroke: RStroke) {
+    setColor(color, "RG", "CA")
+    content.append("${format(stroke.width)} w ${convert(stroke.cap)} J ${convert(stroke.join)} j ${format(stroke.miterLimit)} M ")
+    content.append("[${stroke.pattern?.joinToString(" ") { format(it) } ?: ""}] 0 d\n")
+    appendPath(shape)
+    content.append("S\n")
+  }
+
+  override fun text(text: String, x: Float, y: Float, angle: Float, offset: Float, font: Font, color: Color) {
+    val fontName = fontNames.getOrPut(getStandardFontName(font)) { "F${fontNames.size + 1}" }
+    val radians = Math.toRadians(angle.toDouble())
+    val cos = cos(radians).toFloat()
+    val sin = sin(radians).toFloat()
+    content.append("q\n")
+    setColor(color, "rg", "ca")
+    // Note: rotation is counterclockwise on the screen, i.e. clockwise in the flipped coordinate system
+    content.append("${format(cos)} ${format(-sin)} ${format(sin)} ${format(cos)} ${format(x)} ${format(y)} cm\n")
+    content.append("BT /$fontName ${format(font.size2D)} Tf 1 0 0 -1 ${format(offset)} 0 Tm (${escape(text)}) Tj ET\n")
+    content.append("Q\n")
+  }
+
+  override fun image(image: BufferedImage, x: Float, y: Float, width: Float, height: Float, angle: Float) {
+    val name = "Im${images.size + 1}"
+    images.add(image)
+    val radians = Math.toRadians(angle.toDouble())
+    val cos = cos(radians).toFloat()
+    val sin = sin(radians).toFloat()
+    content.append("q\n")
+    content.append("${format(cos)} ${format(sin)} ${format(-sin)} ${format(cos)} ${format(x)} ${format(y)} cm\n")
+    content.append("${format(width)} 0 0 ${format(-height)} 0 ${format(height)} cm /$name Do\n")
+    content.append("Q\n")
+  }
+
+  fun finish(output: OutputStream) {
+    content.append("Q\n")
+    PdfWriter(output).apply {
+      val pagesId = 2
+      val contentId = 4
+      val firstFontId = contentId + 1
+      val firstAlphaId = firstFontId + fontNames.size
+      val firstImageId = firstAlphaId + alphaStates.size
+      writeObject(1, "<< /Type /Catalog /Pages $pagesId 0 R >>")
+      writeObject(pagesId, "<< /Type /Pages /Kids [3 0 R] /Count 1 >>")
+      val resources = buildString {
+        append("<< /Font <<")
+        fontNames.values.forEachIndexed { index, name -> append(" /$name ${firstFontId + index} 0 R") }
+        append(" >> /ExtGState <<")
+        alphaStates.values.forEachIndexed { index, name -> append(" /$name ${firstAlphaId + index} 0 R") }
+        append(" >> /XObject <<")
+        images.indices.forEach { index -> append(" /Im${index + 1} ${firstImageId + 2 * index} 0 R") }
+        append(" >> >>")
+      }
+      writeObject(3, "<< /Type /Page /Parent $pagesId 0 R /MediaBox [0 0 ${format(pageWidth)} ${format(pageHeight)}] " +
+                     "/Resources $resources /Contents $contentId 0 R >>")
+      writeStream(contentId, "", deflate(content.toString().toByteArray(Charsets.ISO_8859_1)))
+      fontNames.keys.forEachIndexed { index, baseFont ->
+        writeObject(firstFontId + index, "<< /Type /Font /Subtype /Type1 /BaseFont /$baseFont /Encoding /WinAnsiEncoding >>")
+      }
+      alphaStates.keys.forEachIndexed { index, state ->
+        writeObject(firstAlphaId + index, "<< /Type /ExtGState $state >>")
+      }
+      images.forEachIndexed { index, image ->
+        val imageId = firstImageId + 2 * index
+        val (rgb, alpha) = splitImage(image)
+        val dictionary = "/Type /XObject /Subtype /Image /Width ${image.width} /Height ${image.height} /BitsPerComponent 8"
+        writeStream(imageId, "$dictionary /ColorSpace /DeviceRGB /SMask ${imageId + 1} 0 R", deflate(rgb))
+        writeStream(imageId + 1, "$dictionary /ColorSpace /DeviceGray", deflate(alpha))
+      }
+      finish(1)
+    }
+  }
+
+  private fun setColor(color: Color, operator: String, alphaKey: String) {
+    val components = color.getRGBColorComponents(null)
+    content.append("${format(components[0])} ${format(components[1])} ${format(components[2])} $operator ")
+    val state = "/$alphaKey ${format(color.alpha / 255.0f)}"
+    val name = alphaStates.getOrPut(state) { "GS${alphaStates.size + 1}" }
+    content.append("/$name gs\n")
+  }
+
+  private fun appendPath(shape: Shape) {
+    forEachSegment(shape) { type, coordinates ->
+      when (type) {
+        PathIterator.SEG_MOVETO -> content.append("${format(coordinates[0])} ${format(coordinates[1])} m\n")
+        PathIterator.SEG_LINETO -> content.append("${format(coordinates[0])} ${format(coordinates[1])} l\n")
+        PathIterator.SEG_CUBICTO -> {
+          content.append("${format(coordinates[0])} ${format(coordinates[1])} ")
+          content.append("${format(coordinates[2])} ${format(coordinates[3])} ")
+          content.append("${format(coordinates[4])} ${format(coordinates[5])} c\n")
+        }
+        PathIterator.SEG_CLOSE -> content.append("h\n")
+      }
+    }
+  }
+
+  private class PdfWriter(private val output: OutputStream) {
+    private val offsets = mutableListOf<Long>()
+    private var position = 0L
+
+    init {
+      write("%PDF-1.4\n")
+    }
+
+    fun writeObject(id: Int, body: String) {
+      startObject(id)
+      write("$body\nendobj\n")
+    }
+
+    fun writeStream(id: Int, dictionary: String, data: ByteArray) {
+      startObject(id)
+      write("<< $dictionary /Length ${data.size} /Filter /FlateDecode >>\nstream\n")
+      write(data)
+      write("\nendstream\nendobj\n")
+    }
+
+    fun finish(rootId: Int) {
+      val xrefPosition = position
+      write("xref\n0 ${offsets.size + 1}\n0000000000 65535 f \n")
+      for (offset in offsets) {
+        write("%010d 00000 n \n".format(offset))
+      }
+      write("trailer\n<< /Size ${offsets.size + 1} /Root $rootId 0 R >>\nstartxref\n$xrefPosition\n%%EOF\n")
+      output.flush()
+    }
+
+    private fun startObject(id: Int) {
+      // Note: objects are expected to be written in the order of their IDs
+      check(id == offsets.size + 1) { "Unexpected object ID $id" }
+      offsets.add(position)
+      write("$id 0 obj\n")
+    }
+
+    private fun write(text: String) {
+      write(text.toByteArray(Charsets.ISO_8859_1))
+    }
+
+    private fun write(data: ByteArray) {
+      output.write(data)
+      position += data.size
+    }
+  }
+
+  companion object {
+    private const val POINTS_PER_INCH = 72.0f
+
+    private val WIN_ANSI: Charset = Charset.forName("windows-1252")
+
+    private fun getStandardFontName(font: Font): String {
+      val family = font.family.toLowerCase()
+      val base = when {
+        family.contains("mono") || family.contains("courier") -> "Courier"
+        family.contains("serif") && !family.contains("sans") || family.contains("times") -> "Times"
+        else -> "Helvetica"
+      }
+      return when {
+        base == "Times" -> when {
+          font.isBold && font.isItalic -> "Times-BoldItalic"
+          font.isBold -> "Times-Bold"
+          font.isItalic -> "Times-Italic"
+          else -> "Times-Roman"
+        }
+        font.isBold && font.isItalic -> "$base-BoldOblique"
+        font.isBold -> "$base-Bold"
+        font.isItalic -> "$base-Oblique"
+        else -> base
+      }
+    }
+
+    private fun escape(text: String): String {
+      val encoder = WIN_ANSI.newEncoder()
+      val bytes = text.map { if (encoder.canEncode(it)) it else '?' }.joinToString("").toByteArray(WIN_ANSI)
+      return buildString {
+        for (byte in bytes) {
+          val char = (byte.toInt() and 0xFF).toChar()
+          if (char == '(' || char == ')' || char == '\\') {
+            append('\\')
+          }
+          append(char)
+        }
+      }
+    }
+
+    private fun splitImage(image: BufferedImage): Pair<ByteArray, ByteArray> {
+      val width = image.width
+      val height = image.height
+      val pixels = image.getRGB(0, 0, width, height, null, 0, width)
+      val rgb = ByteArray(pixels.size * 3)
+      val alpha = ByteArray(pixels.size)
+      for ((index, pixel) in pixels.withIndex()) {
+        rgb[3 * index] = (pixel shr 16).toByte()
+        rgb[3 * index + 1] = (pixel shr 8).toByte()
+        rgb[3 * index + 2] = pixel.toByte()
+        alpha[index] = (pixel ushr 24).toByte()
+      }
+      return Pair(rgb, alpha)
+    }
+
+    private fun deflate(data: ByteArray): ByteArray {
+      return ByteArrayOutputStream().also { output ->
+        DeflaterOutputStream(output).use { it.write(data) }
+      }.toByteArray()
+    }
+
+    private fun convert(cap: RLineCap): Int {
+      return when (cap) {
+        RLineCap.BUTT -> 0
+        RLineCap.ROUND -> 1
+        RLineCap.SQUARE -> 2
+      }
+    }
+
+    private fun convert(join: RLineJoin): Int {
+      return when (join) {
+        RLineJoin.MITER -> 0
+        RLineJoin.ROUND -> 1
+        RLineJoin.BEVEL -> 2
+      }
+    }
+  }
+}
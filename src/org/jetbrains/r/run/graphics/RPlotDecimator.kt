@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import kotlin.math.floor
+import kotlin.math.min
+
+/**
+ * Level-of-detail reduction of huge polylines and point clouds.
+ *
+ * Points are merged by the device pixels they are mapped to (see [PixelGrid]),
+ * so only the points which fall into the same pixel (or into the same pixel column for polylines) are merged.
+ * For a preview only the points which are drawn in it (the ones without the most significant bit) are taken into account.
+ * The latest decimation is stored in a figure, so subsequent replays of the same size (e.g. other tiles of an image) reuse it
+ */
+object RPlotDecimator {
+  private const val MIN_POINT_COUNT = 1024
+  private const val BIN_BIAS = 1 shl 15
+  private const val BIN_LIMIT = 1 shl 16
+  private const val BIT_63 = 1L shl 63
+
+  /**
+   * Maps packed coordinates to device pixels exactly as they are mapped by the replay of a viewport
+   */
+  data class PixelGrid(val x: Float, val y: Float, val width: Float, val height: Float, val resolution: Int, val pixelScale: Int) {
+    fun getColumn(point: Long): Int {
+      return toPixel((point ushr 32).toInt(), width, x)
+    }
+
+    fun getRow(point: Long): Int {
+      return toPixel(point.toInt(), height, y)
+    }
+
+    private fun toPixel(coordinate: Int, side: Float, origin: Float): Int {
+      // Note: left shift is used for sign extension as the most significant bit is reserved
+      val scale = ((coordinate shl 1) shr 17).toShort() / 8192.0f
+      val offset = coordinate.toShort() / 1024.0f
+      return floor((scale * side + offset * resolution + origin) * pixelScale).toInt()
+    }
+  }
+
+  /**
+   * Result of a decimation along with the replay parameters it was calculated for
+   */
+  internal class Decimation<T>(val grid: PixelGrid, val isPreview: Boolean, val result: T)
+
+  /**
+   * Keeps the first, the last, the lowest and the highest points of each run of consecutive points within the same pixel column.
+   * The decimated line covers the same pixel columns with the same vertical extent as the original one
+   */
+  fun decimate(polyline: RPolyline, grid: PixelGrid, isPreview: Boolean): RPolyline {
+    if (polyline.size < MIN_POINT_COUNT) {
+      return polyline
+    }
+    polyline.decimated?.let { cached ->
+      if (cached.grid == grid && cached.isPreview == isPreview) return cached.result
+    }
+    return calculateMinMax(polyline, grid, isPreview).also { polyline.decimated = Decimation(grid, isPreview, it) }
+  }
+
+  /**
+   * Keeps only the last of the circles whose centers fall into the same device pixel,
+   * since all of them have the same style and the last one is drawn on top.
+   * The caller must make sure both the stroke and the fill of [circles] are opaque, otherwise the hidden circles are still visible
+   */
+  fun decimate(circles: RFigure.Circles, grid: PixelGrid, isPreview: Boolean): LongArray {
+    if (circles.centers.size < MIN_POINT_COUNT) {
+      return circles.centers
+    }
+    circles.decimated?.let { cached ->
+      if (cached.grid == grid && cached.isPreview == isPreview) return cached.result
+    }
+    return calculateDensityBins(circles.centers, grid, isPreview).also { circles.decimated = Decimation(grid, isPreview, it) }
+  }
+
+  private fun isDrawn(point: Long, isPreview: Boolean): Boolean {
+    return !isPreview || point and BIT_63 == 0L
+  }
+
+  private fun calculateMinMax(polyline: RPolyline, grid: PixelGrid, isPreview: Boolean): RPolyline {
+    val points = polyline.points
+    val start = polyline.offset
+    val end = start + polyline.size
+    fun nextDrawn(from: Int): Int {
+      var index = from
+      while (index < end && !isDrawn(points[index], isPreview)) index++
+      return index
+    }
+    val drawnCount = if (isPreview) polyline.previewCount else polyline.size
+    val result = LongArray(drawnCount)
+    var count = 0
+    var runStart = nextDrawn(start)
+    while (runStart < end) {
+      val column = grid.getColumn(points[runStart])
+      var runEnd = nextDrawn(runStart + 1)
+      var last = runStart
+      var minIndex = runStart
+      var minRow = grid.getRow(points[runStart])
+      var maxIndex = runStart
+      var maxRow = minRow
+      while (runEnd < end && grid.getColumn(points[runEnd]) == column) {
+        val row = grid.getRow(points[runEnd])
+        if (row < minRow) {
+          minIndex = runEnd
+          minRow = row
+        }
+        if (row > maxRow) {
+          maxIndex = runEnd
+          maxRow = row
+        }
+        last = runEnd
+        runEnd = nextDrawn(runEnd + 1)
+      }
+      val lower = min(minIndex, maxIndex)
+      val upper = maxOf(minIndex, maxIndex)
+      // Note: indices are added in the original order without duplicates
+      for (index in intArrayOf(runStart, lower, upper, last)) {
+        if (count == 0 || index > result[count - 1].toInt()) {
+          result[count++] = index.toLong()
+        }
+      }
+      runStart = runEnd
+    }
+    if (count == drawnCount) {
+      return polyline
+    }
+    var previewCount = 0
+    val decimated = LongArray(count) { i ->
+      points[result[i].toInt()].also { point ->
+        if (point and BIT_63 == 0L) previewCount++
+      }
+    }
+    return RPolyline(decimated, previewCount)
+  }
+
+  private fun calculateDensityBins(centers: LongArray, grid: PixelGrid, isPreview: Boolean): LongArray {
+    val isKept = BooleanArray(centers.size)
+    // Note: each element is `bin shl 32 or index`, so after sorting the circles of the same bin go one after another
+    val entries = LongArray(centers.size)
+    var entryCount = 0
+    for ((index, center) in centers.withIndex()) {
+      if (!isDrawn(center, isPreview)) {
+        continue  // Note: it's not drawn anyway, so it mustn't displace the drawn circles of its bin
+      }
+      val column = grid.getColumn(center) + BIN_BIAS
+      val row = grid.getRow(center) + BIN_BIAS
+      if (column in 0 until BIN_LIMIT && row in 0 until BIN_LIMIT) {
+        entries[entryCount++] = (((column shl 16) or row).toLong() shl 32) or index.toLong()
+      } else {
+        // Note: centers that far outside of the image are too rare to bother, so they are kept as is
+        isKept[index] = true
+      }
+    }
+    entries.sort(0, entryCount)
+    for (i in 0 until entryCount) {
+      val isLastInBin = i == entryCount - 1 || (entries[i] ushr 32) != (entries[i + 1] ushr 32)
+      if (isLastInBin) {
+        isKept[entries[i].toInt()] = true
+      }
+    }
+    val keptCount = isKept.count { it }
+    if (keptCount == centers.size) {
+      return centers
+    }
+    val result = LongArray(keptCount)
+    var count = 0
+    for (index in centers.indices) {
+      if (isKept[index]) {
+        result[count++] = centers[index]
+      }
+    }
+    return result
+  }
+}
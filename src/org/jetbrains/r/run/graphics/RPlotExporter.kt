@@ -0,0 +1,78 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.runBackgroundableTask
+import com.intellij.openapi.project.Project
+import org.jetbrains.r.RBundle
+import org.jetbrains.r.notifications.RNotificationUtil
+import java.io.BufferedOutputStream
+import java.io.File
+
+/**
+ * Writes recorded plots as vector images.
+ * Unlike rescaling, this never calls R, so it works even when the interpreter is busy or terminated.
+ * Since vector images are scaled by their viewers, plots are replayed without decimation
+ * and the result doesn't depend on the screen which the IDE is running on
+ */
+object RPlotExporter {
+  private val LOGGER = Logger.getInstance(RPlotExporter::class.java)
+
+  enum class Format(val extension: String) {
+    SVG("svg"),
+    PDF("pdf"),
+  }
+
+  val extensions: List<String>
+    get() = Format.values().map { it.extension }
+
+  fun findFormat(extension: String): Format? {
+    return Format.values().find { it.extension == extension.toLowerCase() }
+  }
+
+  fun export(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, format: Format, file: File) {
+    when (format) {
+      Format.SVG -> file.bufferedWriter().use { writer ->
+        val provider = RSvgPlotterProvider(parameters, writer)
+        RPlotUtil.replay(plot, provider, darkMode = false, isPreview = false, isDecimationEnabled = false)
+        provider.finish()
+      }
+      Format.PDF -> BufferedOutputStream(file.outputStream()).use { output ->
+        val provider = RPdfPlotterProvider(parameters)
+        RPlotUtil.replay(plot, provider, darkMode = false, isPreview = false, isDecimationEnabled = false)
+        provider.finish(output)
+      }
+    }
+  }
+
+  /**
+   * Exports [plots] (mapped by their numbers) into [directory] on a background thread.
+   * Files are named `plot_<number>.<extension>`; a failure of a single plot doesn't interrupt the rest
+   */
+  fun exportAll(project: Project, plots: Map<Int, RPlot>, parameters: RGraphicsUtils.ScreenParameters, format: Format, directory: File) {
+    runBackgroundableTask(RBundle.message("graphics.panel.export.all.progress.title"), project, true) { indicator ->
+      indicator.isIndeterminate = false
+      val failed = mutableListOf<Int>()
+      for ((index, entry) in plots.entries.withIndex()) {
+        indicator.checkCanceled()
+        indicator.fraction = index.toDouble() / plots.size
+        val (number, plot) = entry
+        try {
+          export(plot, parameters, format, File(directory, "plot_$number.${format.extension}"))
+        } catch (e: ProcessCanceledException) {
+          throw e
+        } catch (e: Exception) {
+          LOGGER.warn("Cannot export plot #$number", e)
+          failed.add(number)
+        }
+      }
+      if (failed.isNotEmpty()) {
+        RNotificationUtil.notifyGraphicsError(project, RBundle.message("graphics.panel.export.all.failure", failed.joinToString(", ")))
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.ui.ImageUtil
+import org.jetbrains.concurrency.AsyncPromise
+import org.jetbrains.concurrency.CancellablePromise
+import java.awt.Rectangle
+import java.awt.image.BufferedImage
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.*
+import java.util.concurrent.Executor
+
+/**
+ * Rasterises plots on a background pool and keeps finished images in an LRU cache
+ * limited by the memory budget (`r.graphics.imageCacheSizeMb` registry key).
+ * Images are keyed by the plot, its size, resolution and dark mode,
+ * so switching between outputs or returning to a previous size of the tool window doesn't replay the plot again.
+ * Plots are held weakly: images of the plots which are no longer used are dropped from the cache along with them,
+ * so the cache retains nothing but images which are accounted by the budget.
+ * Concurrent requests for the same key share the same rendering.
+ */
+class RPlotRenderService(
+  private val budgetProvider: () -> Long = { defaultBudget },
+  private val executor: Executor = defaultExecutor,
+  private val rasterizer: (RPlot, RGraphicsUtils.ScreenParameters, Boolean, Boolean) -> BufferedImage = ::rasterizeInTiles
+) {
+  private class Key(plot: RPlot, queue: ReferenceQueue<RPlot>?, val width: Int, val height: Int, val resolution: Int?,
+                    val darkMode: Boolean, val isPreview: Boolean) : WeakReference<RPlot>(plot, queue) {
+    private val hash = Objects.hash(System.identityHashCode(plot), width, height, resolution, darkMode, isPreview)
+
+    override fun equals(other: Any?): Boolean {
+      // Note: plots are compared by identity since a deep comparison of their figures is as expensive as their replay.
+      // A key whose plot has been collected is equal to itself only, so it can still be removed from the cache
+      if (other === this) return true
+      return other is Key && get()?.let { it === other.get() } == true && width == other.width && height == other.height &&
+             resolution == other.resolution && darkMode == other.darkMode && isPreview == other.isPreview
+    }
+
+    override fun hashCode(): Int {
+      return hash
+    }
+  }
+
+  private val images = LinkedHashMap<Key, BufferedImage>(16, 0.75f, true)
+  private val pending = HashMap<Key, AsyncPromise<BufferedImage>>()
+  private val collectedPlots = ReferenceQueue<RPlot>()
+
+  /**
+   * Approximate number of bytes retained by all cached images
+   */
+  @get:Synchronized
+  var totalSize = 0L
+    private set
+
+  fun getCached(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean): BufferedImage? {
+    return synchronized(this) {
+      dropCollected()
+      images[createKey(plot, parameters, darkMode, isPreview, null)]
+    }
+  }
+
+  /**
+   * Returns a promise of the rasterised [plot] which is resolved on a background thread.
+   * Cancellation of the promise prevents the rendering from being started if it hasn't started yet
+   */
+  fun render(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean): CancellablePromise<BufferedImage> {
+    val key = createKey(plot, parameters, darkMode, isPreview, collectedPlots)
+    val promise = synchronized(this) {
+      dropCollected()
+      images[key]?.let { image ->
+        return AsyncPromise<BufferedImage>().also { it.setResult(image) }
+      }
+      pending[key]?.takeIf { !it.isCancelled }?.let { return it }
+      AsyncPromise<BufferedImage>().also { pending[key] = it }
+    }
+    executor.execute {
+      try {
+        if (!promise.isCancelled) {
+          val image = rasterizer(plot, parameters, darkMode, isPreview)
+          put(key, image)
+          promise.setResult(image)
+        }
+      } catch (e: Throwable) {
+        promise.setError(e)
+      } finally {
+        synchronized(this) {
+          pending.remove(key, promise)
+        }
+      }
+    }
+    return promise
+  }
+
+  @Synchronized
+  fun clear() {
+    images.clear()
+    totalSize = 0L
+  }
+
+  @Synchronized
+  private fun dropCollected() {
+    while (true) {
+      val key = collectedPlots.poll() ?: return
+      images.remove(key)?.let { totalSize -= sizeOf(it) }
+      pending.remove(key)
+    }
+  }
+
+  @Synchronized
+  private fun put(key: Key, image: BufferedImage) {
+    images.put(key, image)?.let { totalSize -= sizeOf(it) }
+    totalSize += sizeOf(image)
+    val budget = budgetProvider()
+    val iterator = images.entries.iterator()
+    while (totalSize > budget && iterator.hasNext()) {
+      val entry = iterator.next()
+      if (entry.key == key) continue
+      iterator.remove()
+      totalSize -= sizeOf(entry.value)
+    }
+  }
+
+  private fun createKey(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean,
+                        queue: ReferenceQueue<RPlot>?): Key {
+    return Key(plot, queue, parameters.width, parameters.height, parameters.resolution, darkMode, isPreview)
+  }
+
+  companion object {
+    private const val CACHE_SIZE_REGISTRY_KEY = "r.graphics.imageCacheSizeMb"
+
+    /**
+     * Plots which are simpler than this are not split into tiles
+     */
+    private const val TILING_COMPLEXITY_THRESHOLD = 10000
+    private const val MIN_TILE_HEIGHT = 64
+    private const val MIN_PARALLEL_LAYER_COUNT = 8
+
+    private val parallelism = Runtime.getRuntime().availableProcessors()
+
+    private val defaultBudget: Long
+      get() = Registry.intValue(CACHE_SIZE_REGISTRY_KEY, 128) * 1024L * 1024L
+
+    private val defaultExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("RPlotRenderService", parallelism)
+
+    val instance = RPlotRenderService()
+
+    private fun sizeOf(image: BufferedImage): Long {
+      return ImageUtil.getRealWidth(image).toLong() * ImageUtil.getRealHeight(image) * Int.SIZE_BYTES
+    }
+
+    /**
+     * Plots with many layers (e.g. faceted ones, where each panel is a layer of its own) are replayed layer group by layer group
+     * into separate buffers (see [RPlotUtil.replayLayersInParallel]) since each figure is visited only once this way.
+     * Other plots are split into horizontal stripes which are replayed in parallel.
+     * Figures outside of a stripe are clipped by Java2D, so the result is the same as of a single replay
+     */
+    private fun rasterizeInTiles(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean): BufferedImage {
+      val image = ImageUtil.createImage(parameters.width, parameters.height, BufferedImage.TYPE_INT_ARGB)
+      val complexity = if (isPreview) plot.previewComplexity else plot.totalComplexity
+      if (complexity >= TILING_COMPLEXITY_THRESHOLD && plot.layers.size >= MIN_PARALLEL_LAYER_COUNT && parallelism > 1) {
+        // Note: groups are submitted to the shared pool rather than to the bounded one in order not to wait for its own tasks
+        RPlotUtil.replayLayersInParallel(image, plot, parameters, darkMode, isPreview, AppExecutorUtil.getAppExecutorService(), parallelism)
+        return image
+      }
+      val tileCount = if (complexity < TILING_COMPLEXITY_THRESHOLD) 1 else minOf(parallelism, parameters.height / MIN_TILE_HEIGHT)
+      if (tileCount <= 1) {
+        RPlotUtil.replayTile(image, plot, parameters, darkMode, isPreview, null)
+        return image
+      }
+      val tileHeight = (parameters.height + tileCount - 1) / tileCount
+      val tiles = (0 until tileCount).map { index ->
+        val y = index * tileHeight
+        Rectangle(0, y, parameters.width, minOf(tileHeight, parameters.height - y))
+      }
+      // Note: tiles are submitted to the shared pool rather than to the bounded one in order not to wait for its own tasks
+      val futures = tiles.drop(1).map { tile ->
+        AppExecutorUtil.getAppExecutorService().submit {
+          RPlotUtil.replayTile(image, plot, parameters, darkMode, isPreview, tile)
+        }
+      }
+      RPlotUtil.replayTile(image, plot, parameters, darkMode, isPreview, tiles.first())
+      futures.forEach { it.get() }
+      return image
+    }
+  }
+}
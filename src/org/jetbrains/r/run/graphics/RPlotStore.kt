@@ -0,0 +1,458 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import org.jetbrains.r.rinterop.Plot
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.Executor
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Append-only store of recorded plots shared by all graphics devices.
+ *
+ * Plots are kept as deflated blobs addressed by the SHA-256 of their content, so identical plots
+ * (e.g. the same chunk executed several times) are stored once.
+ * Blobs live in a single file ([BLOBS_FILE_NAME]) and are referenced by `(directory, number)` pairs
+ * from an append-only log ([REFERENCES_FILE_NAME]), in which the last record for a pair wins.
+ * When the size of blobs exceeds the disk quota (`r.graphics.plotStoreQuotaMb` registry key),
+ * the store is compacted on [executor]: unreferenced blobs are dropped first, then the least recently used ones.
+ * The log is rewritten as well once most of its records are overridden.
+ * References of directories which no longer exist are dropped when the store is loaded and compacted,
+ * and the ones of a directory which is cleaned are dropped by [removeDirectory], so a directory re-created at the same path
+ * doesn't get the plots of the previous one.
+ * A plot evicted from the store is reported as missing, so callers fall back to the PNG snapshot.
+ *
+ * Hashing, compression and decompression of plots are done without holding the lock of the store,
+ * so only appending to files and lookups are serialized
+ */
+class RPlotStore(private val root: Path,
+                 private val executor: Executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("RPlotStore", 1),
+                 private val quotaProvider: () -> Long = { defaultQuota }) {
+  private class BlobInfo(val offset: Long, val length: Int, var lastAccess: Long)
+
+  private val blobs = HashMap<String, BlobInfo>()
+  private val references = HashMap<String, String>()
+  private var accessCounter = 0L
+  private var blobsSize = 0L
+  private var referenceRecordCount = 0
+  private var isLoaded = false
+  private var isCompactionScheduled = false
+
+  /**
+   * Held for reading while a blob is read from the file and for writing while the file is replaced by the compaction.
+   * Note: it must be acquired before the monitor of the store
+   */
+  private val fileLock = ReentrantReadWriteLock()
+
+  private val blobsFile: Path
+    get() = root.resolve(BLOBS_FILE_NAME)
+
+  private val referencesFile: Path
+    get() = root.resolve(REFERENCES_FILE_NAME)
+
+  /**
+   * Total size (in bytes) of the blobs file
+   */
+  val size: Long
+    @Synchronized
+    get() {
+      ensureLoaded()
+      return blobsSize
+    }
+
+  fun put(directory: File, number: Int, plot: Plot) {
+    val content = plot.toByteArray()
+    val hash = calculateHash(content)
+    val compressed = if (!hasBlob(hash)) compress(content) else null
+    val shouldCompact = synchronized(this) {
+      if (!blobs.containsKey(hash)) {
+        // Note: the blob might have been evicted by the compaction since the check above
+        appendBlob(hash, compressed ?: compress(content))
+      }
+      touch(hash)
+      addReference(createKey(directory, number), hash)
+      scheduleCompactionIfNeeded()
+    }
+    if (shouldCompact) {
+      executor.execute { compactInBackground() }
+    }
+  }
+
+  fun get(directory: File, number: Int): Plot? {
+    val compressed = fileLock.read {
+      val info = synchronized(this) {
+        ensureLoaded()
+        val hash = references[createKey(directory, number)] ?: return null
+        touch(hash)
+        blobs[hash] ?: return null
+      }
+      readBlob(info)
+    }
+    return InflaterInputStream(ByteArrayInputStream(compressed)).use { Plot.parseFrom(it) }
+  }
+
+  fun remove(directory: File, number: Int) {
+    val shouldCompact = synchronized(this) {
+      ensureLoaded()
+      val key = createKey(directory, number)
+      if (references.containsKey(key)) {
+        addReference(key, REMOVED_HASH)
+      }
+      scheduleCompactionIfNeeded()
+    }
+    if (shouldCompact) {
+      executor.execute { compactInBackground() }
+    }
+  }
+
+  /**
+   * Removes the plots of [directory] and of all the directories nested into it (e.g. before it's deleted or cleaned)
+   */
+  fun removeDirectory(directory: File) {
+    val path = directory.absolutePath
+    val shouldCompact = synchronized(this) {
+      ensureLoaded()
+      val keys = references.keys.filter { key ->
+        val keyDirectory = getDirectory(key)
+        keyDirectory == path || keyDirectory.startsWith(path + File.separatorChar)
+      }
+      if (keys.isNotEmpty()) {
+        addReferences(keys, REMOVED_HASH)
+      }
+      scheduleCompactionIfNeeded()
+    }
+    if (shouldCompact) {
+      executor.execute { compactInBackground() }
+    }
+  }
+
+  @Synchronized
+  private fun hasBlob(hash: String): Boolean {
+    ensureLoaded()
+    return blobs.containsKey(hash)
+  }
+
+  private fun readBlob(info: BlobInfo): ByteArray {
+    // Note: the file isn't memory-mapped since a mapping would prevent its replacement during compaction on Windows
+    return FileChannel.open(blobsFile, StandardOpenOption.READ).use { channel ->
+      ByteArray(info.length).also { content ->
+        val buffer = ByteBuffer.wrap(content)
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, info.offset + buffer.position()) < 0) throw EOFException()
+        }
+      }
+    }
+  }
+
+  private fun touch(hash: String) {
+    blobs[hash]?.lastAccess = ++accessCounter
+  }
+
+  private fun appendBlob(hash: String, compressed: ByteArray) {
+    Files.createDirectories(root)
+    DataOutputStream(BufferedOutputStream(Files.newOutputStream(blobsFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND))).use { output ->
+      writeBlob(output, hash, compressed)
+    }
+    val offset = blobsSize + headerSize(hash)
+    blobs[hash] = BlobInfo(offset, compressed.size, 0L)
+    blobsSize = offset + compressed.size
+  }
+
+  private fun addReference(key: String, hash: String) {
+    addReferences(listOf(key), hash)
+  }
+
+  private fun addReferences(keys: List<String>, hash: String) {
+    for (key in keys) {
+      if (hash == REMOVED_HASH) references.remove(key) else references[key] = hash
+    }
+    Files.createDirectories(root)
+    Files.newBufferedWriter(referencesFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND).use { writer ->
+      for (key in keys) {
+        writer.write("$hash $key\n")
+      }
+    }
+    referenceRecordCount += keys.size
+  }
+
+  private fun ensureLoaded() {
+    if (isLoaded) {
+      return
+    }
+    isLoaded = true
+    try {
+      loadBlobs()
+      loadReferences()
+    } catch (e: IOException) {
+      LOGGER.warn("Cannot load plot store from $root, it will be recreated", e)
+      blobs.clear()
+      references.clear()
+      blobsSize = 0L
+      referenceRecordCount = 0
+      Files.deleteIfExists(blobsFile)
+      Files.deleteIfExists(referencesFile)
+    }
+  }
+
+  private fun loadBlobs() {
+    if (!Files.exists(blobsFile)) {
+      return
+    }
+    val fileSize = Files.size(blobsFile)
+    var position = 0L
+    DataInputStream(BufferedInputStream(Files.newInputStream(blobsFile))).use { input ->
+      while (position < fileSize) {
+        // Note: the last record might be incomplete if IDE has been terminated during the writing
+        val isComplete = try {
+          if (input.readInt() != BLOB_MAGIC) throw IOException("Corrupted plot store at $position")
+          val hash = input.readUTF()
+          val length = input.readInt()
+          val offset = position + headerSize(hash)
+          if (offset + length > fileSize) {
+            false
+          } else {
+            skipFully(input, length)
+            blobs[hash] = BlobInfo(offset, length, ++accessCounter)
+            position = offset + length
+            true
+          }
+        } catch (e: EOFException) {
+          false
+        }
+        if (!isComplete) {
+          break
+        }
+      }
+    }
+    if (position < fileSize) {
+      truncate(position)
+    }
+    blobsSize = position
+  }
+
+  private fun skipFully(input: DataInputStream, length: Int) {
+    var remaining = length
+    while (remaining > 0) {
+      val skipped = input.skipBytes(remaining)
+      if (skipped <= 0) throw EOFException()
+      remaining -= skipped
+    }
+  }
+
+  private fun truncate(size: Long) {
+    FileChannel.open(blobsFile, StandardOpenOption.WRITE).use { it.truncate(size) }
+  }
+
+  private fun loadReferences() {
+    if (!Files.exists(referencesFile)) {
+      return
+    }
+    Files.newBufferedReader(referencesFile).useLines { lines ->
+      for (line in lines) {
+        val separator = line.indexOf(' ')
+        if (separator < 0) continue
+        val hash = line.substring(0, separator)
+        val key = line.substring(separator + 1)
+        if (hash == REMOVED_HASH) references.remove(key) else references[key] = hash
+        referenceRecordCount++
+      }
+    }
+    references.values.retainAll(blobs.keys)
+    val existingDirectories = HashMap<String, Boolean>()
+    references.keys.removeIf { key ->
+      !existingDirectories.getOrPut(getDirectory(key)) { File(getDirectory(key)).isDirectory }
+    }
+  }
+
+  /**
+   * Drops the references of the directories which have been deleted since the store was loaded.
+   * Existence of directories is checked without holding the lock, the missing ones are checked again under it
+   * since they might have been re-created in the meantime
+   */
+  private fun dropReferencesOfMissingDirectories() {
+    val directories = synchronized(this) { references.keys.mapTo(HashSet()) { getDirectory(it) } }
+    val missing = directories.filterTo(HashSet()) { !File(it).isDirectory }
+    if (missing.isEmpty()) {
+      return
+    }
+    synchronized(this) {
+      missing.removeIf { File(it).isDirectory }
+      // Note: the log is rewritten by the compaction right after, so the removal isn't recorded separately
+      references.keys.removeIf { getDirectory(it) in missing }
+    }
+  }
+
+  /**
+   * @return whether the caller must submit the compaction to [executor] after releasing the lock
+   */
+  private fun scheduleCompactionIfNeeded(): Boolean {
+    if (isCompactionScheduled || (blobsSize <= quotaProvider() && !hasTooManyReferenceRecords())) {
+      return false
+    }
+    isCompactionScheduled = true
+    return true
+  }
+
+  private fun hasTooManyReferenceRecords(): Boolean {
+    return referenceRecordCount > maxOf(MIN_REFERENCE_RECORD_COUNT, references.size * MAX_RECORDS_PER_REFERENCE)
+  }
+
+  private fun compactInBackground() {
+    try {
+      dropReferencesOfMissingDirectories()
+      if (size > quotaProvider()) {
+        compactBlobs()
+      } else {
+        synchronized(this) {
+          rewriteReferences()
+        }
+      }
+    } catch (e: IOException) {
+      LOGGER.warn("Cannot compact plot store at $root", e)
+    } finally {
+      synchronized(this) {
+        isCompactionScheduled = false
+      }
+    }
+  }
+
+  /**
+   * Rewrites the store keeping only the most recently used referenced blobs which fit into [COMPACTION_RATIO] of the quota.
+   * Kept blobs are copied without holding the lock since appends don't move them,
+   * then the blobs used in the meantime are copied and the file is replaced under the lock
+   */
+  private fun compactBlobs() {
+    val budget = (quotaProvider() * COMPACTION_RATIO).toLong()
+    val (kept, accessMark) = synchronized(this) {
+      val referenced = references.values.toSet()
+      var keptSize = 0L
+      val kept = blobs.entries
+        .filter { it.key in referenced }
+        .sortedByDescending { it.value.lastAccess }
+        .takeWhile { entry ->
+          keptSize += headerSize(entry.key) + entry.value.length
+          keptSize <= budget
+        }
+        .map { Pair(it.key, it.value) }
+        .sortedBy { it.second.offset }
+      Pair(kept, accessCounter)
+    }
+    val temporaryBlobsFile = root.resolve("$BLOBS_FILE_NAME.tmp")
+    val newOffsets = HashMap<String, Long>()
+    var newSize = 0L
+    DataOutputStream(BufferedOutputStream(Files.newOutputStream(temporaryBlobsFile))).use { output ->
+      for ((hash, info) in kept) {
+        writeBlob(output, hash, readBlob(info))
+        newOffsets[hash] = newSize + headerSize(hash)
+        newSize += headerSize(hash) + info.length
+      }
+    }
+    fileLock.write {
+      synchronized(this) {
+        // Note: blobs appended or accessed during the copying are kept since they have just been used
+        val recent = blobs.entries.filter { it.key !in newOffsets && it.value.lastAccess > accessMark }.sortedBy { it.value.offset }
+        if (recent.isNotEmpty()) {
+          DataOutputStream(BufferedOutputStream(Files.newOutputStream(temporaryBlobsFile, StandardOpenOption.APPEND))).use { output ->
+            for ((hash, info) in recent) {
+              writeBlob(output, hash, readBlob(info))
+              newOffsets[hash] = newSize + headerSize(hash)
+              newSize += headerSize(hash) + info.length
+            }
+          }
+        }
+        Files.move(temporaryBlobsFile, blobsFile, StandardCopyOption.REPLACE_EXISTING)
+        val newBlobs = newOffsets.mapValues { (hash, offset) ->
+          val info = blobs.getValue(hash)
+          BlobInfo(offset, info.length, info.lastAccess)
+        }
+        blobs.clear()
+        blobs.putAll(newBlobs)
+        blobsSize = newSize
+        references.values.retainAll(blobs.keys)
+        rewriteReferences()
+      }
+    }
+  }
+
+  private fun rewriteReferences() {
+    val temporaryReferencesFile = root.resolve("$REFERENCES_FILE_NAME.tmp")
+    Files.newBufferedWriter(temporaryReferencesFile).use { writer ->
+      for ((key, hash) in references) {
+        writer.write("$hash $key\n")
+      }
+    }
+    Files.move(temporaryReferencesFile, referencesFile, StandardCopyOption.REPLACE_EXISTING)
+    referenceRecordCount = references.size
+  }
+
+  companion object {
+    private val LOGGER = Logger.getInstance(RPlotStore::class.java)
+
+    private const val QUOTA_REGISTRY_KEY = "r.graphics.plotStoreQuotaMb"
+    private const val BLOBS_FILE_NAME = "plots.blobs"
+    private const val REFERENCES_FILE_NAME = "plots.refs"
+    private const val BLOB_MAGIC = 0x52504c54  // "RPLT"
+    private const val REMOVED_HASH = "-"
+    private const val COMPACTION_RATIO = 0.75
+    private const val MIN_REFERENCE_RECORD_COUNT = 1024
+    private const val MAX_RECORDS_PER_REFERENCE = 2
+
+    private val defaultQuota: Long
+      get() = Registry.intValue(QUOTA_REGISTRY_KEY, 512) * 1024L * 1024L
+
+    val instance by lazy {
+      RPlotStore(Paths.get(PathManager.getSystemPath(), "rplugin", "cache", "plots"))
+    }
+
+    private fun createKey(directory: File, number: Int): String {
+      return "${directory.absolutePath}|$number"
+    }
+
+    private fun getDirectory(key: String): String {
+      return key.substringBeforeLast('|')
+    }
+
+    private fun compress(content: ByteArray): ByteArray {
+      return ByteArrayOutputStream().also { output ->
+        DeflaterOutputStream(output).use { it.write(content) }
+      }.toByteArray()
+    }
+
+    private fun writeBlob(output: DataOutputStream, hash: String, compressed: ByteArray) {
+      output.writeInt(BLOB_MAGIC)
+      output.writeUTF(hash)
+      output.writeInt(compressed.size)
+      output.write(compressed)
+    }
+
+    private fun calculateHash(content: ByteArray): String {
+      val digest = MessageDigest.getInstance("SHA-256").digest(content)
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * Size of [Int] magic, [DataOutputStream.writeUTF] of an ASCII hash and [Int] length
+     */
+    private fun headerSize(hash: String): Int {
+      return Int.SIZE_BYTES + 2 + hash.length + Int.SIZE_BYTES
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.jetbrains.r.run.graphics
 
 import com.intellij.openapi.editor.colors.EditorColorsManager
 import com.intellij.util.ui.ImageUtil
+import com.intellij.util.ui.UIUtil
 import org.jetbrains.annotations.Nls
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.ImageInverter
 import org.jetbrains.r.RBundle
@@ -9,13 +10,21 @@ import org.jetbrains.r.rinterop.*
 import java.awt.Color
 import java.awt.Graphics2D
 import java.awt.Image
+import java.awt.Rectangle
 import java.awt.RenderingHints
 import java.awt.geom.Rectangle2D
 import java.awt.image.BufferedImage
 import java.io.File
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
 import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
 import javax.swing.JLabel
 import kotlin.math.abs
+import kotlin.math.ceil
+import kotlin.math.floor
 import kotlin.math.max
 import kotlin.math.min
 
@@ -23,16 +32,37 @@ object RPlotUtil {
   private const val PROTOCOL_VERSION = 11
 
   fun writeTo(directory: File, plot: Plot, number: Int) {
-    val plotFile = getPlotFile(directory, number)
-    plot.writeTo(plotFile.outputStream())
+    RPlotStore.instance.put(directory, number, plot)
   }
 
   fun readFrom(directory: File, number: Int): Plot? {
+    return RPlotStore.instance.get(directory, number) ?: readLegacyFile(directory, number)
+  }
+
+  fun remove(directory: File, number: Int) {
+    RPlotStore.instance.remove(directory, number)
+  }
+
+  /**
+   * Removes all the plots recorded in [directory] and in the directories nested into it.
+   * Must be called when the directory is deleted or cleaned, so the next plots with the same numbers don't resolve to the old ones
+   */
+  fun removeAll(directory: File) {
+    RPlotStore.instance.removeDirectory(directory)
+  }
+
+  /**
+   * Reads a plot recorded by previous versions of the plugin which stored every plot in its own file
+   */
+  private fun readLegacyFile(directory: File, number: Int): Plot? {
     val plotFile = getPlotFile(directory, number)
     if (!plotFile.exists()) {
       return null
     }
-    return Plot.parseFrom(plotFile.inputStream())
+    // Note: the file is memory-mapped so the message is parsed without intermediate copies of its content
+    return FileChannel.open(plotFile.toPath(), StandardOpenOption.READ).use { channel ->
+      Plot.parseFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()))
+    }
   }
 
   fun fitTheme(image: BufferedImage, darkMode: Boolean): BufferedImage {
@@ -66,7 +96,8 @@ object RPlotUtil {
     val colors = plot.colorList.map { convert(it) }
     val strokes = plot.strokeList.map { convert(it) }
     val viewports = plot.viewportList.map { convert(it) }
-    val layers = plot.layerList.map { convert(it) }
+    val pointBuffer = PointBuffer(plot.layerList.sumBy { layer -> layer.figureList.sumBy { countPoints(it) } })
+    val layers = plot.layerList.map { convert(it, pointBuffer) }
     val error = convertError(plot.error)
     return RPlot(number, fonts, colors, strokes, viewports, layers, plot.previewComplexity, plot.totalComplexity, error)
   }
@@ -143,18 +174,66 @@ object RPlotUtil {
     return RViewport.Free(viewport.from, viewport.to, viewport.parentIndex)
   }
 
-  private fun convert(layer: Layer): RLayer {
-    val figures = layer.figureList.map { convert(it) }
+  private fun countPoints(figure: Figure): Int {
+    return when (figure.kindCase) {
+      Figure.KindCase.PATH -> figure.path.subPathList.sumBy { it.pointCount }
+      Figure.KindCase.POLYGON -> figure.polygon.polyline.pointCount
+      Figure.KindCase.POLYLINE -> figure.polyline.polyline.pointCount
+      else -> 0
+    }
+  }
+
+  private fun convert(layer: Layer, pointBuffer: PointBuffer): RLayer {
+    val figures = ArrayList<RFigure>(layer.figureCount)
+    var index = 0
+    while (index < layer.figureCount) {
+      val figure = layer.getFigure(index)
+      if (figure.kindCase == Figure.KindCase.CIRCLE) {
+        val end = findSameCirclesEnd(layer, index)
+        figures.add(convertCircles(layer, index, end))
+        index = end
+      } else {
+        figures.add(convert(figure, pointBuffer))
+        index++
+      }
+    }
     return RLayer(layer.viewportIndex, layer.clippingAreaIndex, figures, layer.isAxisText)
   }
 
-  private fun convert(figure: Figure): RFigure {
+  /**
+   * @return end (exclusive) of the run of circles which differ from the one at [start] only by their centers
+   */
+  private fun findSameCirclesEnd(layer: Layer, start: Int): Int {
+    val first = layer.getFigure(start).circle
+    var end = start + 1
+    while (end < layer.figureCount) {
+      val figure = layer.getFigure(end)
+      if (figure.kindCase != Figure.KindCase.CIRCLE) break
+      val circle = figure.circle
+      if (circle.radius != first.radius || circle.strokeIndex != first.strokeIndex ||
+          circle.colorIndex != first.colorIndex || circle.fillIndex != first.fillIndex) break
+      end++
+    }
+    return end
+  }
+
+  private fun convertCircles(layer: Layer, start: Int, end: Int): RFigure {
+    val first = layer.getFigure(start).circle
+    if (end - start == 1) {
+      return RFigure.Circle(first.center, first.radius, first.strokeIndex, first.colorIndex, first.fillIndex)
+    }
+    val centers = LongArray(end - start) { i ->
+      layer.getFigure(start + i).circle.center
+    }
+    return RFigure.Circles(centers, first.radius, first.strokeIndex, first.colorIndex, first.fillIndex)
+  }
+
+  private fun convert(figure: Figure, pointBuffer: PointBuffer): RFigure {
     return when (val case = figure.kindCase) {
-      Figure.KindCase.CIRCLE -> convert(figure.circle)
       Figure.KindCase.LINE -> convert(figure.line)
-      Figure.KindCase.PATH -> convert(figure.path)
-      Figure.KindCase.POLYGON -> convert(figure.polygon)
-      Figure.KindCase.POLYLINE -> convert(figure.polyline)
+      Figure.KindCase.PATH -> convert(figure.path, pointBuffer)
+      Figure.KindCase.POLYGON -> convert(figure.polygon, pointBuffer)
+      Figure.KindCase.POLYLINE -> convert(figure.polyline, pointBuffer)
       Figure.KindCase.RASTER -> convert(figure.raster)
       Figure.KindCase.RECTANGLE -> convert(figure.rectangle)
       Figure.KindCase.TEXT -> convert(figure.text)
@@ -162,26 +241,22 @@ object RPlotUtil {
     }
   }
 
-  private fun convert(circle: CircleFigure): RFigure {
-    return RFigure.Circle(circle.center, circle.radius, circle.strokeIndex, circle.colorIndex, circle.fillIndex)
-  }
-
   private fun convert(line: LineFigure): RFigure {
     return RFigure.Line(line.from, line.to, line.strokeIndex, line.colorIndex)
   }
 
-  private fun convert(path: PathFigure): RFigure {
-    val subPaths = path.subPathList.map { convert(it) }
+  private fun convert(path: PathFigure, pointBuffer: PointBuffer): RFigure {
+    val subPaths = path.subPathList.map { pointBuffer.put(it) }
     val winding = if (path.winding) RWinding.NON_ZERO else RWinding.EVEN_ODD
     return RFigure.Path(subPaths, winding, path.strokeIndex, path.colorIndex, path.fillIndex)
   }
 
-  private fun convert(polygon: PolygonFigure): RFigure {
-    return RFigure.Polygon(convert(polygon.polyline), polygon.strokeIndex, polygon.colorIndex, polygon.fillIndex)
+  private fun convert(polygon: PolygonFigure, pointBuffer: PointBuffer): RFigure {
+    return RFigure.Polygon(pointBuffer.put(polygon.polyline), polygon.strokeIndex, polygon.colorIndex, polygon.fillIndex)
   }
 
-  private fun convert(polyline: PolylineFigure): RFigure {
-    return RFigure.Polyline(convert(polyline.polyline), polyline.strokeIndex, polyline.colorIndex)
+  private fun convert(polyline: PolylineFigure, pointBuffer: PointBuffer): RFigure {
+    return RFigure.Polyline(pointBuffer.put(polyline.polyline), polyline.strokeIndex, polyline.colorIndex)
   }
 
   private fun convert(raster: RasterFigure): RFigure {
@@ -198,27 +273,27 @@ object RPlotUtil {
 
   private fun convert(image: RasterImage): BufferedImage {
     return ImageUtil.createImage(image.width, image.height, BufferedImage.TYPE_INT_ARGB).also { outputImage ->
-      val data = image.data
-      for (y in 0 until image.height) {
-        for (x in 0 until image.width) {
-          // Note: extract ARGB color from little-endian byte string
-          val baseIndex = ((y * image.width) + x) * 4
-          val b = data.byteAt(baseIndex).toInt()
-          val g = data.byteAt(baseIndex + 1).toInt()
-          val r = data.byteAt(baseIndex + 2).toInt()
-          val a = data.byteAt(baseIndex + 3).toInt()
-          val argb = (a shl 24) or ((r and 0xff) shl 16) or ((g and 0xff) shl 8) or (b and 0xff)
-          outputImage.setRGB(x, y, argb)
-        }
-      }
+      // Note: pixels are stored as little-endian ARGB integers, so they can be copied in bulk
+      val pixels = IntArray(image.width * image.height)
+      image.data.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pixels)
+      outputImage.setRGB(0, 0, image.width, image.height, pixels, 0, image.width)
     }
   }
 
-  private fun convert(polyline: Polyline): RPolyline {
-    val points = LongArray(polyline.pointCount) { i ->
-      polyline.getPoint(i)
+  /**
+   * Packed points of all polylines of a plot stored in a single array
+   */
+  private class PointBuffer(capacity: Int) {
+    private val points = LongArray(capacity)
+    private var size = 0
+
+    fun put(polyline: Polyline): RPolyline {
+      val offset = size
+      for (i in 0 until polyline.pointCount) {
+        points[size++] = polyline.getPoint(i)
+      }
+      return RPolyline(points, polyline.previewCount, offset, polyline.pointCount)
     }
-    return RPolyline(points, polyline.previewCount)
   }
 
   private fun convertError(error: Int): RPlotError? {
@@ -227,34 +302,162 @@ object RPlotUtil {
 
   fun createImage(plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean): BufferedImage {
     return ImageUtil.createImage(parameters.width, parameters.height, BufferedImage.TYPE_INT_ARGB).also { image ->
-      val graphics = image.graphics as Graphics2D
-      graphics.font = JLabel().font
-      graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON)
-      graphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE)
-      val provider = RCanvasPlotterProvider(parameters, graphics)
+      replayTile(image, plot, parameters, darkMode, isPreview, null)
+    }
+  }
+
+  /**
+   * Replays [plot] into the area [tile] of [image] (or into the whole image if [tile] is `null`).
+   * Different tiles of the same image might be replayed concurrently
+   */
+  fun replayTile(image: BufferedImage, plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean, isPreview: Boolean,
+                 tile: Rectangle?) {
+    val graphics = createGraphics(image)
+    try {
+      tile?.let { graphics.clip = it }
+      val provider = RCanvasPlotterProvider(parameters, graphics, tile)
       replay(plot, provider, darkMode, isPreview)
+    } finally {
+      graphics.dispose()
     }
   }
 
-  private fun replay(plot: RPlot, provider: RPlotterProvider, darkMode: Boolean, isPreview: Boolean) {
-    val helper = ReplayHelper(plot, provider, darkMode, isPreview)
+  /**
+   * Splits layers of [plot] into at most [groupCount] groups of consecutive layers with similar complexity,
+   * replays each group into its own off-screen buffer and composites the buffers into [image] in the original order.
+   * The first group is replayed by the calling thread, the rest are submitted to [executor].
+   * A buffer covers only the union of clipping areas of its layers (nothing can be drawn outside of them anyway),
+   * so faceted plots with dozens of panels don't allocate a full-size buffer per group
+   */
+  fun replayLayersInParallel(image: BufferedImage, plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean,
+                             isPreview: Boolean, executor: ExecutorService, groupCount: Int) {
+    val graphics = createGraphics(image)
+    try {
+      val helper = ReplayHelper(plot, RCanvasPlotterProvider(parameters, graphics), darkMode, isPreview)
+      if (groupCount <= 1 || !helper.canReplayLayers) {
+        helper.replay()
+        return
+      }
+      val imageBounds = Rectangle(0, 0, parameters.width, parameters.height)
+      val groups = splitLayers(plot.layers, groupCount, isPreview)
+      val replayIntoBuffer = { layers: List<RLayer> ->
+        val bounds = calculateBounds(layers, helper.clippingAreas).intersection(imageBounds)
+        if (!bounds.isEmpty) replayGroup(plot, layers, bounds, parameters, darkMode, isPreview) else null
+      }
+      val futures = groups.drop(1).map { layers ->
+        executor.submit(Callable { replayIntoBuffer(layers) })
+      }
+      val buffers = listOf(replayIntoBuffer(groups.first())) + futures.map { it.get() }
+      for (buffer in buffers) {
+        buffer?.let { (bounds, groupImage) ->
+          UIUtil.drawImage(graphics, groupImage, bounds.x, bounds.y, null)
+        }
+      }
+    } finally {
+      graphics.dispose()
+    }
+  }
+
+  /**
+   * Splits [layers] into at most [groupCount] groups of consecutive layers with approximately equal total complexity
+   */
+  internal fun splitLayers(layers: List<RLayer>, groupCount: Int, isPreview: Boolean): List<List<RLayer>> {
+    val complexities = layers.map { estimateComplexity(it, isPreview) }
+    val groups = mutableListOf<List<RLayer>>()
+    var start = 0
+    var remaining = complexities.sum()
+    var accumulated = 0L
+    for ((index, complexity) in complexities.withIndex()) {
+      accumulated += complexity
+      val groupsLeft = groupCount - groups.size
+      // Note: the target is recalculated for each group so a single heavy layer doesn't leave the remaining groups empty
+      if (index == layers.lastIndex || (groupsLeft > 1 && accumulated * groupsLeft >= remaining)) {
+        groups.add(layers.subList(start, index + 1))
+        start = index + 1
+        remaining -= accumulated
+        accumulated = 0L
+      }
+    }
+    return groups
+  }
+
+  private fun estimateComplexity(layer: RLayer, isPreview: Boolean): Long {
+    var complexity = 0L
+    for (figure in layer.figures) {
+      complexity += when (figure) {
+        is RFigure.Circles -> figure.centers.size
+        is RFigure.Path -> figure.subPaths.sumBy { if (isPreview) it.previewCount else it.size }
+        is RFigure.Polygon -> if (isPreview) figure.polyline.previewCount else figure.polyline.size
+        is RFigure.Polyline -> if (isPreview) figure.polyline.previewCount else figure.polyline.size
+        else -> 1
+      }
+    }
+    return complexity
+  }
+
+  private fun calculateBounds(layers: List<RLayer>, clippingAreas: Array<Rectangle2D.Float>): Rectangle {
+    val union = Rectangle2D.Float()
+    for ((index, layer) in layers.withIndex()) {
+      val area = clippingAreas[layer.clippingAreaIndex]
+      if (index == 0) union.setRect(area) else union.add(area)
+    }
+    // Note: bounds are expanded by a pixel since strokes and antialiasing might slightly exceed the clipping area
+    val x = floor(union.x).toInt() - 1
+    val y = floor(union.y).toInt() - 1
+    val right = ceil(union.x + union.width).toInt() + 1
+    val bottom = ceil(union.y + union.height).toInt() + 1
+    return Rectangle(x, y, right - x, bottom - y)
+  }
+
+  private fun replayGroup(plot: RPlot, layers: List<RLayer>, bounds: Rectangle, parameters: RGraphicsUtils.ScreenParameters,
+                          darkMode: Boolean, isPreview: Boolean): Pair<Rectangle, BufferedImage> {
+    val buffer = ImageUtil.createImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB)
+    val graphics = createGraphics(buffer)
+    try {
+      // Note: the translation is integral, so the antialiasing is the same as for the sequential replay
+      graphics.translate(-bounds.x, -bounds.y)
+      val provider = RCanvasPlotterProvider(parameters, graphics, bounds)
+      ReplayHelper(plot, provider, darkMode, isPreview).replay(layers)
+    } finally {
+      graphics.dispose()
+    }
+    return Pair(bounds, buffer)
+  }
+
+  private fun createGraphics(image: BufferedImage): Graphics2D {
+    return image.createGraphics().apply {
+      font = JLabel().font
+      setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON)
+      setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE)
+    }
+  }
+
+  /**
+   * @param isDecimationEnabled whether points which fall into the same device pixel might be dropped (see [RPlotDecimator]).
+   * Must be `false` for the output which is going to be scaled later, e.g. exported vector images
+   */
+  fun replay(plot: RPlot, provider: RPlotterProvider, darkMode: Boolean, isPreview: Boolean, isDecimationEnabled: Boolean = true) {
+    val helper = ReplayHelper(plot, provider, darkMode, isPreview, isDecimationEnabled)
     helper.replay()
   }
 
-  private class ReplayHelper(val plot: RPlot, provider: RPlotterProvider, private val darkMode: Boolean, private val isPreview: Boolean) {
+  private class ReplayHelper(val plot: RPlot, provider: RPlotterProvider, private val darkMode: Boolean, private val isPreview: Boolean,
+                             private val isDecimationEnabled: Boolean = true) {
     private val width = provider.parameters.width
     private val height = provider.parameters.height
     private val resolution = provider.parameters.resolution ?: RGraphicsUtils.DEFAULT_RESOLUTION
+    private val pixelScale = provider.pixelScale
 
     private val editorColorsManager = EditorColorsManager.getInstance()
     private val colorScheme = editorColorsManager.globalScheme
     private val inverter = ImageInverter(colorScheme.defaultForeground, colorScheme.defaultBackground)
 
     private val plotter = provider.create(plot.fonts.map { scale(it) }, fitTheme(plot.colors), plot.strokes.map { scale(it) })
-    private val clippingAreas = Array(plot.viewports.size) { Rectangle2D.Float() }
+    val clippingAreas = Array(plot.viewports.size) { Rectangle2D.Float() }
     private val gapWidths = IntArray(plot.fonts.size) { 0 }
 
     private var currentViewport = Rectangle2D.Float()
+    private var currentPixelGrid = RPlotDecimator.PixelGrid(0.0f, 0.0f, 0.0f, 0.0f, resolution, pixelScale)
 
     init {
       clippingAreas[0] = Rectangle2D.Float(0.0f, 0.0f, width.toFloat(), height.toFloat())
@@ -263,12 +466,16 @@ object RPlotUtil {
       }
     }
 
+    /**
+     * Whether layers can be replayed separately, i.e. the plot neither has an error nor should be replaced with a message
+     */
+    val canReplayLayers: Boolean
+      get() = plot.error == null && fitsDisplay()
+
     fun replay() {
       if (plot.error == null) {
         if (fitsDisplay()) {
-          for (layer in plot.layers) {
-            replay(layer)
-          }
+          replay(plot.layers)
         } else {
           showMessage(MARGINS_TEXT)
         }
@@ -277,6 +484,12 @@ object RPlotUtil {
       }
     }
 
+    fun replay(layers: List<RLayer>) {
+      for (layer in layers) {
+        replay(layer)
+      }
+    }
+
     private fun fitsDisplay(): Boolean {
       return clippingAreas.find { it.width <= 0 || it.height <= 0 } == null
     }
@@ -291,6 +504,7 @@ object RPlotUtil {
 
     private fun replay(layer: RLayer) {
       currentViewport = clippingAreas[layer.viewportIndex]
+      currentPixelGrid = currentViewport.let { RPlotDecimator.PixelGrid(it.x, it.y, it.width, it.height, resolution, pixelScale) }
       plotter.setClippingArea(clippingAreas[layer.clippingAreaIndex])
       if (!layer.isAxisText) {
         for (figure in layer.figures) {
@@ -337,6 +551,7 @@ object RPlotUtil {
     private fun replay(figure: RFigure) {
       when (figure) {
         is RFigure.Circle -> replay(figure)
+        is RFigure.Circles -> replay(figure)
         is RFigure.Line -> replay(figure)
         is RFigure.Path -> replay(figure)
         is RFigure.Polygon -> replay(figure)
@@ -358,6 +573,20 @@ object RPlotUtil {
       plotter.drawCircle(x, y, radius, circle.strokeIndex, colorIndex, circle.fillIndex)
     }
 
+    private fun replay(circles: RFigure.Circles) {
+      val radius = calculate(circles.radius, currentViewport.height)
+      val colorIndex = filterColorIndex(circles.strokeIndex, circles.colorIndex, circles.fillIndex)
+      // Note: circles hidden under the topmost one are still visible through translucent colors, so they can't be dropped
+      val isOpaque = isOpaque(colorIndex) && isOpaque(circles.fillIndex)
+      val centers = if (isDecimationEnabled && isOpaque) RPlotDecimator.decimate(circles, currentPixelGrid, isPreview) else circles.centers
+      for (center in centers) {
+        if (isPreview && (center and BIT_63 != 0L)) {
+          continue
+        }
+        plotter.drawCircle(calculateX(center), calculateY(center), radius, circles.strokeIndex, colorIndex, circles.fillIndex)
+      }
+    }
+
     private fun replay(line: RFigure.Line) {
       val xFrom = calculateX(line.from)
       val yFrom = calculateY(line.from)
@@ -384,8 +613,9 @@ object RPlotUtil {
     }
 
     private fun replay(polyline: RFigure.Polyline) {
-      val xs = calculateXs(polyline.polyline)
-      val ys = calculateYs(polyline.polyline)
+      val decimated = if (isDecimationEnabled) RPlotDecimator.decimate(polyline.polyline, currentPixelGrid, isPreview) else polyline.polyline
+      val xs = calculateXs(decimated)
+      val ys = calculateYs(decimated)
       plotter.drawPolyline(xs, ys, polyline.strokeIndex, polyline.colorIndex)
     }
 
@@ -394,9 +624,8 @@ object RPlotUtil {
       val yFrom = calculateY(raster.from)
       val xTo = calculateX(raster.to)
       val yTo = calculateY(raster.to)
-      val multiplier = if (RGraphicsUtils.isHiDpi) 2 else 1
-      val width = ((xTo - xFrom) * multiplier).toInt()
-      val height = ((yTo - yFrom) * multiplier).toInt()
+      val width = ((xTo - xFrom) * pixelScale).toInt()
+      val height = ((yTo - yFrom) * pixelScale).toInt()
       if (width > 0 && height > 0) {
         val original = fitTheme(raster.image)
         val mode = if (raster.interpolate) Image.SCALE_SMOOTH else Image.SCALE_FAST
@@ -424,6 +653,10 @@ object RPlotUtil {
       plotter.drawText(text.text, x, y, text.angle, text.anchor, text.fontIndex, text.colorIndex)
     }
 
+    private fun isOpaque(colorIndex: Int): Boolean {
+      return colorIndex < 0 || plot.colors[colorIndex].alpha == 255
+    }
+
     private fun filterColorIndex(strokeIndex: Int, colorIndex: Int, fillIndex: Int): Int {
       val skipStroke = isPreview && strokeIndex >= 0 && fillIndex >= 0 && plot.strokes[strokeIndex].width < STROKE_WIDTH_THRESHOLD
       return if (skipStroke) -1 else colorIndex
@@ -439,10 +672,12 @@ object RPlotUtil {
 
     private inline fun calculateArray(polyline: RPolyline, mapper: (Long) -> Float): FloatArray {
       val points = polyline.points
+      val offset = polyline.offset
       return if (isPreview) {
         FloatArray(polyline.previewCount).also { coordinates ->
           var index = 0
-          for (point in points) {
+          for (i in offset until offset + polyline.size) {
+            val point = points[i]
             if (point and BIT_63 == 0L) {
               coordinates[index] = mapper(point)
               index++
@@ -450,8 +685,8 @@ object RPlotUtil {
           }
         }
       } else {
-        FloatArray(points.size) { i ->
-          mapper(points[i])
+        FloatArray(polyline.size) { i ->
+          mapper(points[offset + i])
         }
       }
     }
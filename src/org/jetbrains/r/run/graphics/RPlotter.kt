@@ -6,6 +6,13 @@ import java.awt.geom.Rectangle2D
 
 interface RPlotterProvider {
   val parameters: RGraphicsUtils.ScreenParameters
+
+  /**
+   * Count of output pixels per unit of [parameters] along each axis (used to choose the resolution of rasters and decimation)
+   */
+  val pixelScale: Int
+    get() = if (RGraphicsUtils.isHiDpi) 2 else 1
+
   fun create(fonts: List<RFont>, colors: List<Color>, strokes: List<RStroke>): RPlotter
 }
 
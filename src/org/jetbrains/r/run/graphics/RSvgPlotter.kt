@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import com.intellij.openapi.util.text.StringUtil
+import java.awt.Color
+import java.awt.Font
+import java.awt.Shape
+import java.awt.geom.PathIterator
+import java.awt.geom.Rectangle2D
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.io.Writer
+import java.util.*
+import javax.imageio.ImageIO
+
+class RSvgPlotterProvider(override val parameters: RGraphicsUtils.ScreenParameters, private val writer: Writer) : RPlotterProvider {
+  private var plotter: RSvgPlotter? = null
+
+  override val pixelScale: Int
+    get() = RVectorPlotter.RASTER_SCALE
+
+  override fun create(fonts: List<RFont>, colors: List<Color>, strokes: List<RStroke>): RPlotter {
+    return RSvgPlotter(fonts, colors, strokes, parameters, writer).also { plotter = it }
+  }
+
+  /**
+   * Completes the document written by the last created plotter
+   */
+  fun finish() {
+    plotter?.finish()
+  }
+}
+
+/**
+ * Writes a plot as an SVG document. The document is completed by [finish]
+ */
+class RSvgPlotter(
+  fonts: List<RFont>,
+  colors: List<Color>,
+  strokes: List<RStroke>,
+  parameters: RGraphicsUtils.ScreenParameters,
+  private val writer: Writer
+) : RVectorPlotter(fonts, colors, strokes) {
+  private var clipCount = 0
+  private var isInsideClip = false
+
+  init {
+    val width = parameters.width
+    val height = parameters.height
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+    writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" ")
+    writer.write("width=\"$width\" height=\"$height\" viewBox=\"0 0 $width $height\">\n")
+  }
+
+  fun finish() {
+    closeClip()
+    writer.write("</svg>\n")
+    writer.flush()
+  }
+
+  override fun setClip(area: Rectangle2D.Float) {
+    closeClip()
+    val id = "clip${clipCount++}"
+    writer.write("<clipPath id=\"$id\"><rect x=\"${format(area.x)}\" y=\"${format(area.y)}\" ")
+    writer.write("width=\"${format(area.width)}\" height=\"${format(area.height)}\"/></clipPath>\n")
+    writer.write("<g clip-path=\"url(#$id)\">\n")
+    isInsideClip = true
+  }
+
+  override fun fill(shape: Shape, color: Color, isEvenOdd: Boolean) {
+    writer.write("<path d=\"${createPathData(shape)}\" ${createPaint("fill", color)}")
+    if (isEvenOdd) {
+      writer.write(" fill-rule=\"evenodd\"")
+    }
+    writer.write("/>\n")
+  }
+
+  override fun stroke(shape: Shape, color: Color, stroke: RStroke) {
+    writer.write("<path d=\"${createPathData(shape)}\" fill=\"none\" ${createPaint("stroke", color)}")
+    writer.write(" stroke-width=\"${format(stroke.width)}\" stroke-linecap=\"${convert(stroke.cap)}\" stroke-linejoin=\"${convert(stroke.join)}\"")
+    if (stroke.join == RLineJoin.MITER) {
+      writer.write(" stroke-miterlimit=\"${format(stroke.miterLimit)}\"")
+    }
+    stroke.pattern?.let { pattern ->
+      writer.write(" stroke-dasharray=\"${pattern.joinToString(",") { format(it) }}\"")
+    }
+    writer.write("/>\n")
+  }
+
+  override fun text(text: String, x: Float, y: Float, angle: Float, offset: Float, font: Font, color: Color) {
+    writer.write("<text transform=\"translate(${format(x)},${format(y)}) rotate(${format(-angle)})\" x=\"${format(offset)}\" y=\"0\"")
+    writer.write(" font-family=\"${StringUtil.escapeXmlEntities(font.family)}\" font-size=\"${format(font.size2D)}\"")
+    if (font.isBold) {
+      writer.write(" font-weight=\"bold\"")
+    }
+    if (font.isItalic) {
+      writer.write(" font-style=\"italic\"")
+    }
+    writer.write(" ${createPaint("fill", color)} xml:space=\"preserve\">${StringUtil.escapeXmlEntities(text)}</text>\n")
+  }
+
+  override fun image(image: BufferedImage, x: Float, y: Float, width: Float, height: Float, angle: Float) {
+    val png = ByteArrayOutputStream().also { ImageIO.write(image, "png", it) }.toByteArray()
+    writer.write("<image transform=\"translate(${format(x)},${format(y)}) rotate(${format(angle)})\"")
+    writer.write(" width=\"${format(width)}\" height=\"${format(height)}\" preserveAspectRatio=\"none\"")
+    writer.write(" xlink:href=\"data:image/png;base64,${Base64.getEncoder().encodeToString(png)}\"/>\n")
+  }
+
+  private fun closeClip() {
+    if (isInsideClip) {
+      writer.write("</g>\n")
+      isInsideClip = false
+    }
+  }
+
+  private fun createPathData(shape: Shape): String {
+    return buildString {
+      forEachSegment(shape) { type, coordinates ->
+        when (type) {
+          PathIterator.SEG_MOVETO -> append("M${format(coordinates[0])} ${format(coordinates[1])}")
+          PathIterator.SEG_LINETO -> append("L${format(coordinates[0])} ${format(coordinates[1])}")
+          PathIterator.SEG_CUBICTO -> {
+            append("C${format(coordinates[0])} ${format(coordinates[1])} ")
+            append("${format(coordinates[2])} ${format(coordinates[3])} ")
+            append("${format(coordinates[4])} ${format(coordinates[5])}")
+          }
+          PathIterator.SEG_CLOSE -> append("Z")
+        }
+      }
+    }
+  }
+
+  private fun createPaint(attribute: String, color: Color): String {
+    val paint = "$attribute=\"rgb(${color.red},${color.green},${color.blue})\""
+    return if (color.alpha < 255) "$paint $attribute-opacity=\"${format(color.alpha / 255.0f)}\"" else paint
+  }
+
+  private fun convert(cap: RLineCap): String {
+    return when (cap) {
+      RLineCap.ROUND -> "round"
+      RLineCap.BUTT -> "butt"
+      RLineCap.SQUARE -> "square"
+    }
+  }
+
+  private fun convert(join: RLineJoin): String {
+    return when (join) {
+      RLineJoin.ROUND -> "round"
+      RLineJoin.MITER -> "miter"
+      RLineJoin.BEVEL -> "bevel"
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.graphics
+
+import java.awt.*
+import java.awt.geom.*
+import java.awt.image.BufferedImage
+import javax.swing.ImageIcon
+import javax.swing.JLabel
+
+/**
+ * Base of plotters which write a vector image instead of rasterising a plot.
+ * Figures are converted to AWT shapes exactly like [RCanvasPlotter] does,
+ * so implementations have only to serialize fills, strokes, text and images
+ */
+abstract class RVectorPlotter(fonts: List<RFont>, private val colors: List<Color>, private val strokes: List<RStroke>) : RPlotter {
+  private val metricsGraphics = BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics().apply {
+    setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON)
+  }
+
+  private val fonts = fonts.map { convert(it, metricsGraphics.font) }
+
+  protected abstract fun setClip(area: Rectangle2D.Float)
+
+  protected abstract fun fill(shape: Shape, color: Color, isEvenOdd: Boolean)
+
+  protected abstract fun stroke(shape: Shape, color: Color, stroke: RStroke)
+
+  /**
+   * Draws [text] starting at `(offset, 0)` in the coordinate system translated to `(x, y)` and rotated by [angle] degrees counterclockwise
+   */
+  protected abstract fun text(text: String, x: Float, y: Float, angle: Float, offset: Float, font: Font, color: Color)
+
+  /**
+   * Draws [image] with its top left corner at `(x, y)` rotated by [angle] degrees clockwise
+   */
+  protected abstract fun image(image: BufferedImage, x: Float, y: Float, width: Float, height: Float, angle: Float)
+
+  override fun setClippingArea(area: Rectangle2D.Float) {
+    setClip(area)
+  }
+
+  override fun getWidthOf(text: String, fontIndex: Int): Int {
+    return metricsGraphics.getFontMetrics(fonts[fontIndex]).stringWidth(text)
+  }
+
+  override fun drawCircle(x: Float, y: Float, radius: Float, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+    val diameter = radius * 2.0f
+    fillAndStroke(Ellipse2D.Float(x - radius, y - radius, diameter, diameter), false, strokeIndex, colorIndex, fillIndex)
+  }
+
+  override fun drawLine(xFrom: Float, yFrom: Float, xTo: Float, yTo: Float, strokeIndex: Int, colorIndex: Int) {
+    fillAndStroke(Line2D.Float(xFrom, yFrom, xTo, yTo), false, strokeIndex, colorIndex, -1)
+  }
+
+  override fun drawPath(subPaths: List<Pair<FloatArray, FloatArray>>, winding: RWinding, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+    val path = Path2D.Float().also { path ->
+      for ((xs, ys) in subPaths) {
+        addSubPath(path, xs, ys, isClosed = true)
+      }
+    }
+    fillAndStroke(path, winding == RWinding.EVEN_ODD, strokeIndex, colorIndex, fillIndex)
+  }
+
+  override fun drawPolygon(xs: FloatArray, ys: FloatArray, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+    val polygon = Path2D.Float().also { addSubPath(it, xs, ys, isClosed = true) }
+    fillAndStroke(polygon, false, strokeIndex, colorIndex, fillIndex)
+  }
+
+  override fun drawPolyline(xs: FloatArray, ys: FloatArray, strokeIndex: Int, colorIndex: Int) {
+    val polyline = Path2D.Float().also { addSubPath(it, xs, ys, isClosed = false) }
+    fillAndStroke(polyline, false, strokeIndex, colorIndex, -1)
+  }
+
+  override fun drawRaster(image: Image, x: Float, y: Float, angle: Float) {
+    // Note: the image is already scaled to [RASTER_SCALE] pixels per unit (see `ReplayHelper.replay(RFigure.Raster)`)
+    val loaded = ImageIcon(image).image
+    val width = loaded.getWidth(null)
+    val height = loaded.getHeight(null)
+    if (width <= 0 || height <= 0) {
+      return
+    }
+    val buffered = BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB).also { buffered ->
+      buffered.createGraphics().apply {
+        drawImage(loaded, 0, 0, null)
+        dispose()
+      }
+    }
+    image(buffered, x, y, width.toFloat() / RASTER_SCALE, height.toFloat() / RASTER_SCALE, angle)
+  }
+
+  override fun drawRectangle(x: Float, y: Float, width: Float, height: Float, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+    fillAndStroke(Rectangle2D.Float(x, y, width, height), false, strokeIndex, colorIndex, fillIndex)
+  }
+
+  override fun drawText(text: String, x: Float, y: Float, angle: Float, anchor: Float, fontIndex: Int, colorIndex: Int) {
+    if (colorIndex >= 0) {
+      val font = fonts[fontIndex]
+      val width = metricsGraphics.getFontMetrics(font).stringWidth(text)
+      val offset = (-width * anchor).toInt().toFloat()
+      text(text, x, y, angle, offset, font, colors[colorIndex])
+    }
+  }
+
+  private fun fillAndStroke(shape: Shape, isEvenOdd: Boolean, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+    if (fillIndex >= 0) {
+      fill(shape, colors[fillIndex], isEvenOdd)
+    }
+    if (colorIndex >= 0 && strokeIndex >= 0) {
+      stroke(shape, colors[colorIndex], strokes[strokeIndex])
+    }
+  }
+
+  companion object {
+    /**
+     * Count of pixels per unit of embedded rasters.
+     * It's fixed so an exported image doesn't depend on the screen which the IDE is running on
+     */
+    const val RASTER_SCALE = 2
+
+    private fun convert(font: RFont, defaultFont: Font): Font {
+      val baseFont = if (font.name == null) JLabel().font ?: defaultFont else Font(font.name, Font.PLAIN, 12)  // `size` has no effect
+      val style = when (font.style) {
+        RFontStyle.PLAIN -> Font.PLAIN
+        RFontStyle.BOLD -> Font.BOLD
+        RFontStyle.ITALIC -> Font.ITALIC
+        RFontStyle.BOLD_ITALIC -> Font.BOLD + Font.ITALIC
+      }
+      return baseFont.deriveFont(font.size).deriveFont(style)
+    }
+
+    private fun addSubPath(path: Path2D.Float, xs: FloatArray, ys: FloatArray, isClosed: Boolean) {
+      if (xs.isEmpty()) {
+        return
+      }
+      path.moveTo(xs[0], ys[0])
+      for (i in 1 until xs.size) {
+        path.lineTo(xs[i], ys[i])
+      }
+      if (isClosed) {
+        path.closePath()
+      }
+    }
+
+    /**
+     * Calls [segment] for each segment of the shape. Quadratic curves are converted to cubic ones
+     */
+    internal inline fun forEachSegment(shape: Shape, segment: (type: Int, coordinates: FloatArray) -> Unit) {
+      val iterator = shape.getPathIterator(null)
+      val coordinates = FloatArray(6)
+      var lastX = 0.0f
+      var lastY = 0.0f
+      while (!iterator.isDone) {
+        when (val type = iterator.currentSegment(coordinates)) {
+          PathIterator.SEG_QUADTO -> {
+            val cubic = floatArrayOf(
+              lastX + 2.0f / 3.0f * (coordinates[0] - lastX), lastY + 2.0f / 3.0f * (coordinates[1] - lastY),
+              coordinates[2] + 2.0f / 3.0f * (coordinates[0] - coordinates[2]), coordinates[3] + 2.0f / 3.0f * (coordinates[1] - coordinates[3]),
+              coordinates[2], coordinates[3]
+            )
+            segment(PathIterator.SEG_CUBICTO, cubic)
+            lastX = coordinates[2]
+            lastY = coordinates[3]
+          }
+          PathIterator.SEG_MOVETO, PathIterator.SEG_LINETO -> {
+            segment(type, coordinates)
+            lastX = coordinates[0]
+            lastY = coordinates[1]
+          }
+          PathIterator.SEG_CUBICTO -> {
+            segment(type, coordinates)
+            lastX = coordinates[4]
+            lastY = coordinates[5]
+          }
+          else -> segment(type, coordinates)
+        }
+        iterator.next()
+      }
+    }
+
+    internal fun format(value: Float): String {
+      val rounded = Math.round(value * 100.0f) / 100.0f
+      return if (rounded == rounded.toInt().toFloat()) rounded.toInt().toString() else rounded.toString()
+    }
+  }
+}
@@ -8,12 +8,14 @@ import com.intellij.icons.AllIcons
 import com.intellij.openapi.Disposable
 import com.intellij.openapi.actionSystem.*
 import com.intellij.openapi.actionSystem.impl.ActionToolbarImpl
+import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.project.DumbAwareAction
 import com.intellij.openapi.project.DumbAwareToggleAction
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.ui.MessageDialogBuilder
 import com.intellij.openapi.ui.TextFieldWithBrowseButton
 import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.ThrowableComputable
 import com.intellij.ui.DocumentAdapter
 import com.intellij.util.ui.JBUI
 import org.jetbrains.annotations.Nls
@@ -26,7 +28,9 @@ import org.jetbrains.r.RBundle
 import org.jetbrains.r.actions.RDumbAwareBgtAction
 import org.jetbrains.r.actions.RDumbAwareBgtToggleAction
 import org.jetbrains.r.rendering.chunk.ChunkGraphicsManager
+import org.jetbrains.r.run.graphics.RGraphicsUtils
 import org.jetbrains.r.run.graphics.RPlot
+import org.jetbrains.r.run.graphics.RPlotExporter
 import org.jetbrains.r.run.graphics.RSnapshot
 import org.jetbrains.r.run.graphics.ui.forms.RGraphicsExportDialogForm
 import java.awt.*
@@ -35,6 +39,7 @@ import java.awt.event.ComponentEvent
 import java.awt.event.FocusAdapter
 import java.awt.event.FocusEvent
 import java.io.File
+import java.io.IOException
 import java.nio.file.Path
 import java.nio.file.Paths
 import javax.imageio.ImageIO
@@ -160,18 +165,36 @@ class RGraphicsExportDialog(
   }
 
   private fun trySaveImage(): File? {
+    val format = form.formatComboBox.selectedItem as String
+    RPlotExporter.findFormat(format)?.let { vectorFormat ->
+      return tryExportPlot(vectorFormat)
+    }
     return wrapper.image?.let { image ->
       outputDirectory?.let { directory ->
         fileName?.let { name ->
-          val format = form.formatComboBox.selectedItem as String
           val location = Paths.get(directory, "$name.$format").toFile()
           location.takeIf { checkLocation(it) }?.also {
             ImageIO.write(image, format, location)
-            graphicsManager.apply {
-              extractImageNumber(name)?.let { number ->
-                imageNumber = number
-              }
-              outputDirectory = directory
+            updateGraphicsManager(directory, name)
+          }
+        }
+      }
+    }
+  }
+
+  private fun tryExportPlot(format: RPlotExporter.Format): File? {
+    return wrapper.plot?.let { plot ->
+      imageDimension?.let { size ->
+        outputDirectory?.let { directory ->
+          fileName?.let { name ->
+            val location = Paths.get(directory, "$name.${format.extension}").toFile()
+            location.takeIf { checkLocation(it) }?.also {
+              val parameters = RGraphicsUtils.ScreenParameters(size, imageResolution)
+              val title = RBundle.message("graphics.panel.export.dialog.exporting")
+              ProgressManager.getInstance().runProcessWithProgressSynchronously(ThrowableComputable<Unit, IOException> {
+                RPlotExporter.export(plot, parameters, format, location)
+              }, title, false, project)
+              updateGraphicsManager(directory, name)
             }
           }
         }
@@ -179,6 +202,15 @@ class RGraphicsExportDialog(
     }
   }
 
+  private fun updateGraphicsManager(directory: String, name: String) {
+    graphicsManager.apply {
+      extractImageNumber(name)?.let { number ->
+        imageNumber = number
+      }
+      outputDirectory = directory
+    }
+  }
+
   private fun checkLocation(location: File): Boolean {
     if (!location.exists()) {
       return true
@@ -240,6 +272,11 @@ class RGraphicsExportDialog(
       for (format in InlayOutputUtil.getAvailableFormats()) {
         addItem(format)
       }
+      if (wrapper.plot != null) {
+        for (extension in RPlotExporter.extensions) {
+          addItem(extension)
+        }
+      }
       prototypeDisplayValue = "XXXX"  // Note: setup preferred width
     }
   }
@@ -11,7 +11,6 @@ import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.Disposer
 import com.intellij.util.ui.update.MergingUpdateQueue
 import com.intellij.util.ui.update.Update
-import org.jetbrains.concurrency.runAsync
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.GraphicsPanel
 import org.jetbrains.r.RBundle
 import org.jetbrains.r.rendering.chunk.ChunkGraphicsManager
@@ -281,9 +280,8 @@ class RGraphicsPanelWrapper(project: Project, private val parent: Disposable) {
   }
 
   private fun rescale(plot: RPlot, newSize: Dimension, newResolution: Int?) {
-    runAsync {
-      val parameters = RGraphicsUtils.ScreenParameters(newSize, newResolution)
-      val image = RPlotUtil.createImage(plot, parameters, manager.isDarkModeEnabled, isPreview = false)
+    val parameters = RGraphicsUtils.ScreenParameters(newSize, newResolution)
+    RPlotRenderService.instance.render(plot, parameters, manager.isDarkModeEnabled, isPreview = false).onSuccess { image ->
       localResolution = newResolution
       oldStandalone = isStandalone
       graphicsPanel.showBufferedImage(image)
@@ -13,12 +13,14 @@ import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.editor.colors.EditorColorsManager
 import com.intellij.openapi.project.DumbAware
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.Messages
 import com.intellij.openapi.ui.SimpleToolWindowPanel
 import com.intellij.util.ui.update.MergingUpdateQueue
 import com.intellij.util.ui.update.Update
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.ClipboardUtils
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.CHANGE_DARK_MODE_TOPIC
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.GraphicsPanel
+import org.jetbrains.plugins.notebooks.visualization.r.inlays.components.InlayOutputUtil
 import org.jetbrains.plugins.notebooks.visualization.r.ui.ToolbarUtil
 import org.jetbrains.r.RBundle
 import org.jetbrains.r.actions.RDumbAwareBgtAction
@@ -28,6 +30,7 @@ import org.jetbrains.r.settings.RGraphicsSettings
 import java.awt.Dimension
 import java.awt.event.ComponentAdapter
 import java.awt.event.ComponentEvent
+import java.io.File
 import javax.swing.JComponent
 
 class RGraphicsToolWindow(private val project: Project) : SimpleToolWindowPanel(true, true) {
@@ -166,6 +169,7 @@ class RGraphicsToolWindow(private val project: Project) : SimpleToolWindowPanel(
       ),
       listOf(
         Triple(EXPORT_GRAPHICS_ACTION_ID, hasOutputs, this::exportCurrentOutput),
+        Triple(EXPORT_ALL_GRAPHICS_ACTION_ID, hasOutputs, this::exportAllOutputs),
         Triple(COPY_GRAPHICS_ACTION_ID, hasOutputs, this::copyCurrentOutput),
         Triple(ZOOM_GRAPHICS_ACTION_ID, hasOutputs, this::zoomCurrentOutput),
         Triple(CLEAR_GRAPHICS_ACTION_ID, hasOutputs, this::clearCurrentOutput)
@@ -209,6 +213,18 @@ class RGraphicsToolWindow(private val project: Project) : SimpleToolWindowPanel(
     }
   }
 
+  private fun exportAllOutputs() {
+    val outputs = lastOutputs.takeIf { it.isNotEmpty() } ?: return
+    val directory = InlayOutputUtil.chooseDirectory(project, EXPORT_ALL_DIRECTORY_TITLE, EXPORT_ALL_DIRECTORY_DESCRIPTION) ?: return
+    val formats = RPlotExporter.Format.values()
+    val options = formats.map { it.extension.toUpperCase() } + Messages.getCancelButton()
+    val choice = Messages.showDialog(project, EXPORT_ALL_FORMAT_MESSAGE, EXPORT_ALL_FORMAT_TITLE, options.toTypedArray(), 0, null)
+    val format = formats.getOrNull(choice) ?: return
+    val parameters = RGraphicsUtils.ScreenParameters(getAdjustedScreenDimension(), resolution)
+    val plots = outputs.associate { it.number to it.plot }
+    RPlotExporter.exportAll(project, plots, parameters, format, File(directory.path))
+  }
+
   private fun copyCurrentOutput() {
     lastOutput?.let {
       val image = if (usesPlotViewer) plotViewer.image else graphicsPanel.image
@@ -353,6 +369,7 @@ class RGraphicsToolWindow(private val project: Project) : SimpleToolWindowPanel(
     private const val PREVIOUS_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RPreviousGraphicsAction"
     private const val NEXT_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RNextGraphicsAction"
     private const val EXPORT_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RExportGraphicsAction"
+    private const val EXPORT_ALL_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RExportAllGraphicsAction"
     private const val COPY_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RCopyGraphicsAction"
     private const val ZOOM_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RZoomGraphicsAction"
     private const val CLEAR_GRAPHICS_ACTION_ID = "org.jetbrains.r.run.graphics.ui.RClearGraphicsAction"
@@ -373,6 +390,11 @@ class RGraphicsToolWindow(private val project: Project) : SimpleToolWindowPanel(
     private val DARK_MODE_TITLE = RBundle.message("graphics.panel.action.darkMode.title")
     private val DARK_MODE_DESCRIPTION = RBundle.message("graphics.panel.action.darkMode.description")
 
+    private val EXPORT_ALL_DIRECTORY_TITLE = RBundle.message("graphics.panel.export.dialog.choose.directory.title")
+    private val EXPORT_ALL_DIRECTORY_DESCRIPTION = RBundle.message("graphics.panel.export.all.choose.directory.description")
+    private val EXPORT_ALL_FORMAT_TITLE = RBundle.message("graphics.panel.export.all.format.title")
+    private val EXPORT_ALL_FORMAT_MESSAGE = RBundle.message("graphics.panel.export.all.format.message")
+
     private val Dimension.isValid: Boolean
       get() = width > 0 && height > 0
 
@@ -12,6 +12,8 @@ class RNextGraphicsAction : DumbAwareActionAdapter()
 
 class RExportGraphicsAction : DumbAwareActionAdapter()
 
+class RExportAllGraphicsAction : DumbAwareActionAdapter()
+
 class RCopyGraphicsAction : DumbAwareActionAdapter()
 
 class RZoomGraphicsAction : DumbAwareActionAdapter()
@@ -1,15 +1,16 @@
 package org.jetbrains.r.run.graphics.ui
 
 import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.invokeLater
 import com.intellij.openapi.editor.colors.EditorColorsListener
 import com.intellij.openapi.editor.colors.EditorColorsManager
 import com.intellij.openapi.project.Project
 import com.intellij.reference.SoftReference
 import com.intellij.util.concurrency.AppExecutorUtil
-import com.intellij.util.ui.ImageUtil
+import org.jetbrains.concurrency.CancellablePromise
 import org.jetbrains.r.run.graphics.RGraphicsUtils
 import org.jetbrains.r.run.graphics.RPlot
-import org.jetbrains.r.run.graphics.RPlotUtil
+import org.jetbrains.r.run.graphics.RPlotRenderService
 import org.jetbrains.r.settings.RGraphicsSettings
 import java.awt.Dimension
 import java.awt.Graphics
@@ -23,6 +24,10 @@ class RPlotViewer(project: Project, parent: Disposable) : JComponent() {
 
   @Volatile
   private var cachedImage = SoftReference<BufferedImage>(null)
+  private var cachedPlot: RPlot? = null
+  private var cachedParameters: RGraphicsUtils.ScreenParameters? = null
+  private var cachedDarkMode = false
+  private var pendingImage: CancellablePromise<BufferedImage>? = null
 
   @Volatile
   private var darkMode = RGraphicsSettings.isDarkModeEnabled(project)
@@ -56,13 +61,19 @@ class RPlotViewer(project: Project, parent: Disposable) : JComponent() {
   val parameters: RGraphicsUtils.ScreenParameters
     get() = RGraphicsUtils.ScreenParameters(size, resolution)
 
+  /**
+   * Image of the plot which fits the viewer.
+   * If it isn't ready yet, the previous image of the same plot is returned (if any) and the actual one is requested in background,
+   * so the UI thread never waits for a plot to be replayed
+   */
   val image: BufferedImage?
     get() = plot?.let { plot ->
-      getOrCreateImage(plot)
+      getActualImage(plot) ?: cachedImage.get()?.takeIf { cachedPlot === plot }.also { requestImage(plot) }
     }
 
   init {
     project.messageBus.connect(parent).subscribe(EditorColorsManager.TOPIC, EditorColorsListener {
+      RPlotRenderService.instance.clear()
       refresh()
     })
     RGraphicsSettings.addDarkModeListener(project, parent) { isEnabled ->
@@ -71,34 +82,54 @@ class RPlotViewer(project: Project, parent: Disposable) : JComponent() {
   }
 
   private fun refresh() {
-    cachedImage.clear()
+    pendingImage?.cancel()
+    pendingImage = null
     repaint()
   }
 
   override fun paintComponent(g: Graphics) {
     super.paintComponent(g)
-    image?.let { image ->
+    val plot = plot ?: return
+    val image = getActualImage(plot)
+    if (image == null) {
+      requestImage(plot)
+    }
+    // Note: until the image of the actual size is ready, the previous one is stretched to fit the viewer
+    (image ?: cachedImage.get()?.takeIf { cachedPlot === plot })?.let { stretched ->
       withComponentPreserved(overlayComponent) {
-        g.drawImage(image, 0, 0, width, height, null)
+        g.drawImage(stretched, 0, 0, width, height, null)
       }
     }
   }
 
-  private fun getOrCreateImage(plot: RPlot): BufferedImage? {
-    return cachedImage.getIfSameSize() ?: createImage(plot)?.also { image ->
-      cachedImage = SoftReference(image)
-    }
-  }
-
-  private fun createImage(plot: RPlot): BufferedImage? {
-    if (!size.isValid) {
-      return null
+  private fun requestImage(plot: RPlot) {
+    if (!size.isValid || pendingImage != null) {
+      return
     }
-    val isPreview = plot.totalComplexity > TOTAL_COMPLEXITY_THRESHOLD && plot.complexityRatio < COMPLEXITY_RATIO_THRESHOLD
-    if (isPreview) {
-      scheduleRender(plot)
+    val service = RPlotRenderService.instance
+    val darkMode = darkMode
+    val parameters = parameters
+    val isPreview = plot.totalComplexity > TOTAL_COMPLEXITY_THRESHOLD && plot.complexityRatio < COMPLEXITY_RATIO_THRESHOLD &&
+                    service.getCached(plot, parameters, darkMode, isPreview = false) == null
+    val promise = service.render(plot, parameters, darkMode, isPreview)
+    pendingImage = promise
+    promise.onProcessed { image ->
+      invokeLater {
+        if (pendingImage === promise) {
+          pendingImage = null
+          // Note: there is no repaint on failure, otherwise the viewer would request the same image again and again
+          if (image != null) {
+            if (this.plot === plot && this.darkMode == darkMode && this.parameters == parameters) {
+              setCachedImage(image, plot, parameters, darkMode)
+              if (isPreview) {
+                scheduleRender(plot)
+              }
+            }
+            repaint()
+          }
+        }
+      }
     }
-    return RPlotUtil.createImage(plot, parameters, darkMode, isPreview)
   }
 
   private fun scheduleRender(plot: RPlot) {
@@ -108,16 +139,30 @@ class RPlotViewer(project: Project, parent: Disposable) : JComponent() {
       if (this.plot === plot && size.isValid) {
         val darkMode = this.darkMode
         val parameters = this.parameters
-        val image = RPlotUtil.createImage(plot, parameters, darkMode, isPreview = false)
-        // Note: it might take more than 500 ms to render some plots so this check must be performed again
-        if (this.plot === plot && this.darkMode == darkMode && this.parameters == parameters) {
-          cachedImage = SoftReference(image)
-          repaint()
+        RPlotRenderService.instance.render(plot, parameters, darkMode, isPreview = false).onSuccess { image ->
+          invokeLater {
+            // Note: it might take more than 500 ms to render some plots so this check must be performed again
+            if (this.plot === plot && this.darkMode == darkMode && this.parameters == parameters) {
+              setCachedImage(image, plot, parameters, darkMode)
+              repaint()
+            }
+          }
         }
       }
     }
   }
 
+  private fun getActualImage(plot: RPlot): BufferedImage? {
+    return cachedImage.get()?.takeIf { cachedPlot === plot && cachedParameters == parameters && cachedDarkMode == darkMode }
+  }
+
+  private fun setCachedImage(image: BufferedImage, plot: RPlot, parameters: RGraphicsUtils.ScreenParameters, darkMode: Boolean) {
+    cachedImage = SoftReference(image)
+    cachedPlot = plot
+    cachedParameters = parameters
+    cachedDarkMode = darkMode
+  }
+
   private fun scheduleTask(task: () -> Unit) {
     timerTask?.cancel()
     timerTask = object : TimerTask() {
@@ -129,12 +174,6 @@ class RPlotViewer(project: Project, parent: Disposable) : JComponent() {
     AppExecutorUtil.getAppScheduledExecutorService().schedule(task, TIMER_DELAY, TimeUnit.MILLISECONDS)
   }
 
-  private fun SoftReference<BufferedImage>.getIfSameSize(): BufferedImage? {
-    return get()?.takeIf { image ->
-      ImageUtil.getUserWidth(image) == width && ImageUtil.getUserHeight(image) == height
-    }
-  }
-
   companion object {
     private const val COMPLEXITY_RATIO_THRESHOLD = 0.8
     private const val TOTAL_COMPLEXITY_THRESHOLD = 1000
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.visualize
+
+import org.jetbrains.r.rinterop.DataFrameGetDataResponse
+import org.jetbrains.r.rinterop.DataFrameInfoResponse.ColumnType
+import java.util.*
+
+/**
+ * Decoded part of a single data frame column.
+ * Values are kept in primitive arrays (NA values are tracked by a bitset),
+ * so a chunk doesn't hold one object per cell and values are boxed only when they are requested by the table.
+ */
+sealed class RDataFrameColumnChunk(val size: Int) {
+  protected val na = BitSet(size)
+
+  fun isNa(row: Int) = na[row]
+
+  fun getValue(row: Int): Any? {
+    if (row < 0 || row >= size || na[row]) return null
+    return getNotNaValue(row)
+  }
+
+  protected abstract fun getNotNaValue(row: Int): Any
+
+  /**
+   * Approximate number of bytes retained by this chunk
+   */
+  abstract val estimatedSize: Long
+
+  private class IntChunk(size: Int) : RDataFrameColumnChunk(size) {
+    val values = IntArray(size)
+    override fun getNotNaValue(row: Int): Any = values[row]
+    override val estimatedSize get() = OBJECT_OVERHEAD + 4L * size + na.size() / 8
+  }
+
+  private class DoubleChunk(size: Int) : RDataFrameColumnChunk(size) {
+    val values = DoubleArray(size)
+    override fun getNotNaValue(row: Int): Any = values[row]
+    override val estimatedSize get() = OBJECT_OVERHEAD + 8L * size + na.size() / 8
+  }
+
+  private class BooleanChunk(size: Int) : RDataFrameColumnChunk(size) {
+    val values = BitSet(size)
+    override fun getNotNaValue(row: Int): Any = values[row]
+    override val estimatedSize get() = OBJECT_OVERHEAD + (values.size() + na.size()) / 8
+  }
+
+  /**
+   * Strings are dictionary-encoded: repeated values (e.g. factor levels) share one [String] instance.
+   */
+  private class StringChunk(size: Int) : RDataFrameColumnChunk(size) {
+    val codes = IntArray(size)
+    lateinit var dictionary: Array<String>
+    override fun getNotNaValue(row: Int): Any = dictionary[codes[row]]
+    override val estimatedSize
+      get() = OBJECT_OVERHEAD + 4L * size + na.size() / 8 + dictionary.sumOf { STRING_OVERHEAD + 2L * it.length }
+  }
+
+  companion object {
+    private const val OBJECT_OVERHEAD = 64L
+    private const val STRING_OVERHEAD = 40L
+
+    /**
+     * Decodes values with indices from [from] (inclusive) to [to] (exclusive) of [column]
+     */
+    fun decode(type: ColumnType, column: DataFrameGetDataResponse.Column,
+               from: Int = 0, to: Int = column.valuesCount): RDataFrameColumnChunk {
+      val size = to - from
+      val values = column.valuesList.subList(from, to)
+      return when (type) {
+        ColumnType.INTEGER -> IntChunk(size).also { chunk ->
+          values.forEachIndexed { row, value ->
+            if (value.hasNa()) chunk.na.set(row) else chunk.values[row] = value.intValue
+          }
+        }
+        ColumnType.DOUBLE -> DoubleChunk(size).also { chunk ->
+          values.forEachIndexed { row, value ->
+            if (value.hasNa()) chunk.na.set(row) else chunk.values[row] = value.doubleValue
+          }
+        }
+        ColumnType.BOOLEAN -> BooleanChunk(size).also { chunk ->
+          values.forEachIndexed { row, value ->
+            if (value.hasNa()) chunk.na.set(row) else chunk.values[row] = value.booleanValue
+          }
+        }
+        else -> StringChunk(size).also { chunk ->
+          val dictionary = HashMap<String, Int>()
+          values.forEachIndexed { row, value ->
+            if (value.hasNa()) {
+              chunk.na.set(row)
+            } else {
+              chunk.codes[row] = dictionary.getOrPut(value.stringValue) { dictionary.size }
+            }
+          }
+          chunk.dictionary = Array(dictionary.size) { "" }.also { array -> dictionary.forEach { (s, code) -> array[code] = s } }
+        }
+      }
+    }
+  }
+}
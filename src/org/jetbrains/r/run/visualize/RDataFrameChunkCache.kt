@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.visualize
+
+import com.intellij.openapi.util.registry.Registry
+
+/**
+ * Keeps track of decoded data frame chunks of all opened viewers and evicts the least recently used ones
+ * when their total size exceeds the memory budget (`r.dataFrameViewer.chunkCacheSizeMb` registry key).
+ * Chunks themselves are stored by their owners, the cache only decides which of them have to be dropped.
+ */
+class RDataFrameChunkCache(private val budgetProvider: () -> Long = { defaultBudget }) {
+  interface Owner {
+    fun evictChunk(index: Long)
+  }
+
+  private data class Key(val owner: Owner, val index: Long)
+
+  private val entries = LinkedHashMap<Key, Long>(16, 0.75f, true)
+
+  /**
+   * Approximate number of bytes retained by all cached chunks
+   */
+  @get:Synchronized
+  var totalSize = 0L
+    private set
+
+  @Synchronized
+  fun sizeOf(owner: Owner): Long = entries.entries.sumOf { if (it.key.owner === owner) it.value else 0L }
+
+  fun put(owner: Owner, index: Long, size: Long) {
+    val evicted = synchronized(this) {
+      val key = Key(owner, index)
+      entries.put(key, size)?.let { totalSize -= it }
+      totalSize += size
+      val budget = budgetProvider()
+      val result = mutableListOf<Key>()
+      val iterator = entries.entries.iterator()
+      while (totalSize > budget && iterator.hasNext()) {
+        val entry = iterator.next()
+        if (entry.key == key) continue
+        iterator.remove()
+        totalSize -= entry.value
+        result.add(entry.key)
+      }
+      result
+    }
+    evicted.forEach { it.owner.evictChunk(it.index) }
+  }
+
+  /**
+   * Marks chunk as recently used
+   */
+  @Synchronized
+  fun touch(owner: Owner, index: Long) {
+    entries[Key(owner, index)]
+  }
+
+  @Synchronized
+  fun removeAll(owner: Owner) {
+    val iterator = entries.entries.iterator()
+    while (iterator.hasNext()) {
+      val entry = iterator.next()
+      if (entry.key.owner === owner) {
+        iterator.remove()
+        totalSize -= entry.value
+      }
+    }
+  }
+
+  companion object {
+    private const val CACHE_SIZE_REGISTRY_KEY = "r.dataFrameViewer.chunkCacheSizeMb"
+
+    private val defaultBudget: Long
+      get() = Registry.intValue(CACHE_SIZE_REGISTRY_KEY, 256) * 1024L * 1024L
+
+    val instance = RDataFrameChunkCache()
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.visualize
+
+/**
+ * Summary of a single data frame column. It is computed on the R side, so profiling a large table
+ * doesn't require transferring its rows.
+ * [min], [max], [mean] and [histogram] are available only for numeric and logical columns.
+ */
+data class RDataFrameColumnStatistics(val naCount: Long,
+                                      val distinctCount: Long,
+                                      val min: Double? = null,
+                                      val max: Double? = null,
+                                      val mean: Double? = null,
+                                      val histogram: List<Long> = emptyList()) {
+  companion object {
+    const val DATA_VARIABLE = "data"
+    private const val HISTOGRAM_BINS = 10
+
+    /**
+     * R code which evaluates to a character vector of `key=value` entries with statistics of [columnIndex]-th column
+     * (1-based, row names are not counted) of data frame [DATA_VARIABLE].
+     */
+    fun expression(columnIndex: Int): String = """
+      local({
+        x <- $DATA_VARIABLE
+        if (!is.data.frame(x)) x <- as.data.frame(x)
+        x <- x[[$columnIndex]]
+        na <- is.na(x)
+        values <- x[!na]
+        result <- c(paste0("na=", sum(na)), paste0("distinct=", length(unique(values))))
+        if ((is.numeric(values) || is.logical(values)) && !is.factor(values) && length(values) > 0) {
+          values <- as.numeric(values)
+          finite <- values[is.finite(values)]
+          result <- c(result, paste0("min=", min(values)), paste0("max=", max(values)), paste0("mean=", mean(values)))
+          if (length(finite) > 0) {
+            bins <- graphics::hist(finite, breaks = $HISTOGRAM_BINS, plot = FALSE)${'$'}counts
+            result <- c(result, paste0("histogram=", paste(bins, collapse = " ")))
+          }
+        }
+        result
+      })
+    """.trimIndent()
+
+    fun parse(entries: List<String>): RDataFrameColumnStatistics {
+      val values = entries.associate { it.substringBefore('=') to it.substringAfter('=', "") }
+      return RDataFrameColumnStatistics(
+        naCount = values["na"]?.toLongOrNull() ?: 0,
+        distinctCount = values["distinct"]?.toLongOrNull() ?: 0,
+        min = values["min"]?.let { parseDouble(it) },
+        max = values["max"]?.let { parseDouble(it) },
+        mean = values["mean"]?.let { parseDouble(it) },
+        histogram = values["histogram"]?.split(' ')?.mapNotNull { it.toLongOrNull() }.orEmpty()
+      )
+    }
+
+    private fun parseDouble(s: String): Double? = when (s) {
+      "Inf" -> Double.POSITIVE_INFINITY
+      "-Inf" -> Double.NEGATIVE_INFINITY
+      "NaN" -> Double.NaN
+      else -> s.toDoubleOrNull()
+    }
+  }
+}
@@ -21,6 +21,8 @@ class RDataFrameRowSorter(private var model: RDataFrameTableModel, private val j
   private var sortKeys: List<SortKey> = emptyList()
   private val initialViewer = model.viewer
   private var currentViewer = model.viewer
+  private var filteredViewer: RDataFrameViewer? = null
+  private var filteredBy: DataFrameFilterRequest.Filter? = null
   var updatesSuspended = false
   var shownRange: Pair<Int, Int>? = null
     set(newRange) {
@@ -95,17 +97,17 @@ class RDataFrameRowSorter(private var model: RDataFrameTableModel, private val j
     currentUpdateTask = ApplicationManager.getApplication().executeOnPooledThread<Unit> {
       try {
         toWait?.getWithCheckCanceled()
-        if (currentViewer != initialViewer) Disposer.dispose(currentViewer)
-        currentViewer = initialViewer
-        currentFilter?.let {
-          currentViewer = currentViewer.filter(it)
-        }
-        if (currentSortKeys.isNotEmpty()) {
-          val newViewer = currentViewer.sortBy(currentSortKeys)
-          if (currentViewer != initialViewer) Disposer.dispose(currentViewer)
-          currentViewer = newViewer
+        val oldViewers = listOf(currentViewer, filteredViewer)
+        if (currentFilter != filteredBy || filteredViewer == null) {
+          // Viewer of the filtered data frame is kept while the filter is not changed, so changing the sort order
+          // doesn't filter the data again and dropping it shows the already loaded rows
+          filteredViewer = currentFilter?.let { initialViewer.filter(it) } ?: initialViewer
+          filteredBy = currentFilter
         }
+        val base = filteredViewer ?: initialViewer
+        currentViewer = if (currentSortKeys.isEmpty()) base else base.sortBy(currentSortKeys)
         model.viewer = currentViewer
+        disposeUnused(oldViewers)
         jTable.clearSelection()
         model.fireTableDataChanged()
         fireRowSorterChanged(null)
@@ -126,12 +128,25 @@ class RDataFrameRowSorter(private var model: RDataFrameTableModel, private val j
       if (!it.isDone) it.cancel(true)
       currentUpdateTask = null
     }
+    val oldViewers = listOf(currentViewer, filteredViewer)
     currentViewer = initialViewer
+    filteredViewer = null
+    filteredBy = null
     model.viewer = initialViewer
+    disposeUnused(oldViewers)
     jTable.clearSelection()
     fireRowSorterChanged(null)
   }
 
+  /**
+   * Releases data frames which are not shown and can't be reused anymore
+   */
+  private fun disposeUnused(viewers: List<RDataFrameViewer?>) {
+    viewers.filterNotNull().distinct()
+      .filter { it !== initialViewer && it !== currentViewer && it !== filteredViewer }
+      .forEach { Disposer.dispose(it) }
+  }
+
   override fun rowsInserted(p0: Int, p1: Int) {}
   override fun rowsDeleted(p0: Int, p1: Int) {}
   override fun rowsUpdated(p0: Int, p1: Int) {}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.visualize
+
+import com.intellij.openapi.application.invokeLater
+import com.intellij.ui.IdeBorderFactory
+import com.intellij.ui.SideBorder
+import com.intellij.ui.components.JBScrollPane
+import com.intellij.ui.table.JBTable
+import org.jetbrains.r.RBundle
+import java.awt.BorderLayout
+import javax.swing.JPanel
+import javax.swing.table.AbstractTableModel
+
+/**
+ * Shows statistics of all columns of the data frame. Columns are processed one by one,
+ * so the rows of the panel are filled in as soon as the corresponding results arrive.
+ */
+class RDataFrameStatisticsPanel(private val viewer: RDataFrameViewer) : JPanel(BorderLayout()) {
+  private val columns = (0 until viewer.nColumns).filter { !viewer.isRowNames(it) }
+  private val results = arrayOfNulls<Any>(columns.size)
+  private val model = StatisticsTableModel()
+  @Volatile
+  private var isStopped = false
+
+  init {
+    val scrollPane = JBScrollPane(JBTable(model))
+    scrollPane.border = IdeBorderFactory.createBorder(SideBorder.TOP)
+    add(scrollPane, BorderLayout.CENTER)
+    load(0)
+  }
+
+  fun stop() {
+    isStopped = true
+  }
+
+  private fun load(row: Int) {
+    if (isStopped || row >= columns.size) return
+    viewer.getColumnStatistics(columns[row]).onProcessed { result ->
+      results[row] = result ?: ERROR
+      invokeLater { model.fireTableRowsUpdated(row, row) }
+      load(row + 1)
+    }
+  }
+
+  private inner class StatisticsTableModel : AbstractTableModel() {
+    override fun getRowCount() = columns.size
+
+    override fun getColumnCount() = COLUMN_NAMES.size
+
+    override fun getColumnName(column: Int) = RBundle.message(COLUMN_NAMES[column])
+
+    override fun getValueAt(row: Int, column: Int): Any? {
+      if (column == 0) return viewer.getColumnName(columns[row])
+      val statistics = when (val result = results[row]) {
+        null -> return "<loading>"
+        is RDataFrameColumnStatistics -> result
+        else -> return "<error>"
+      }
+      return when (column) {
+        1 -> statistics.naCount
+        2 -> statistics.distinctCount
+        3 -> statistics.min?.let { "%g".format(it) }
+        4 -> statistics.max?.let { "%g".format(it) }
+        5 -> statistics.mean?.let { "%g".format(it) }
+        else -> histogramToString(statistics.histogram)
+      }
+    }
+  }
+
+  companion object {
+    private val ERROR = Any()
+
+    private val COLUMN_NAMES = listOf(
+      "dataframe.viewer.statistics.column",
+      "dataframe.viewer.statistics.na",
+      "dataframe.viewer.statistics.distinct",
+      "dataframe.viewer.statistics.min",
+      "dataframe.viewer.statistics.max",
+      "dataframe.viewer.statistics.mean",
+      "dataframe.viewer.statistics.histogram"
+    )
+
+    private const val BARS = "▁▂▃▄▅▆▇█"
+
+    private fun histogramToString(histogram: List<Long>): String {
+      val max = histogram.maxOrNull()?.takeIf { it > 0 } ?: return ""
+      return histogram.joinToString("") { BARS[((BARS.length - 1) * it / max).toInt()].toString() }
+    }
+  }
+}
@@ -30,7 +30,6 @@ import com.intellij.ui.SideBorder
 import com.intellij.ui.components.JBScrollPane
 import com.intellij.ui.table.JBTable
 import com.intellij.util.ui.TextTransferable
-import org.jetbrains.concurrency.resolvedPromise
 import org.jetbrains.plugins.notebooks.visualization.VisualisationIcons
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.ClipboardUtils
 import org.jetbrains.plugins.notebooks.visualization.r.inlays.table.filters.gui.TableFilterHeader
@@ -58,6 +57,7 @@ class RDataFrameTablePage(val viewer: RDataFrameViewer) : JPanel(BorderLayout())
   private var paginator: RDataFrameTablePaginator? = null
   private var filterHeader: TableFilterHeader? = null
   private var filtersHandler: RDataFrameFiltersHandler? = null
+  private var statisticsPanel: RDataFrameStatisticsPanel? = null
   private lateinit var filterTableButton: ActionButton
 
   val preferredHeight: Int
@@ -92,14 +92,11 @@ class RDataFrameTablePage(val viewer: RDataFrameViewer) : JPanel(BorderLayout())
     }
 
     add(scrollPane, BorderLayout.CENTER)
+    RDataFrameTablePrefetcher(table, tableModel).install(scrollPane.viewport)
 
     createActionsPanel()
 
-    var loadedPromise = resolvedPromise<Unit>()
-    for (i in 0 until min(viewer.nRows, FIT_WIDTH_MAX_ROWS)) {
-      loadedPromise = loadedPromise.thenAsync { viewer.ensureLoaded(i, 0) }
-    }
-    loadedPromise.then {
+    viewer.ensureLoaded(0 until min(viewer.nRows, FIT_WIDTH_MAX_ROWS)).then {
       invokeLater {
         MaterialTableUtils.fitColumnsWidth(table, maxRows = FIT_WIDTH_MAX_ROWS)
       }
@@ -268,9 +265,41 @@ class RDataFrameTablePage(val viewer: RDataFrameViewer) : JPanel(BorderLayout())
     }
     createButton(autoRefreshAction)
 
+    val statisticsAction = object : RDumbAwareBgtToggleAction(RBundle.message("action.dataframe.viewer.statistics.name"),
+                                                              RBundle.message("action.dataframe.viewer.statistics.description"),
+                                                              AllIcons.Actions.Preview) {
+      override fun isSelected(e: AnActionEvent) = statisticsPanel != null
+
+      override fun setSelected(e: AnActionEvent, state: Boolean) {
+        if (state) {
+          showStatistics()
+        } else {
+          hideStatistics()
+        }
+      }
+    }
+    createButton(statisticsAction)
+
     add(actionsPanel, BorderLayout.NORTH)
   }
 
+  private fun showStatistics() {
+    if (statisticsPanel != null) return
+    statisticsPanel = RDataFrameStatisticsPanel(tableModel.viewer).also {
+      add(it, BorderLayout.EAST)
+    }
+    revalidate()
+  }
+
+  private fun hideStatistics() {
+    statisticsPanel?.let {
+      it.stop()
+      remove(it)
+    }
+    statisticsPanel = null
+    revalidate()
+  }
+
   /** Save the file as tsv (tab separated values) via intellij SaveFileDialog. */
   private fun saveAsCsv() {
     val descriptor = FileSaverDescriptor(
@@ -399,6 +428,10 @@ class RDataFrameTablePage(val viewer: RDataFrameViewer) : JPanel(BorderLayout())
 
         rowSorter.setSortKeys(newSortKeys.takeIf { it.isNotEmpty() }?.toMutableList())
         paginator?.updateShownRange()
+        if (statisticsPanel != null) {
+          hideStatistics()
+          showStatistics()
+        }
       } finally {
         rowSorter.updatesSuspended = false
       }
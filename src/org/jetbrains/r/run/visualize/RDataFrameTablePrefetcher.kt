@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run.visualize
+
+import com.intellij.openapi.application.invokeLater
+import java.awt.Point
+import java.awt.Rectangle
+import javax.swing.JTable
+import javax.swing.JViewport
+import javax.swing.event.ChangeEvent
+import javax.swing.event.ChangeListener
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Tracks the visible part of the table and requests data before it is painted:
+ * visible columns of the visible chunks are loaded with a single request,
+ * a few chunks in the scroll direction are preloaded (more of them when scrolling fast)
+ * and requests for rows the user has scrolled away from are cancelled.
+ */
+class RDataFrameTablePrefetcher(private val table: JTable, private val model: RDataFrameTableModel) : ChangeListener {
+  private var lastFirstRow = -1
+  private var lastTime = 0L
+  private var velocity = 0.0  // rows per millisecond, negative when scrolling up
+
+  fun install(viewport: JViewport) {
+    viewport.addChangeListener(this)
+    model.addTableModelListener { prefetch() }
+  }
+
+  override fun stateChanged(e: ChangeEvent?) {
+    prefetch()
+  }
+
+  private fun prefetch() {
+    val viewer = model.viewer
+    if (viewer.nRows == 0 || table.rowCount == 0) return
+    val visibleRect = table.visibleRect
+    val firstViewRow = table.rowAtPoint(Point(0, visibleRect.y)).takeIf { it != -1 } ?: 0
+    val lastViewRow = table.rowAtPoint(Point(0, visibleRect.y + visibleRect.height - 1)).takeIf { it != -1 } ?: table.rowCount - 1
+    val firstRow = table.convertRowIndexToModel(firstViewRow)
+    val lastRow = table.convertRowIndexToModel(lastViewRow)
+    if (firstRow < 0 || lastRow < firstRow) return
+    val visibleColumns = getVisibleColumns(visibleRect) ?: return
+    updateVelocity(firstRow)
+
+    val chunkSize = viewer.chunkSize
+    val predictedRows = abs(velocity) * PREDICTION_TIME_MS
+    val chunksAhead = min(MIN_CHUNKS_AHEAD + (predictedRows / chunkSize).roundToInt(), MAX_CHUNKS_AHEAD)
+    val rows = if (velocity >= 0) {
+      firstRow..min(lastRow + chunksAhead * chunkSize, viewer.nRows - 1)
+    } else {
+      max(firstRow - chunksAhead * chunkSize, 0)..lastRow
+    }
+    val keep = max(rows.first - chunkSize, 0)..min(rows.last + chunkSize, viewer.nRows - 1)
+    viewer.ensureLoaded(rows, visibleColumns, keep) { invokeLater { table.repaint() } }
+  }
+
+  /**
+   * @return range of model indices which covers all visible columns (columns may be reordered by the user)
+   */
+  private fun getVisibleColumns(visibleRect: Rectangle): IntRange? {
+    if (table.columnCount == 0) return null
+    val firstViewColumn = table.columnAtPoint(Point(visibleRect.x, 0)).takeIf { it != -1 } ?: 0
+    val lastViewColumn = table.columnAtPoint(Point(visibleRect.x + visibleRect.width - 1, 0)).takeIf { it != -1 } ?: table.columnCount - 1
+    val modelColumns = (firstViewColumn..lastViewColumn).map { table.convertColumnIndexToModel(it) }
+    return (modelColumns.minOrNull() ?: return null)..(modelColumns.maxOrNull() ?: return null)
+  }
+
+  private fun updateVelocity(firstRow: Int) {
+    val now = System.currentTimeMillis()
+    if (lastFirstRow != -1 && firstRow != lastFirstRow) {
+      val elapsed = max(now - lastTime, 1L)
+      val current = (firstRow - lastFirstRow).toDouble() / elapsed
+      velocity = if (elapsed > VELOCITY_RESET_MS) current else VELOCITY_SMOOTHING * current + (1 - VELOCITY_SMOOTHING) * velocity
+    }
+    if (firstRow != lastFirstRow) {
+      lastFirstRow = firstRow
+      lastTime = now
+    }
+  }
+
+  companion object {
+    private const val MIN_CHUNKS_AHEAD = 1
+    private const val MAX_CHUNKS_AHEAD = 8
+    private const val PREDICTION_TIME_MS = 500
+    private const val VELOCITY_RESET_MS = 1000
+    private const val VELOCITY_SMOOTHING = 0.5
+  }
+}
@@ -20,6 +20,17 @@ interface RDataFrameViewer : Disposable {
 
   val canRefresh: Boolean
 
+  /**
+   * Number of rows which are loaded together
+   */
+  val chunkSize: Int
+
+  /**
+   * Approximate number of bytes retained by the loaded chunks of this viewer
+   */
+  val cachedDataSize: Long
+    get() = 0
+
   fun getColumnName(index: Int): String
 
   fun getColumnType(index: Int): KClass<*>
@@ -32,6 +43,19 @@ interface RDataFrameViewer : Disposable {
 
   fun ensureLoaded(row: Int, col: Int, onLoadCallback: (() -> Unit)? = null): Promise<Unit>
 
+  /**
+   * Loads [columns] of all [rows] using as few requests as possible.
+   * Pending requests which don't intersect [keepRows] are cancelled regardless of their columns,
+   * so requests for other columns of the kept rows keep loading.
+   */
+  fun ensureLoaded(rows: IntRange, columns: IntRange = 0 until nColumns, keepRows: IntRange = rows,
+                   onLoadCallback: (() -> Unit)? = null): Promise<Unit>
+
+  /**
+   * Computes statistics of the column on the R side. Results are cached until the data frame is refreshed.
+   */
+  fun getColumnStatistics(index: Int): Promise<RDataFrameColumnStatistics>
+
   fun sortBy(sortKeys: List<RowSorter.SortKey>): RDataFrameViewer
 
   fun filter(f: DataFrameFilterRequest.Filter): RDataFrameViewer
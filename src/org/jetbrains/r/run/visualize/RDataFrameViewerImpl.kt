@@ -17,25 +17,34 @@ import org.jetbrains.r.packages.RequiredPackageInstaller
 import org.jetbrains.r.rinterop.*
 import org.jetbrains.r.rinterop.DataFrameInfoResponse.ColumnType.*
 import org.jetbrains.r.util.tryRegisterDisposable
+import java.util.concurrent.ConcurrentHashMap
 import javax.swing.RowSorter
 import kotlin.math.min
 import kotlin.reflect.KClass
 
-class RDataFrameViewerImpl(private val ref: RPersistentRef) : RDataFrameViewer {
+class RDataFrameViewerImpl(private val ref: RPersistentRef,
+                           private val chunkCache: RDataFrameChunkCache = RDataFrameChunkCache.instance
+) : RDataFrameViewer, RDataFrameChunkCache.Owner {
   private val rInterop: RInterop = ref.rInterop
   override val nColumns: Int get() = columns.size
   override var nRows: Int = 0
   override val project get() = rInterop.project
   private lateinit var columns: Array<ColumnInfo>
-  private lateinit var chunks: Array<Array<Array<Any?>>?>
-  private lateinit var promises: Array<Promise<Unit>?>
+  private lateinit var chunks: Array<Array<RDataFrameColumnChunk?>?>
+  private val promises = ConcurrentHashMap<Long, Promise<Unit>>()
+  private val pendingLoads = mutableListOf<PendingLoad>()
+  private val statistics = ConcurrentHashMap<Int, Promise<RDataFrameColumnStatistics>>()
+  private var statisticsEnv: Promise<RPersistentRef>? = null
   private var disposableParent: Disposable? = null
   private var virtualFile: RTableVirtualFile? = null
   override var canRefresh: Boolean = false
+  override val chunkSize: Int get() = CHUNK_SIZE
+  override val cachedDataSize: Long get() = chunkCache.sizeOf(this)
 
-  private data class ColumnInfo(val name: String, val type: KClass<*>, val sortable: Boolean = true,
-                                val isRowNames: Boolean = false,
-                                val parseValue: (DataFrameGetDataResponse.Value) -> Any?)
+  private data class ColumnInfo(val name: String, val type: KClass<*>, val dataType: DataFrameInfoResponse.ColumnType,
+                                val sortable: Boolean = true, val isRowNames: Boolean = false)
+
+  private class PendingLoad(val chunks: IntRange, val request: CancellablePromise<*>)
 
   private var currentProxyDisposable: Disposable? = null
 
@@ -47,17 +56,20 @@ class RDataFrameViewerImpl(private val ref: RPersistentRef) : RDataFrameViewer {
   }
 
   private fun initInfo(dataFrameInfo: DataFrameInfoResponse) {
+    if (this::chunks.isInitialized) chunkCache.removeAll(this)
     nRows = dataFrameInfo.nRows
     columns = dataFrameInfo.columnsList.map { col ->
-      when (col.type) {
-        INTEGER -> ColumnInfo(col.name, Int::class, col.sortable, col.isRowNames) { if (it.hasNa()) null else it.intValue }
-        DOUBLE -> ColumnInfo(col.name, Double::class, col.sortable, col.isRowNames) { if (it.hasNa()) null else it.doubleValue }
-        BOOLEAN -> ColumnInfo(col.name, Boolean::class, col.sortable, col.isRowNames) { if (it.hasNa()) null else it.booleanValue }
-        else -> ColumnInfo(col.name, String::class, col.sortable, col.isRowNames) { if (it.hasNa()) null else it.stringValue }
+      val type = when (col.type) {
+        INTEGER -> Int::class
+        DOUBLE -> Double::class
+        BOOLEAN -> Boolean::class
+        else -> String::class
       }
+      ColumnInfo(col.name, type, col.type, col.sortable, col.isRowNames)
     }.toTypedArray()
     chunks = Array((nRows + CHUNK_SIZE - 1) / CHUNK_SIZE) { null }
-    promises = Array(chunks.size) { null }
+    promises.clear()
+    resetStatistics()
     canRefresh = dataFrameInfo.canRefresh
   }
 
@@ -72,40 +84,191 @@ class RDataFrameViewerImpl(private val ref: RPersistentRef) : RDataFrameViewer {
   override fun isRowNames(index: Int) = columns[index].isRowNames
 
   override fun getValueAt(row: Int, col: Int): Any? {
-    ensureLoaded(row, col).blockingGet(Int.MAX_VALUE)
     val chunkIndex = row / CHUNK_SIZE
-    return chunks.getOrNull(chunkIndex)?.getOrNull(col)?.getOrNull(row % CHUNK_SIZE)
+    val tile = tileKey(chunkIndex, col / COLUMN_BLOCK_SIZE)
+    val chunk = chunks.getOrNull(chunkIndex)?.getOrNull(col) ?: run {
+      ensureLoaded(row, col).blockingGet(Int.MAX_VALUE)
+      chunks.getOrNull(chunkIndex)?.getOrNull(col)
+    }
+    chunkCache.touch(this, tile)
+    return chunk?.getValue(row % CHUNK_SIZE)
   }
 
   override fun ensureLoaded(row: Int, col: Int, onLoadCallback: (() -> Unit)?): Promise<Unit> {
     val chunkIndex = row / CHUNK_SIZE
-    if (chunks[chunkIndex] != null) return resolvedPromise()
-    promises[chunkIndex]?.let {
+    val block = col / COLUMN_BLOCK_SIZE
+    return getLoadedPromise(chunkIndex, block) ?: loadTiles(chunkIndex..chunkIndex, onLoadCallback)
+  }
+
+  override fun ensureLoaded(rows: IntRange, columns: IntRange, keepRows: IntRange,
+                            onLoadCallback: (() -> Unit)?): Promise<Unit> {
+    if (nRows == 0 || nColumns == 0) return resolvedPromise()
+    val blocks = toBlockRange(columns)
+    cancelPendingLoadsOutside(toChunkRange(keepRows))
+    val chunkRange = toChunkRange(rows)
+    val result = mutableListOf<Promise<Unit>>()
+    var missingStart = -1
+    for (chunkIndex in chunkRange.first..chunkRange.last + 1) {
+      val loaded = if (chunkIndex <= chunkRange.last) blocks.map { getLoadedPromise(chunkIndex, it) } else emptyList()
+      val isMissing = chunkIndex <= chunkRange.last && loaded.any { it == null }
+      if (isMissing) {
+        if (missingStart == -1) missingStart = chunkIndex
+        continue
+      }
+      if (missingStart != -1) {
+        // Adjacent missing chunks are fetched with a single request
+        result.add(loadTiles(missingStart until chunkIndex, onLoadCallback))
+        missingStart = -1
+      }
+      loaded.forEach { it?.let { promise -> result.add(promise) } }
+    }
+    return result.all(Unit)
+  }
+
+  private fun toChunkRange(rows: IntRange): IntRange {
+    if (rows.isEmpty() || nRows == 0) return IntRange.EMPTY
+    return (rows.first.coerceIn(0, nRows - 1) / CHUNK_SIZE)..(rows.last.coerceIn(0, nRows - 1) / CHUNK_SIZE)
+  }
+
+  private fun toBlockRange(columns: IntRange): IntRange {
+    if (columns.isEmpty() || nColumns == 0) return IntRange.EMPTY
+    return (columns.first.coerceIn(0, nColumns - 1) / COLUMN_BLOCK_SIZE)..(columns.last.coerceIn(0, nColumns - 1) / COLUMN_BLOCK_SIZE)
+  }
+
+  private val nBlocks get() = (nColumns + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE
+
+  private fun tileKey(chunkIndex: Int, block: Int) = chunkIndex.toLong() * nBlocks + block
+
+  private fun blockColumns(block: Int) = block * COLUMN_BLOCK_SIZE until min((block + 1) * COLUMN_BLOCK_SIZE, nColumns)
+
+  /**
+   * @return promise of the tile if it is either loaded or being loaded, null if it has to be requested
+   */
+  private fun getLoadedPromise(chunkIndex: Int, block: Int): Promise<Unit>? {
+    if (chunks[chunkIndex]?.get(block * COLUMN_BLOCK_SIZE) != null) return resolvedPromise()
+    val key = tileKey(chunkIndex, block)
+    promises[key]?.let {
       when (it.state) {
         Promise.State.PENDING -> return it
-        Promise.State.SUCCEEDED -> return resolvedPromise()
-        Promise.State.REJECTED -> Unit
+        // The tile has been evicted
+        Promise.State.SUCCEEDED, Promise.State.REJECTED -> promises.remove(key, it)
       }
     }
+    return null
+  }
+
+  /**
+   * Requests rows of [chunkRange]. The response contains all the columns, so all the tiles of these rows are decoded
+   * (a newly visible column block doesn't refetch the rows), but each of them is accounted and evicted separately
+   */
+  private fun loadTiles(chunkRange: IntRange, onLoadCallback: (() -> Unit)?): Promise<Unit> {
     if (!rInterop.isAlive) {
       return rejectedPromise("RInterop is not alive")
     }
-    val start = chunkIndex * CHUNK_SIZE
-    val end = min((chunkIndex + 1) * CHUNK_SIZE, nRows)
-    val promise: Promise<Unit> = rInterop.dataFrameGetData(ref, start, end)
+    val currentChunks = chunks
+    val start = chunkRange.first * CHUNK_SIZE
+    val end = min((chunkRange.last + 1) * CHUNK_SIZE, nRows)
+    val request = rInterop.dataFrameGetData(ref, start, end)
       .also { tryRegisterDisposable(Disposable { it.cancel() }) }
+    val pendingLoad = PendingLoad(chunkRange, request)
+    synchronized(pendingLoads) { pendingLoads.add(pendingLoad) }
+    val promise = AsyncPromise<Unit>()
+    // Promises are registered before the tiles are put into the cache, so an eviction always removes them
+    for (chunkIndex in chunkRange) {
+      for (block in 0 until nBlocks) {
+        promises[tileKey(chunkIndex, block)] = promise
+      }
+    }
+    request
+      .onProcessed { synchronized(pendingLoads) { pendingLoads.remove(pendingLoad) } }
       .then { response ->
-        chunks[chunkIndex] = Array(nColumns) { col ->
-          Array(end - start) { row ->
-            columns[col].parseValue(response.getColumns(col).getValues(row))
+        for (chunkIndex in chunkRange) {
+          val from = chunkIndex * CHUNK_SIZE - start
+          val to = min((chunkIndex + 1) * CHUNK_SIZE, nRows) - start
+          val chunk = currentChunks[chunkIndex] ?: arrayOfNulls<RDataFrameColumnChunk>(nColumns).also { currentChunks[chunkIndex] = it }
+          for (block in 0 until nBlocks) {
+            if (chunk[block * COLUMN_BLOCK_SIZE] != null) continue
+            var size = 0L
+            for (col in blockColumns(block)) {
+              chunk[col] = RDataFrameColumnChunk.decode(columns[col].dataType, response.getColumns(col), from, to).also {
+                size += it.estimatedSize
+              }
+            }
+            if (currentChunks === chunks) {
+              chunkCache.put(this, tileKey(chunkIndex, block), size)
+            }
           }
         }
         onLoadCallback?.invoke()
       }
-    promises[chunkIndex] = promise
+      .processed(promise)
     return promise
   }
 
+  /**
+   * Cancels requests which are not needed anymore because the user has scrolled away from them
+   */
+  private fun cancelPendingLoadsOutside(keepChunks: IntRange) {
+    fun IntRange.intersects(other: IntRange) = first <= other.last && other.first <= last
+    val stale = synchronized(pendingLoads) {
+      pendingLoads.filter { !it.chunks.intersects(keepChunks) }
+    }
+    for (load in stale) {
+      if (load.request.cancel()) {
+        for (chunkIndex in load.chunks) {
+          for (block in 0 until nBlocks) {
+            val key = tileKey(chunkIndex, block)
+            if (promises[key]?.state != Promise.State.SUCCEEDED) promises.remove(key)
+          }
+        }
+      }
+    }
+  }
+
+  override fun evictChunk(index: Long) {
+    val chunkIndex = (index / nBlocks).toInt()
+    val block = (index % nBlocks).toInt()
+    chunks.getOrNull(chunkIndex)?.let { chunk ->
+      for (col in blockColumns(block)) {
+        chunk[col] = null
+      }
+    }
+    // A pending promise belongs to a reload of the tile
+    promises[index]?.takeIf { it.state != Promise.State.PENDING }?.let { promises.remove(index, it) }
+  }
+
+  override fun getColumnStatistics(index: Int): Promise<RDataFrameColumnStatistics> {
+    statistics[index]?.takeIf { it.state != Promise.State.REJECTED }?.let { return it }
+    if (!rInterop.isAlive) {
+      return rejectedPromise("RInterop is not alive")
+    }
+    val columnIndex = (0 until index).count { !columns[it].isRowNames } + 1
+    val promise = getStatisticsEnv().thenAsync { env ->
+      RReference.expressionRef(RDataFrameColumnStatistics.expression(columnIndex), env).getDistinctStringsAsync()
+    }.then { RDataFrameColumnStatistics.parse(it) }
+    statistics[index] = promise
+    return promise
+  }
+
+  /**
+   * Statistics are evaluated in a separate environment where the data frame is bound to a variable,
+   * so the data is neither copied nor transferred
+   */
+  @Synchronized
+  private fun getStatisticsEnv(): Promise<RPersistentRef> {
+    statisticsEnv?.takeIf { it.state != Promise.State.REJECTED }?.let { return it }
+    return RReference.expressionRef("new.env()", rInterop).copyToPersistentRef(this)
+      .thenAsync { env -> env.getMemberRef(RDataFrameColumnStatistics.DATA_VARIABLE).setValue(ref).then { env } }
+      .also { statisticsEnv = it }
+  }
+
+  @Synchronized
+  private fun resetStatistics() {
+    statistics.clear()
+    statisticsEnv?.onSuccess { Disposer.dispose(it) }
+    statisticsEnv = null
+  }
+
   override fun sortBy(sortKeys: List<RowSorter.SortKey>): RDataFrameViewer {
     try {
       return RDataFrameViewerImpl(rInterop.dataFrameSort(ref, sortKeys)).also { newDataFrame ->
@@ -143,6 +306,10 @@ class RDataFrameViewerImpl(private val ref: RPersistentRef) : RDataFrameViewer {
     }
   }
 
+  override fun dispose() {
+    chunkCache.removeAll(this)
+  }
+
   override fun registerDisposable(parent: Disposable, virtualFile: RTableVirtualFile?) {
     disposableParent = parent
     this.virtualFile = virtualFile
@@ -160,6 +327,7 @@ class RDataFrameViewerImpl(private val ref: RPersistentRef) : RDataFrameViewer {
 
   companion object {
     private const val CHUNK_SIZE = 256
+    private const val COLUMN_BLOCK_SIZE = 16
 
     fun ensureDplyrInstalled(project: Project) {
       val requiredPackages = listOf(RequiredPackage("dplyr"))
@@ -77,11 +77,11 @@ class RSkeletonAssignmentElementType : RStubElementType<RSkeletonAssignmentStub,
       else -> {
         RAssignmentNameIndex.sink(sink, name)
         if (stub.exported) {
-          RAssignmentCompletionIndex.sink(sink, "")
+          RAssignmentCompletionIndex.sinkForCompletion(sink, name)
         }
         if (stub.type != RSkeletonSymbolType.DATASET) {
           // data sets cannot be accessed by `:::` operator
-          RInternalAssignmentCompletionIndex.sink(sink, "")
+          RInternalAssignmentCompletionIndex.sinkForCompletion(sink, name)
         }
       }
     }
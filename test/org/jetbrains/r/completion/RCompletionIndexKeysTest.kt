@@ -0,0 +1,27 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.completion
+
+import junit.framework.TestCase
+import org.jetbrains.r.psi.stubs.CompletionIndexAccessBase
+
+class RCompletionIndexKeysTest : TestCase() {
+  fun testWordStarts() {
+    assertEquals(setOf("d", "f"), CompletionIndexAccessBase.getCompletionKeys("data.frame"))
+    assertEquals(setOf("i", "v", "c"), CompletionIndexAccessBase.getCompletionKeys("isVirtualClass"))
+    assertEquals(setOf("r", "c"), CompletionIndexAccessBase.getCompletionKeys("read_csv"))
+    assertEquals(setOf("l", "2"), CompletionIndexAccessBase.getCompletionKeys("log2"))
+    assertEquals(setOf(".", "c"), CompletionIndexAccessBase.getCompletionKeys(".Call"))
+    assertEquals(setOf("%"), CompletionIndexAccessBase.getCompletionKeys("%>%"))
+    assertEquals(setOf("%", "i"), CompletionIndexAccessBase.getCompletionKeys("%in%"))
+    assertEquals(setOf("r", "l"), CompletionIndexAccessBase.getCompletionKeys("RSQLite"))
+    assertEquals(setOf("i", "t"), CompletionIndexAccessBase.getCompletionKeys("isTRUE"))
+  }
+
+  fun testPrefixKey() {
+    assertEquals("d", CompletionIndexAccessBase.getCompletionKey("Da"))
+    assertEquals(".", CompletionIndexAccessBase.getCompletionKey(".C"))
+  }
+}
@@ -8,6 +8,7 @@ import com.intellij.codeInsight.lookup.LookupElementPresentation
 import junit.framework.TestCase
 import org.jetbrains.r.console.RConsoleRuntimeInfoImpl
 import org.jetbrains.r.console.addRuntimeInfo
+import org.jetbrains.r.rinterop.RValueFunction
 import org.jetbrains.r.run.RProcessHandlerBaseTestCase
 
 class RuntimeCompletionTests : RProcessHandlerBaseTestCase() {
@@ -57,6 +58,36 @@ class RuntimeCompletionTests : RProcessHandlerBaseTestCase() {
     checkCompletion(listOf("xxxx1", "xxxx2"))
   }
 
+  fun testRuntimeFunctionInsertion() {
+    rInterop.executeCode("hhhh1 <- function(x, y = 10) return(x + y)", true)
+    rInterop.executeCode("hhhh2 <- function() return(1)", true)
+    myFixture.configureByText("foo.R", "hhhh1<caret>")
+    myFixture.file.addRuntimeInfo(RConsoleRuntimeInfoImpl(rInterop))
+    myFixture.completeBasic()
+    myFixture.checkResult("hhhh1(<caret>)")
+
+    myFixture.configureByText("bar.R", "hhhh2<caret>")
+    myFixture.file.addRuntimeInfo(RConsoleRuntimeInfoImpl(rInterop))
+    myFixture.completeBasic()
+    myFixture.checkResult("hhhh2()<caret>")
+  }
+
+  fun testFunctionHeaderIsParsedOnlyForShownItems() {
+    rInterop.executeCode("gggg1 <- function(x) return(x)", true)
+    rInterop.executeCode("kkkk1 <- function(y) return(y)", true)
+    myFixture.configureByText("foo.R", "gggg<caret>")
+    val runtimeInfo = RConsoleRuntimeInfoImpl(rInterop)
+    myFixture.file.addRuntimeInfo(runtimeInfo)
+    myFixture.completeBasic()
+    myFixture.checkResult("gggg1(<caret>)")
+    val variables = runtimeInfo.variables
+    fun getParameters(name: String) = runtimeInfo.getFunctionParameters(name, (variables.getValue(name) as RValueFunction).header)
+    TestCase.assertTrue(getParameters("gggg1").isInitialized())
+    TestCase.assertEquals("(x)", getParameters("gggg1").value)
+    // Note: `kkkk1` doesn't match the prefix, so its element is never rendered
+    TestCase.assertFalse(getParameters("kkkk1").isInitialized())
+  }
+
   private fun checkCompletion(expected: List<String>) {
     myFixture.file.addRuntimeInfo(RConsoleRuntimeInfoImpl(rInterop))
     val result = myFixture.completeBasic()
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.console
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.RProcessHandlerBaseTestCase
+
+class RConsoleRuntimeInfoTest : RProcessHandlerBaseTestCase() {
+  fun testPrefetch() {
+    rInterop.executeCode("""
+      f <- function(x, y, zzz = 1) x
+      df <- data.frame(a = 1, b = "b")
+    """.trimIndent())
+    val runtimeInfo = RConsoleRuntimeInfoImpl(rInterop)
+    runtimeInfo.prefetch(listOf(RRuntimeQuery.FormalArguments("f"), RRuntimeQuery.TableColumns("df")))
+    TestCase.assertEquals(listOf("x", "y", "zzz"), runtimeInfo.getFormalArguments("f"))
+    TestCase.assertEquals(listOf("a", "b"), runtimeInfo.loadTableColumns("df").columns.map { it.name })
+  }
+
+  fun testInvalidation() {
+    rInterop.executeCode("g <- function(a) a")
+    val runtimeInfo = RConsoleRuntimeInfoImpl(rInterop)
+    TestCase.assertEquals(listOf("a"), runtimeInfo.getFormalArguments("g"))
+    rInterop.executeCode("g <- function(b) b")
+    rInterop.invalidateCaches()
+    TestCase.assertEquals(listOf("b"), runtimeInfo.getFormalArguments("g"))
+  }
+}
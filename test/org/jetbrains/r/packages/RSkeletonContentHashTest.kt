@@ -0,0 +1,33 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.packages
+
+import junit.framework.TestCase
+
+class RSkeletonContentHashTest : TestCase() {
+  private val description = mapOf("Package" to "pkg", "Version" to "1.0", "Built" to "R 4.0.2; ; 2020-07-10 12:00:00 UTC; unix")
+
+  fun testUnknownDescription() {
+    assertNull(RSkeletonUtil.computeContentHash(emptyMap()))
+  }
+
+  fun testDescriptionWithoutInstallationStamp() {
+    assertNull(RSkeletonUtil.computeContentHash(mapOf("Package" to "pkg", "Version" to "1.0")))
+    assertNotNull(RSkeletonUtil.computeContentHash(mapOf("Package" to "pkg", "Version" to "1.0", "MD5sum" to "0123")))
+    assertNotNull(RSkeletonUtil.computeContentHash(mapOf("Package" to "pkg", "Version" to "1.0", "Packaged" to "2020-07-10")))
+  }
+
+  fun testCopiesInDifferentLibraries() {
+    val first = RSkeletonUtil.computeContentHash(description + ("LibPath" to "/renv/a"))
+    val second = RSkeletonUtil.computeContentHash(description.toList().reversed().toMap() + ("LibPath" to "/renv/b"))
+    assertNotNull(first)
+    assertEquals(first, second)
+  }
+
+  fun testReinstalledPackage() {
+    val rebuilt = description + ("Built" to "R 4.0.2; ; 2020-08-01 12:00:00 UTC; unix")
+    assertFalse(RSkeletonUtil.computeContentHash(description) == RSkeletonUtil.computeContentHash(rebuilt))
+  }
+}
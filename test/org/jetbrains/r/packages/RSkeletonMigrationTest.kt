@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.packages
+
+import com.intellij.openapi.util.io.FileUtil
+import junit.framework.TestCase
+import org.jetbrains.r.packages.LibrarySummary.RLibraryPackage
+import org.jetbrains.r.skeleton.RSkeletonFileType
+import java.io.File
+
+class RSkeletonMigrationTest : TestCase() {
+  private lateinit var skeletonsDirectory: File
+  private lateinit var skeletonFile: File
+  private lateinit var costsFile: File
+
+  override fun setUp() {
+    super.setUp()
+    skeletonsDirectory = FileUtil.createTempDirectory("skeletons", null)
+    File(skeletonsDirectory, "skeletons-version").writeText((RSkeletonUtil.CUR_SKELETON_VERSION - 1).toString())
+    skeletonFile = File(skeletonsDirectory, "pkg/0123.${RSkeletonFileType.EXTENSION}")
+    FileUtil.createParentDirs(skeletonFile)
+    skeletonFile.outputStream().use { RLibraryPackage.newBuilder().setName("pkg").build().writeTo(it) }
+    costsFile = File(skeletonsDirectory, RSkeletonGenerationCosts.FILE_NAME)
+    costsFile.writeText("pkg\t100\n")
+  }
+
+  override fun tearDown() {
+    try {
+      FileUtil.delete(skeletonsDirectory)
+    }
+    finally {
+      super.tearDown()
+    }
+  }
+
+  fun testSkeletonsAreMigrated() {
+    val migration = { binPackage: RLibraryPackage -> binPackage.toBuilder().setPriority(RLibraryPackage.Priority.BASE).build() }
+    RSkeletonUtil.checkVersion(skeletonsDirectory.path, mapOf(RSkeletonUtil.CUR_SKELETON_VERSION - 1 to migration))
+    val migrated = skeletonFile.inputStream().use { RLibraryPackage.parseFrom(it) }
+    assertEquals("pkg", migrated.name)
+    assertEquals(RLibraryPackage.Priority.BASE, migrated.priority)
+    assertEquals(RSkeletonUtil.CUR_SKELETON_VERSION.toString(), File(skeletonsDirectory, "skeletons-version").readText())
+  }
+
+  fun testSkeletonsAreRemovedWithoutMigration() {
+    RSkeletonUtil.checkVersion(skeletonsDirectory.path, emptyMap())
+    assertFalse(skeletonFile.exists())
+    assertTrue(costsFile.exists())
+    assertEquals(RSkeletonUtil.CUR_SKELETON_VERSION.toString(), File(skeletonsDirectory, "skeletons-version").readText())
+  }
+
+  fun testBrokenSkeletonIsRemoved() {
+    skeletonFile.writeText("not a skeleton")
+    RSkeletonUtil.checkVersion(skeletonsDirectory.path, mapOf(RSkeletonUtil.CUR_SKELETON_VERSION - 1 to { binPackage: RLibraryPackage -> binPackage }))
+    assertFalse(skeletonFile.exists())
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.packages
+
+import junit.framework.TestCase
+import org.jetbrains.r.packages.LibrarySummary.RLibraryPackage
+import org.jetbrains.r.packages.LibrarySummary.RLibrarySymbol
+import java.io.IOException
+
+class RSkeletonSummaryTest : TestCase() {
+  fun testSymbols() {
+    val binPackage = RSkeletonUtil.convertToBinFormat("pkg", listOf(
+      "RECOMMENDED",
+      line("fun", "TRUE", "1", "function", "function (x, ...) ", "a;b", "c"),
+      line("prim", "FALSE", "1", "function"),
+      line("generic", "TRUE", "2", "function", "standardGeneric", "2", "x", "y", "1", "ANY", "function (x, y) "),
+      line("method", "TRUE", "2", "function", "MethodDefinition", "2", "x", "y", "2", "numeric", "character", "function (x, y) "),
+      line("Cls", "TRUE", "1", "classRepresentation", "3", "a", "numeric", "Cls", "2", "Base", "1", "FALSE"),
+      line("data", "TRUE", "1", "data.frame")
+    ).joinToString("\r\n"))
+
+    assertEquals(RLibraryPackage.Priority.RECOMMENDED, binPackage.priority)
+    assertEquals(listOf("fun", "prim", "generic", "method", "Cls", "data"), binPackage.symbolsList.map { it.name })
+    assertEquals(listOf(true, false, true, true, true, true), binPackage.symbolsList.map { it.exported })
+    assertEquals(listOf(RLibrarySymbol.Type.FUNCTION, RLibrarySymbol.Type.PRIMITIVE, RLibrarySymbol.Type.S4GENERIC,
+                        RLibrarySymbol.Type.S4METHOD, RLibrarySymbol.Type.S4CLASS, RLibrarySymbol.Type.DATASET),
+                 binPackage.symbolsList.map { it.type })
+
+    val function = binPackage.getSymbols(0).functionRepresentation
+    assertEquals("x, ...", function.parameters)
+    assertEquals(listOf("a", "b"), function.extraNamedArguments.argNamesList)
+    assertEquals(listOf("c"), function.extraNamedArguments.funArgNamesList)
+
+    val generic = binPackage.getSymbols(2).functionRepresentation
+    assertEquals(listOf("x", "y"), generic.s4GenericSignature.parametersList)
+    assertEquals(listOf("ANY"), generic.s4GenericSignature.valueClassesList)
+
+    val method = binPackage.getSymbols(3).functionRepresentation
+    assertEquals(listOf("x" to "numeric", "y" to "character"),
+                 method.s4ParametersInfo.s4MethodParametersList.map { it.name to it.type })
+
+    val s4Class = binPackage.getSymbols(4).s4ClassRepresentation
+    assertEquals("pkg", s4Class.packageName)
+    assertEquals(listOf(Triple("a", "numeric", "Cls")), s4Class.slotsList.map { Triple(it.name, it.type, it.declarationClass) })
+    assertEquals(listOf("Base" to 1), s4Class.superClassesList.map { it.name to it.distance })
+    assertFalse(s4Class.isVirtual)
+  }
+
+  fun testNoSymbols() {
+    val binPackage = RSkeletonUtil.convertToBinFormat("pkg", "NA")
+    assertEquals(RLibraryPackage.Priority.NA, binPackage.priority)
+    assertEquals(0, binPackage.symbolsCount)
+  }
+
+  fun testTooShortLine() {
+    assertThrows(listOf("BASE", line("fun", "TRUE")))
+    assertThrows(listOf("BASE", line("fun", "TRUE", "2", "function")))
+    assertThrows(listOf("BASE", ""))
+  }
+
+  private fun assertThrows(lines: List<String>) {
+    try {
+      RSkeletonUtil.convertToBinFormat("pkg", lines.joinToString("\n"))
+      fail("Summary must be rejected: $lines")
+    }
+    catch (ignored: IOException) {
+    }
+  }
+
+  private fun line(vararg fields: String) = fields.joinToString("\u0001")
+}
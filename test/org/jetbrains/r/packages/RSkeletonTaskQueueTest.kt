@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.packages
+
+import junit.framework.TestCase
+import java.nio.file.Path
+
+class RSkeletonTaskQueueTest : TestCase() {
+  private val costs = RSkeletonGenerationCosts(null).apply {
+    record("heavy", RSkeletonTaskQueue.MAX_BATCH_COST)
+    record("medium", 10 * 1000L)
+    record("light", 100L)
+  }
+
+  fun testExpensivePackagesGoFirstAndAlone() {
+    val queue = RSkeletonTaskQueue(tasks("light", "medium", "heavy", "unknown"), costs, 10)
+    assertEquals(listOf("heavy"), queue.takeBatch()?.names())
+    assertEquals(listOf("medium", "unknown", "light"), queue.takeBatch()?.names())
+    assertNull(queue.takeBatch())
+  }
+
+  fun testBatchSizeIsLimited() {
+    val queue = RSkeletonTaskQueue(tasks("a", "b", "c"), costs, 2)
+    assertEquals(2, queue.takeBatch()?.size)
+    assertEquals(1, queue.takeBatch()?.size)
+    assertNull(queue.takeBatch())
+  }
+
+  fun testFailedPackageIsRetriedAloneOnce() {
+    val queue = RSkeletonTaskQueue(tasks("medium", "light", "unknown"), costs, 10)
+    val batch = queue.takeBatch()!!
+    assertEquals(listOf("medium", "unknown", "light"), batch.names())
+    queue.putBack(batch.subList(2, batch.size))
+    assertTrue(queue.retry(batch[1]))
+    val retried = queue.takeBatch()!!
+    assertEquals(listOf("unknown"), retried.names())
+    assertFalse(queue.retry(retried[0]))
+    assertEquals(listOf("light"), queue.takeBatch()?.names())
+    assertNull(queue.takeBatch())
+  }
+
+  fun testFailedPackageIsProcessedAloneNextTime() {
+    val costs = RSkeletonGenerationCosts(null).apply {
+      recordFailure("crashed", 10L)
+      recordFailure("hung", 2 * RSkeletonTaskQueue.MAX_BATCH_COST)
+    }
+    assertEquals(RSkeletonGenerationCosts.FAILURE_COST, costs.estimate("crashed"))
+    assertEquals(2 * RSkeletonTaskQueue.MAX_BATCH_COST, costs.estimate("hung"))
+    val queue = RSkeletonTaskQueue(tasks("a", "crashed", "b"), costs, 10)
+    assertEquals(listOf("crashed"), queue.takeBatch()?.names())
+    assertEquals(listOf("a", "b"), queue.takeBatch()?.names())
+    assertNull(queue.takeBatch())
+  }
+
+  private fun tasks(vararg names: String) = names.map { RPackage(it, "1.0") to Path.of("$it.RSkeleton") }
+
+  private fun List<Pair<RPackage, Path>>.names() = map { it.first.name }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import com.google.protobuf.Any as ProtoAny
+import com.google.protobuf.ByteString
+import com.google.protobuf.BytesValue
+import io.grpc.*
+import io.grpc.inprocess.InProcessChannelBuilder
+import io.grpc.inprocess.InProcessServerBuilder
+import io.grpc.stub.ClientCalls
+import io.grpc.stub.ServerCalls
+import io.grpc.stub.StreamObserver
+import org.jetbrains.concurrency.AsyncPromise
+import org.jetbrains.r.RUsefulTestCase
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+class RInteropChunkedCallsTest : RUsefulTestCase() {
+  private var server: Server? = null
+  private var channel: ManagedChannel? = null
+
+  override fun tearDown() {
+    try {
+      channel?.shutdownNow()
+      server?.shutdownNow()
+    } finally {
+      super.tearDown()
+    }
+  }
+
+  fun testChunksAreReassembled() {
+    val response = StringOrError.newBuilder().setValue("x".repeat(100000)).build()
+    val chunks = splitIntoChunks(response.toByteString())
+    assertTrue(chunks.size > 1)
+    val data = chunks.fold(ByteString.EMPTY) { result, chunk -> result.concat(chunk) }
+    assertEquals(response, RInteropChunkedCalls.parseResponse<StringOrError>(EVALUATE_AS_TEXT, data))
+  }
+
+  fun testChunkedCallIsReassembled() {
+    val response = StringOrError.newBuilder().setValue("x".repeat(100000)).build()
+    var requestedMethod: String? = null
+    val calls = createChunkedCalls(createChunkedService { request, observer ->
+      requestedMethod = request.typeUrl
+      for (chunk in splitIntoChunks(response.toByteString())) {
+        observer.onNext(BytesValue.newBuilder().setValue(chunk).build())
+      }
+      observer.onCompleted()
+    })
+    val promise = AsyncPromise<StringOrError>()
+    calls.start("evaluateAsText", RRef.getDefaultInstance(), CallOptions.DEFAULT, promise) { fail("Unexpected fallback") }
+    assertEquals(response, promise.blockingGet(TIMEOUT, TimeUnit.MILLISECONDS))
+    assertEquals(EVALUATE_AS_TEXT, requestedMethod)
+  }
+
+  fun testNotChunkedUnlessAdvertised() {
+    val calls = createChunkedCalls(createChunkedService { _, observer -> observer.onCompleted() })
+    assertFalse(calls.isSupported)
+    assertFalse(calls.isChunked("evaluateAsText"))
+  }
+
+  fun testCapabilitiesAreReadFromHeaders() {
+    val service = createChunkedService { _, observer ->
+      observer.onNext(BytesValue.getDefaultInstance())
+      observer.onCompleted()
+    }
+    val calls = createChunkedCalls(ServerInterceptors.intercept(service, object : ServerInterceptor {
+      override fun <ReqT, RespT> interceptCall(call: ServerCall<ReqT, RespT>, headers: Metadata,
+                                               next: ServerCallHandler<ReqT, RespT>): ServerCall.Listener<ReqT> {
+        return next.startCall(object : ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+          override fun sendHeaders(headers: Metadata) {
+            headers.put(RInteropChunkedCalls.CAPABILITIES_KEY, "somethingElse,chunkedCall")
+            super.sendHeaders(headers)
+          }
+        }, headers)
+      }
+    }))
+    val intercepted = ClientInterceptors.intercept(channel!!, calls.capabilitiesInterceptor)
+    ClientCalls.blockingServerStreamingCall(intercepted, RInteropChunkedCalls.CHUNKED_CALL_METHOD, CallOptions.DEFAULT,
+                                            ProtoAny.getDefaultInstance()).forEach { }
+    assertTrue(calls.isSupported)
+    assertTrue(calls.isChunked("evaluateAsText"))
+    assertFalse(calls.isChunked("getInfo"))
+  }
+
+  fun testFallbackToUnaryIfUnimplemented() {
+    // Note: the server has no `chunkedCall` method, like older RWrapper versions
+    val calls = createChunkedCalls(ServerServiceDefinition.builder(RPIServiceGrpc.SERVICE_NAME).build())
+    val fallback = CountDownLatch(1)
+    val promise = AsyncPromise<StringOrError>()
+    calls.start("evaluateAsText", RRef.getDefaultInstance(), CallOptions.DEFAULT, promise) { fallback.countDown() }
+    assertTrue(fallback.await(TIMEOUT, TimeUnit.MILLISECONDS))
+    assertFalse(promise.isDone)
+    assertFalse(calls.isSupported)
+    assertFalse(calls.isChunked("evaluateAsText"))
+  }
+
+  fun testDeadlineOfCallOptionsIsRespected() {
+    val calls = createChunkedCalls(createChunkedService { _, _ -> })  // Note: never answers
+    val promise = AsyncPromise<StringOrError>()
+    val callOptions = CallOptions.DEFAULT.withDeadlineAfter(DEADLINE, TimeUnit.MILLISECONDS)
+    calls.start("evaluateAsText", RRef.getDefaultInstance(), callOptions, promise) { fail("Unexpected fallback") }
+    val error = try {
+      promise.blockingGet(TIMEOUT, TimeUnit.MILLISECONDS)
+      null
+    } catch (e: Exception) {
+      (e as? ExecutionException)?.cause ?: e
+    }
+    assertEquals(Status.Code.DEADLINE_EXCEEDED, (error as? StatusRuntimeException)?.status?.code)
+  }
+
+  private fun createChunkedService(
+    handler: (ProtoAny, StreamObserver<BytesValue>) -> Unit
+  ): ServerServiceDefinition {
+    val method = ServerCalls.asyncServerStreamingCall<ProtoAny, BytesValue> { request, observer -> handler(request, observer) }
+    return ServerServiceDefinition.builder(RPIServiceGrpc.SERVICE_NAME)
+      .addMethod(RInteropChunkedCalls.CHUNKED_CALL_METHOD, method)
+      .build()
+  }
+
+  private fun createChunkedCalls(service: ServerServiceDefinition): RInteropChunkedCalls {
+    val name = InProcessServerBuilder.generateName()
+    server = InProcessServerBuilder.forName(name).directExecutor().addService(service).build().start()
+    val inProcessChannel = InProcessChannelBuilder.forName(name).directExecutor().build()
+    channel = inProcessChannel
+    return RInteropChunkedCalls(inProcessChannel, project, false) { e, _ -> e }
+  }
+
+  private fun splitIntoChunks(bytes: ByteString): List<ByteString> {
+    return (0 until bytes.size() step CHUNK_SIZE).map { bytes.substring(it, minOf(it + CHUNK_SIZE, bytes.size())) }
+  }
+
+  companion object {
+    private const val CHUNK_SIZE = 4096
+    private const val DEADLINE = 100L
+    private const val TIMEOUT = 5000L
+
+    private val EVALUATE_AS_TEXT = MethodDescriptor.generateFullMethodName(RPIServiceGrpc.SERVICE_NAME, "evaluateAsText")
+  }
+}
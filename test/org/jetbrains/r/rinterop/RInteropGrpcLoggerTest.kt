@@ -0,0 +1,47 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import com.google.protobuf.StringValue
+import junit.framework.TestCase
+
+class RInteropGrpcLoggerTest : TestCase() {
+  fun testPayloadsAreNotCapturedByDefault() {
+    val logger = RInteropGrpcLogger(MAX_MESSAGES)
+    repeat(4) { call(logger) }
+    assertTrue(logger.messages.isEmpty())
+    assertEquals(4L, logger.statistics.methodStatistics.getValue(METHOD_NAME).calls.sum())
+  }
+
+  fun testPayloadsAreSampled() {
+    val logger = RInteropGrpcLogger(MAX_MESSAGES, 2)
+    repeat(4) { call(logger) }
+    assertEquals(2, logger.messages.size)
+    assertEquals(4L, logger.statistics.methodStatistics.getValue(METHOD_NAME).calls.sum())
+    val message = logger.messages.first() as RInteropGrpcLogger.StubMessage
+    assertEquals(REQUEST, StringValue.parseFrom(message.request))
+    assertEquals(RESPONSE, StringValue.parseFrom(message.response))
+  }
+
+  fun testOnlyLastSampledPayloadsAreKept() {
+    val logger = RInteropGrpcLogger(MAX_MESSAGES, 1)
+    repeat(2 * MAX_MESSAGES) { call(logger) }
+    assertEquals(MAX_MESSAGES, logger.messages.size)
+  }
+
+  private fun call(logger: RInteropGrpcLogger) {
+    val number = logger.nextStubNumber()
+    logger.onStubMessageRequest(number, REQUEST, METHOD_NAME)
+    logger.onStubMessageResponse(number, RESPONSE)
+  }
+
+  companion object {
+    private const val MAX_MESSAGES = 3
+    private const val METHOD_NAME = "evaluateAsText"
+
+    private val REQUEST = StringValue.of("request")
+    private val RESPONSE = StringValue.of("response")
+  }
+}
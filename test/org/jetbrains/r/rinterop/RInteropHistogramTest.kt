@@ -0,0 +1,42 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import junit.framework.TestCase
+
+class RInteropHistogramTest : TestCase() {
+  fun testBucketsCoverValues() {
+    for (value in listOf(0L, 1L, 7L, 8L, 9L, 15L, 16L, 17L, 1000L, 123456789L, Long.MAX_VALUE)) {
+      val index = RInteropHistogram.bucketIndex(value)
+      assertTrue(value <= RInteropHistogram.bucketUpperBound(index))
+      if (index > 0) {
+        assertTrue(value > RInteropHistogram.bucketUpperBound(index - 1))
+      }
+    }
+  }
+
+  fun testPercentiles() {
+    val histogram = RInteropHistogram()
+    for (value in 1L..1000L) {
+      histogram.record(value)
+    }
+    assertEquals(1000L, histogram.count)
+    assertEquals(1000L, histogram.max)
+    assertEquals(500.5, histogram.mean, 1e-9)
+    assertRelativeError(500L, histogram.percentile(50.0))
+    assertRelativeError(990L, histogram.percentile(99.0))
+    assertEquals(1000L, histogram.percentile(100.0))
+  }
+
+  fun testEmpty() {
+    val histogram = RInteropHistogram()
+    assertEquals(0L, histogram.percentile(50.0))
+    assertEquals(0.0, histogram.mean)
+  }
+
+  private fun assertRelativeError(expected: Long, actual: Long) {
+    assertTrue("$actual is not close to $expected", actual >= expected && actual <= expected + expected / 8)
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.rinterop
+
+import junit.framework.TestCase
+import org.jetbrains.concurrency.AsyncPromise
+import java.util.*
+
+class RInteropSchedulerTest : TestCase() {
+  private val started = Collections.synchronizedList(mutableListOf<String>())
+
+  fun testBackgroundWaitsForInteractive() {
+    val scheduler = RInteropScheduler(maxBackgroundCalls = 2, maxBackgroundDelay = Long.MAX_VALUE / 2)
+    val interactive = submit(scheduler, RInteropPriority.INTERACTIVE, "interactive")
+    submit(scheduler, RInteropPriority.BACKGROUND, "background")
+    submit(scheduler, RInteropPriority.NORMAL, "normal")
+    assertEquals(listOf("interactive", "normal"), started)
+    assertEquals(1, scheduler.statistics.getValue(RInteropPriority.BACKGROUND).queueDepth)
+    interactive.setResult(Unit)
+    assertEquals(listOf("interactive", "normal", "background"), started)
+    assertEquals(0, scheduler.statistics.getValue(RInteropPriority.BACKGROUND).queueDepth)
+  }
+
+  fun testBackgroundConcurrencyIsLimited() {
+    val scheduler = RInteropScheduler(maxBackgroundCalls = 1, maxBackgroundDelay = 0L)
+    val first = submit(scheduler, RInteropPriority.BACKGROUND, "first")
+    submit(scheduler, RInteropPriority.BACKGROUND, "second")
+    assertEquals(listOf("first"), started)
+    first.setResult(Unit)
+    assertEquals(listOf("first", "second"), started)
+    assertEquals(1, scheduler.statistics.getValue(RInteropPriority.BACKGROUND).completed)
+  }
+
+  fun testPriorityIsOverridden() {
+    val scheduler = RInteropScheduler(maxBackgroundCalls = 1, maxBackgroundDelay = 0L)
+    submit(scheduler, RInteropPriority.BACKGROUND, "background")
+    scheduler.withPriority(RInteropPriority.INTERACTIVE) {
+      submit(scheduler, RInteropPriority.BACKGROUND, "overridden")
+    }
+    assertEquals(listOf("background", "overridden"), started)
+    assertEquals(1, scheduler.statistics.getValue(RInteropPriority.INTERACTIVE).submitted)
+  }
+
+  fun testSupersededRequestIsDropped() {
+    val scheduler = RInteropScheduler(maxBackgroundCalls = 1, maxBackgroundDelay = 0L)
+    submit(scheduler, RInteropPriority.BACKGROUND, "running")
+    val token = scheduler.supersede(CALLER)
+    val superseded = scheduler.withPriority(RInteropPriority.BACKGROUND, token) {
+      submit(scheduler, RInteropPriority.NORMAL, "superseded")
+    }
+    scheduler.supersede(CALLER)
+    assertTrue(token.isCancelled)
+    assertTrue(superseded.isCancelled)
+    assertEquals(listOf("running"), started)
+    assertEquals(1, scheduler.statistics.getValue(RInteropPriority.BACKGROUND).dropped)
+  }
+
+  fun testSupersededInteractiveRequestIsDropped() {
+    val scheduler = RInteropScheduler(coalescingDelay = Long.MAX_VALUE / 2)
+    val token = scheduler.supersede(CALLER)
+    val superseded = scheduler.withPriority(RInteropPriority.INTERACTIVE, token) {
+      submit(scheduler, RInteropPriority.NORMAL, "superseded")
+    }
+    assertEquals(1, scheduler.statistics.getValue(RInteropPriority.INTERACTIVE).queueDepth)
+    scheduler.supersede(CALLER)
+    assertTrue(superseded.isCancelled)
+    assertEquals(emptyList<String>(), started)
+    val lane = scheduler.statistics.getValue(RInteropPriority.INTERACTIVE)
+    assertEquals(1, lane.dropped)
+    assertEquals(0, lane.queueDepth)
+  }
+
+  fun testTokenBoundRequestStartsAfterCoalescingDelay() {
+    val scheduler = RInteropScheduler(coalescingDelay = COALESCING_DELAY)
+    val token = scheduler.supersede(CALLER)
+    val submitTime = System.currentTimeMillis()
+    scheduler.withPriority(RInteropPriority.INTERACTIVE, token) {
+      submit(scheduler, RInteropPriority.NORMAL, "interactive")
+    }
+    submit(scheduler, RInteropPriority.NORMAL, "unbound")
+    assertEquals(listOf("unbound"), started)
+    while (started.size < 2 && System.currentTimeMillis() - submitTime < TIMEOUT) {
+      Thread.sleep(10L)
+    }
+    assertEquals(listOf("unbound", "interactive"), started)
+    val lane = scheduler.statistics.getValue(RInteropPriority.INTERACTIVE)
+    assertEquals(1, lane.running)
+    assertTrue(lane.maxWaitMillis >= COALESCING_DELAY)
+    assertEquals(1, lane.maxQueueDepth)
+  }
+
+  private fun submit(scheduler: RInteropScheduler, priority: RInteropPriority, name: String): AsyncPromise<Unit> {
+    return AsyncPromise<Unit>().also { promise ->
+      scheduler.submit(priority, promise) { started.add(name) }
+    }
+  }
+
+  companion object {
+    private const val CALLER = "caller"
+    private const val COALESCING_DELAY = 50L
+    private const val TIMEOUT = 5000L
+  }
+}
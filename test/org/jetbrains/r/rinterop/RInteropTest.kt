@@ -286,6 +286,18 @@ fun testExecuteMultilineWithFor() {
     TestCase.assertFalse("tools" in packages)
   }
 
+  fun testCacheScopes() {
+    var computations = 0
+    val value by rInterop.Cached(0, setOf(RInterop.CacheScope.WORKING_DIR)) { ++computations }
+    TestCase.assertEquals(1, value)
+    rInterop.invalidateCaches(setOf(RInterop.CacheScope.ENVIRONMENTS), dropPsiCaches = false)
+    TestCase.assertEquals(1, value)
+    rInterop.invalidateCaches(setOf(RInterop.CacheScope.WORKING_DIR), dropPsiCaches = false)
+    TestCase.assertEquals(2, value)
+    rInterop.invalidateCaches()
+    TestCase.assertEquals(3, value)
+  }
+
   fun testToplevelHandlers() {
     rInterop.replExecute("""
       addTaskCallback(function(...) {
@@ -30,6 +30,26 @@ class RVariableLoaderTest : RProcessHandlerBaseTestCase() {
     ), vars.map { it.value.javaClass })
   }
 
+  fun testStreaming() {
+    rInterop.executeCode("l <- as.list(1:1234)")
+    val loader = RReference.expressionRef("l", rInterop).createVariableLoader()
+    val blocks = mutableListOf<List<RVar>>()
+    val totalCount = loader.loadVariablesStreaming(start = 10, blockSize = 100) { blocks.add(it.vars) }.blockingGet(DEFAULT_TIMEOUT)
+    TestCase.assertEquals(1234L, totalCount)
+    TestCase.assertEquals(13, blocks.size)
+    TestCase.assertEquals((11..1234).map { "[1] $it" }, blocks.flatten().map { (it.value as RValueSimple).text.trim() })
+    TestCase.assertEquals(1234, loader.variables.size)
+  }
+
+  fun testStreamingEmptyRange() {
+    rInterop.executeCode("l <- as.list(1:1234)")
+    val loader = RReference.expressionRef("l", rInterop).createVariableLoader()
+    val blocks = mutableListOf<List<RVar>>()
+    val totalCount = loader.loadVariablesStreaming(start = 1234, end = 1234) { blocks.add(it.vars) }.blockingGet(DEFAULT_TIMEOUT)
+    TestCase.assertEquals(1234L, totalCount)
+    TestCase.assertTrue(blocks.isEmpty())
+  }
+
   fun testHiddenAndPartial() {
     rInterop.executeCode("""
       e <- new.env()
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.visualize.RDataFrameChunkCache
+
+class RDataFrameChunkCacheTest : TestCase() {
+  private class TestOwner : RDataFrameChunkCache.Owner {
+    val evicted = mutableListOf<Long>()
+    override fun evictChunk(index: Long) {
+      evicted.add(index)
+    }
+  }
+
+  fun testEvictsLeastRecentlyUsed() {
+    val cache = RDataFrameChunkCache { 300 }
+    val owner = TestOwner()
+    cache.put(owner, 0L, 100)
+    cache.put(owner, 1L, 100)
+    cache.put(owner, 2L, 100)
+    cache.touch(owner, 0L)
+    cache.put(owner, 3L, 100)
+    TestCase.assertEquals(listOf(1L), owner.evicted)
+    TestCase.assertEquals(300, cache.totalSize)
+  }
+
+  fun testBudgetIsShared() {
+    val cache = RDataFrameChunkCache { 250 }
+    val first = TestOwner()
+    val second = TestOwner()
+    cache.put(first, 0L, 100)
+    cache.put(second, 0L, 100)
+    cache.put(second, 1L, 100)
+    TestCase.assertEquals(listOf(0L), first.evicted)
+    TestCase.assertEquals(0, cache.sizeOf(first))
+    TestCase.assertEquals(200, cache.sizeOf(second))
+  }
+
+  fun testLargeChunkIsKept() {
+    val cache = RDataFrameChunkCache { 100 }
+    val owner = TestOwner()
+    cache.put(owner, 0L, 50)
+    cache.put(owner, 1L, 500)
+    TestCase.assertEquals(listOf(0L), owner.evicted)
+    TestCase.assertEquals(500, cache.totalSize)
+  }
+
+  fun testRemoveAll() {
+    val cache = RDataFrameChunkCache { 1000 }
+    val owner = TestOwner()
+    cache.put(owner, 0L, 100)
+    cache.put(owner, 1L, 100)
+    cache.removeAll(owner)
+    TestCase.assertEquals(0, cache.totalSize)
+    TestCase.assertTrue(owner.evicted.isEmpty())
+  }
+}
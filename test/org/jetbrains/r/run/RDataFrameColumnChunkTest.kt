@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import com.google.protobuf.Empty
+import junit.framework.TestCase
+import org.jetbrains.r.rinterop.DataFrameGetDataResponse
+import org.jetbrains.r.rinterop.DataFrameInfoResponse.ColumnType
+import org.jetbrains.r.run.visualize.RDataFrameColumnChunk
+
+class RDataFrameColumnChunkTest : TestCase() {
+  fun testInt() {
+    val chunk = decode(ColumnType.INTEGER, listOf(1, null, 3)) { setIntValue(it) }
+    TestCase.assertEquals(listOf(1, null, 3), List(chunk.size) { chunk.getValue(it) })
+    TestCase.assertTrue(chunk.isNa(1))
+  }
+
+  fun testDouble() {
+    val chunk = decode(ColumnType.DOUBLE, listOf(null, 2.5, -1.0)) { setDoubleValue(it) }
+    TestCase.assertEquals(listOf(null, 2.5, -1.0), List(chunk.size) { chunk.getValue(it) })
+  }
+
+  fun testBoolean() {
+    val chunk = decode(ColumnType.BOOLEAN, listOf(true, false, null)) { setBooleanValue(it) }
+    TestCase.assertEquals(listOf(true, false, null), List(chunk.size) { chunk.getValue(it) })
+  }
+
+  fun testStringDictionary() {
+    val chunk = decode(ColumnType.STRING, listOf("aa", "bb", null, "aa")) { setStringValue(it) }
+    TestCase.assertEquals(listOf("aa", "bb", null, "aa"), List(chunk.size) { chunk.getValue(it) })
+    TestCase.assertSame(chunk.getValue(0), chunk.getValue(3))
+  }
+
+  fun testOutOfRange() {
+    val chunk = decode(ColumnType.INTEGER, listOf(1)) { setIntValue(it) }
+    TestCase.assertNull(chunk.getValue(1))
+    TestCase.assertNull(chunk.getValue(-1))
+  }
+
+  private fun <T : Any> decode(type: ColumnType, values: List<T?>,
+                               setter: DataFrameGetDataResponse.Value.Builder.(T) -> Unit): RDataFrameColumnChunk {
+    val column = DataFrameGetDataResponse.Column.newBuilder()
+    values.forEach { value ->
+      val builder = DataFrameGetDataResponse.Value.newBuilder()
+      if (value == null) builder.setNa(Empty.getDefaultInstance()) else builder.setter(value)
+      column.addValues(builder)
+    }
+    return RDataFrameColumnChunk.decode(type, column.build())
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.visualize.RDataFrameColumnStatistics
+
+class RDataFrameColumnStatisticsTest : TestCase() {
+  fun testNumeric() {
+    val statistics = RDataFrameColumnStatistics.parse(listOf("na=2", "distinct=10", "min=-1.5", "max=Inf", "mean=3.25",
+                                                             "histogram=1 0 4"))
+    TestCase.assertEquals(RDataFrameColumnStatistics(2, 10, -1.5, Double.POSITIVE_INFINITY, 3.25, listOf(1L, 0L, 4L)), statistics)
+  }
+
+  fun testString() {
+    val statistics = RDataFrameColumnStatistics.parse(listOf("distinct=3", "na=0"))
+    TestCase.assertEquals(RDataFrameColumnStatistics(0, 3), statistics)
+  }
+}
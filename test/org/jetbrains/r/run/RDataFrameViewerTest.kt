@@ -6,6 +6,7 @@ package org.jetbrains.r.run
 
 import com.intellij.openapi.util.use
 import junit.framework.TestCase
+import org.jetbrains.concurrency.Promise
 import org.jetbrains.r.blockingGetAndDispatchEvents
 import org.jetbrains.r.rinterop.RReference
 import org.jetbrains.r.run.visualize.RDataFrameException
@@ -48,6 +49,47 @@ class RDataFrameViewerTest : RProcessHandlerBaseTestCase() {
     }
   }
 
+  fun testLoadRange() {
+    createViewer("""dplyr::tibble(x = 0L:999L, y = x * 2L)""").use { viewer ->
+      viewer.ensureLoaded(100 until 900).blockingGet(DEFAULT_TIMEOUT)
+      for (i in 100 until 900) {
+        TestCase.assertEquals(i, viewer.getValueAt(i, 1))
+        TestCase.assertEquals(i * 2, viewer.getValueAt(i, 2))
+      }
+      TestCase.assertEquals(999, viewer.getValueAt(999, 1))
+    }
+  }
+
+  fun testLoadColumns() {
+    createViewer("""as.data.frame(matrix(1:4000, nrow = 100))""").use { viewer ->
+      TestCase.assertEquals(41, viewer.nColumns)
+      viewer.ensureLoaded(0 until 100, 20 until 25).blockingGet(DEFAULT_TIMEOUT)
+      // All the columns are decoded from the same response
+      TestCase.assertEquals(Promise.State.SUCCEEDED, viewer.ensureLoaded(0 until 100, 40 until 41).state)
+      for (i in 0 until 100) {
+        TestCase.assertEquals(1900 + i + 1, viewer.getValueAt(i, 20))
+        TestCase.assertEquals(3900 + i + 1, viewer.getValueAt(i, 40))
+      }
+    }
+  }
+
+  fun testColumnStatistics() {
+    createViewer("""data.frame(x = c(1, 2, NA, 5), s = c("a", "b", "a", NA))""").use { viewer ->
+      val x = viewer.getColumnStatistics(1).blockingGet(DEFAULT_TIMEOUT)!!
+      TestCase.assertEquals(1L, x.naCount)
+      TestCase.assertEquals(3L, x.distinctCount)
+      TestCase.assertEquals(1.0, x.min)
+      TestCase.assertEquals(5.0, x.max)
+      TestCase.assertEquals(8.0 / 3, x.mean!!, 1e-9)
+      TestCase.assertEquals(3L, x.histogram.sum())
+      val s = viewer.getColumnStatistics(2).blockingGet(DEFAULT_TIMEOUT)!!
+      TestCase.assertEquals(1L, s.naCount)
+      TestCase.assertEquals(2L, s.distinctCount)
+      TestCase.assertNull(s.mean)
+      TestCase.assertSame(x, viewer.getColumnStatistics(1).blockingGet(DEFAULT_TIMEOUT))
+    }
+  }
+
   fun testSort() {
     data class MyRow(val i: Int, val x: Int, val y: Int, val z: String)
     val data = List(50) { MyRow(it + 1, it / 7, it % 7, "a$it") }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.concurrency.AsyncPromise
+import org.jetbrains.concurrency.Promise
+import org.jetbrains.r.run.graphics.RGraphicsRescaleQueue
+import org.jetbrains.r.run.graphics.RGraphicsUtils
+import java.awt.Dimension
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class RGraphicsRescaleQueueTest : TestCase() {
+  private val queue = RGraphicsRescaleQueue(DEVICE_ID, { true }, DEBOUNCE_DELAY)
+  private val started = LinkedBlockingQueue<Launch>()
+
+  fun testRequestsAreDebounced() {
+    val promises = listOf(SMALL, MEDIUM, LARGE).map { queue.submit(1, it, createTask(it)) }
+    val launch = takeLaunch()
+    assertEquals(LARGE, launch.parameters)
+    launch.promise.setResult(Unit)
+    for (promise in promises) {
+      promise.blockingGet(TIMEOUT, TimeUnit.MILLISECONDS)
+    }
+    assertNoMoreLaunches()
+  }
+
+  fun testRescaleStartsAfterDebounceDelay() {
+    val submitTime = System.currentTimeMillis()
+    queue.submit(1, SMALL, createTask(SMALL))
+    takeLaunch().promise.setResult(Unit)
+    assertTrue(System.currentTimeMillis() - submitTime >= DEBOUNCE_DELAY)
+  }
+
+  fun testLatestWinsWhileRunning() {
+    queue.submit(1, SMALL, createTask(SMALL))
+    val running = takeLaunch()
+    queue.submit(1, MEDIUM, createTask(MEDIUM))
+    assertTrue(running.isSuperseded())
+    val latest = queue.submit(1, LARGE, createTask(LARGE))
+    assertNoMoreLaunches()
+    running.promise.setResult(Unit)
+    val next = takeLaunch()
+    assertEquals(LARGE, next.parameters)
+    assertFalse(next.isSuperseded())
+    next.promise.setResult(Unit)
+    latest.blockingGet(TIMEOUT, TimeUnit.MILLISECONDS)
+    assertNoMoreLaunches()
+  }
+
+  fun testSameParametersAsRunningAreDropped() {
+    val first = queue.submit(1, SMALL, createTask(SMALL))
+    val running = takeLaunch()
+    val second = queue.submit(1, SMALL, createTask(SMALL))
+    assertFalse(running.isSuperseded())
+    assertSame(first, second)
+    running.promise.setResult(Unit)
+    second.blockingGet(TIMEOUT, TimeUnit.MILLISECONDS)
+    assertNoMoreLaunches()
+  }
+
+  fun testDifferentSnapshotsAreIndependent() {
+    queue.submit(1, SMALL, createTask(SMALL))
+    val running = takeLaunch()
+    queue.submit(2, SMALL, createTask(SMALL))
+    assertFalse(running.isSuperseded())
+    running.promise.setResult(Unit)
+    takeLaunch().promise.setResult(Unit)
+    assertEquals(2, queue.statistics.count)
+  }
+
+  private fun createTask(parameters: RGraphicsUtils.ScreenParameters): (() -> Boolean) -> Promise<Unit> {
+    return { isSuperseded ->
+      AsyncPromise<Unit>().also { promise ->
+        started.add(Launch(parameters, isSuperseded, promise))
+      }
+    }
+  }
+
+  private fun takeLaunch(): Launch {
+    return started.poll(TIMEOUT, TimeUnit.MILLISECONDS) ?: throw AssertionError("Rescale hasn't been started")
+  }
+
+  private fun assertNoMoreLaunches() {
+    assertNull(started.poll(3 * DEBOUNCE_DELAY, TimeUnit.MILLISECONDS))
+  }
+
+  private class Launch(val parameters: RGraphicsUtils.ScreenParameters, val isSuperseded: () -> Boolean, val promise: AsyncPromise<Unit>)
+
+  companion object {
+    private const val DEVICE_ID = 1L
+    private const val DEBOUNCE_DELAY = 50L
+    private const val TIMEOUT = 5000L
+
+    private val SMALL = RGraphicsUtils.ScreenParameters(Dimension(100, 100), 72)
+    private val MEDIUM = RGraphicsUtils.ScreenParameters(Dimension(200, 200), 72)
+    private val LARGE = RGraphicsUtils.ScreenParameters(Dimension(300, 300), 72)
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import org.jetbrains.r.RUsefulTestCase
+import org.jetbrains.r.rinterop.*
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.Image
+import java.awt.geom.Rectangle2D
+import kotlin.random.Random
+
+class RPlotConvertTest : RUsefulTestCase() {
+  fun testPointBufferSlices() {
+    val plot = createPlot()
+    val converted = RPlotUtil.convert(plot, 0)
+    val figures = converted.layers.flatMap { it.figures }
+    val polylines = figures.flatMap { figure ->
+      when (figure) {
+        is RFigure.Path -> figure.subPaths
+        is RFigure.Polygon -> listOf(figure.polyline)
+        is RFigure.Polyline -> listOf(figure.polyline)
+        else -> emptyList()
+      }
+    }
+    val expected = plot.layerList.flatMap { it.figureList }.flatMap { figure ->
+      when (figure.kindCase) {
+        Figure.KindCase.PATH -> figure.path.subPathList
+        Figure.KindCase.POLYGON -> listOf(figure.polygon.polyline)
+        Figure.KindCase.POLYLINE -> listOf(figure.polyline.polyline)
+        else -> emptyList()
+      }
+    }
+    assertEquals(expected.size, polylines.size)
+    for ((polyline, original) in polylines.zip(expected)) {
+      assertSame(polylines.first().points, polyline.points)
+      assertEquals(original.pointList, polyline.points.slice(polyline.offset until polyline.offset + polyline.size))
+      assertEquals(original.previewCount, polyline.previewCount)
+    }
+  }
+
+  fun testSameCirclesAreGrouped() {
+    val converted = RPlotUtil.convert(createPlot(), 0)
+    val circles = converted.layers.flatMap { it.figures }.filter { it is RFigure.Circle || it is RFigure.Circles }
+    assertEquals(listOf(CIRCLE_COUNT, 1, CIRCLE_COUNT), circles.map { if (it is RFigure.Circles) it.centers.size else 1 })
+  }
+
+  fun testReplayMatchesPerFigureReplay() {
+    val plot = createPlot()
+    for (isPreview in listOf(false, true)) {
+      val expected = record(convertPerFigure(plot), isPreview)
+      val actual = record(RPlotUtil.convert(plot, 0), isPreview)
+      assertEquals(expected, actual)
+    }
+  }
+
+  private fun record(plot: RPlot, isPreview: Boolean): List<String> {
+    val provider = RecordingPlotterProvider()
+    RPlotUtil.replay(plot, provider, darkMode = false, isPreview = isPreview)
+    return provider.calls
+  }
+
+  /**
+   * Converts [plot] the way it was done before the point buffer was introduced:
+   * every circle is a separate figure and every polyline has its own array
+   */
+  private fun convertPerFigure(plot: Plot): RPlot {
+    val layers = plot.layerList.map { layer ->
+      val figures = layer.figureList.map { figure ->
+        when (figure.kindCase) {
+          Figure.KindCase.CIRCLE -> figure.circle.let { RFigure.Circle(it.center, it.radius, it.strokeIndex, it.colorIndex, it.fillIndex) }
+          Figure.KindCase.PATH -> figure.path.let {
+            val winding = if (it.winding) RWinding.NON_ZERO else RWinding.EVEN_ODD
+            RFigure.Path(it.subPathList.map { subPath -> convert(subPath) }, winding, it.strokeIndex, it.colorIndex, it.fillIndex)
+          }
+          Figure.KindCase.POLYGON -> figure.polygon.let { RFigure.Polygon(convert(it.polyline), it.strokeIndex, it.colorIndex, it.fillIndex) }
+          Figure.KindCase.POLYLINE -> figure.polyline.let { RFigure.Polyline(convert(it.polyline), it.strokeIndex, it.colorIndex) }
+          else -> throw IllegalArgumentException("Unexpected figure: ${figure.kindCase}")
+        }
+      }
+      RLayer(layer.viewportIndex, layer.clippingAreaIndex, figures, layer.isAxisText)
+    }
+    val viewports = listOf(RViewport.Free(0L, 0L, 0), RViewport.Fixed(1.0f, 0.0f, 0))
+    return RPlot(0, emptyList(), COLORS, STROKES, viewports, layers, plot.previewComplexity, plot.totalComplexity, null)
+  }
+
+  private fun convert(polyline: Polyline): RPolyline {
+    return RPolyline(polyline.pointList.toLongArray(), polyline.previewCount)
+  }
+
+  private class RecordingPlotterProvider : RPlotterProvider, RPlotter {
+    val calls = mutableListOf<String>()
+
+    override val parameters = RGraphicsUtils.ScreenParameters(Dimension(640, 480), 72)
+
+    override fun create(fonts: List<RFont>, colors: List<Color>, strokes: List<RStroke>) = this
+
+    override fun setClippingArea(area: Rectangle2D.Float) {
+      calls.add("clip $area")
+    }
+
+    override fun getWidthOf(text: String, fontIndex: Int) = text.length
+
+    override fun drawCircle(x: Float, y: Float, radius: Float, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+      calls.add("circle $x $y $radius $strokeIndex $colorIndex $fillIndex")
+    }
+
+    override fun drawLine(xFrom: Float, yFrom: Float, xTo: Float, yTo: Float, strokeIndex: Int, colorIndex: Int) {
+      calls.add("line $xFrom $yFrom $xTo $yTo $strokeIndex $colorIndex")
+    }
+
+    override fun drawPath(subPaths: List<Pair<FloatArray, FloatArray>>, winding: RWinding, strokeIndex: Int, colorIndex: Int,
+                          fillIndex: Int) {
+      val points = subPaths.map { (xs, ys) -> xs.toList() to ys.toList() }
+      calls.add("path $points $winding $strokeIndex $colorIndex $fillIndex")
+    }
+
+    override fun drawPolygon(xs: FloatArray, ys: FloatArray, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+      calls.add("polygon ${xs.toList()} ${ys.toList()} $strokeIndex $colorIndex $fillIndex")
+    }
+
+    override fun drawPolyline(xs: FloatArray, ys: FloatArray, strokeIndex: Int, colorIndex: Int) {
+      calls.add("polyline ${xs.toList()} ${ys.toList()} $strokeIndex $colorIndex")
+    }
+
+    override fun drawRaster(image: Image, x: Float, y: Float, angle: Float) {
+      calls.add("raster $x $y $angle")
+    }
+
+    override fun drawRectangle(x: Float, y: Float, width: Float, height: Float, strokeIndex: Int, colorIndex: Int, fillIndex: Int) {
+      calls.add("rectangle $x $y $width $height $strokeIndex $colorIndex $fillIndex")
+    }
+
+    override fun drawText(text: String, x: Float, y: Float, angle: Float, anchor: Float, fontIndex: Int, colorIndex: Int) {
+      calls.add("text $text $x $y $angle $anchor $fontIndex $colorIndex")
+    }
+  }
+
+  companion object {
+    private const val CIRCLE_COUNT = 50
+    private const val POINT_COUNT = 100
+
+    private val COLORS = listOf(Color.BLACK, Color.RED)
+    private val STROKES = listOf(RStroke(1.0f / 72.0f, RLineCap.ROUND, RLineJoin.ROUND, 1.0f, null))
+
+    private fun createPlot(): Plot {
+      val random = Random(42)
+      val first = Layer.newBuilder().setViewportIndex(1).setClippingAreaIndex(1)
+      for (i in 0 until CIRCLE_COUNT) {
+        first.addFigure(createCircle(random, fillIndex = 0))
+      }
+      first.addFigure(createCircle(random, fillIndex = 1))
+      first.addFigure(Figure.newBuilder().setPolyline(PolylineFigure.newBuilder().setPolyline(createPolyline(random))))
+      for (i in 0 until CIRCLE_COUNT) {
+        first.addFigure(createCircle(random, fillIndex = 0))
+      }
+      val path = PathFigure.newBuilder().setWinding(true).setFillIndex(1)
+        .addSubPath(createPolyline(random))
+        .addSubPath(createPolyline(random))
+      val polygon = PolygonFigure.newBuilder().setPolyline(createPolyline(random)).setFillIndex(1)
+      val second = Layer.newBuilder()
+        .addFigure(Figure.newBuilder().setPath(path))
+        .addFigure(Figure.newBuilder().setPolygon(polygon))
+      val display = Viewport.newBuilder().setFree(FreeViewport.newBuilder())
+      val square = Viewport.newBuilder().setFixed(FixedViewport.newBuilder().setRatio(1.0f))
+      val colors = COLORS.map { color -> (color.alpha shl 24) or (color.blue shl 16) or (color.green shl 8) or color.red }
+      val stroke = Stroke.newBuilder().setWidth(STROKES[0].width).setCap(RLineCap.ROUND.ordinal).setJoin(RLineJoin.ROUND.ordinal)
+        .setMiterLimit(1.0f)
+      return Plot.newBuilder()
+        .addAllColor(colors)
+        .addStroke(stroke)
+        .addViewport(display)
+        .addViewport(square)
+        .addLayer(first)
+        .addLayer(second)
+        .build()
+    }
+
+    private fun createCircle(random: Random, fillIndex: Int): Figure.Builder {
+      val circle = CircleFigure.newBuilder().setCenter(createPoint(random)).setRadius(1 shl 16).setColorIndex(0).setFillIndex(fillIndex)
+      return Figure.newBuilder().setCircle(circle)
+    }
+
+    private fun createPolyline(random: Random): Polyline {
+      val points = List(POINT_COUNT) { createPoint(random) }
+      return Polyline.newBuilder().addAllPoint(points).setPreviewCount(points.count { it >= 0L }).build()
+    }
+
+    /**
+     * @return a point with random scales and zero offsets, every fourth point is excluded from previews
+     */
+    private fun createPoint(random: Random): Long {
+      val x = random.nextInt(8192) shl 16
+      val y = random.nextInt(8192) shl 16
+      val point = (x.toLong() shl 32) or (y.toLong() and 0xffffffffL)
+      return if (random.nextInt(4) == 0) point or (1L shl 63) else point
+    }
+  }
+}
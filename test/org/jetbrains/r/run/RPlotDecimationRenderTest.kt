@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import org.jetbrains.r.RUsefulTestCase
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import kotlin.math.abs
+import kotlin.math.hypot
+import kotlin.random.Random
+
+class RPlotDecimationRenderTest : RUsefulTestCase() {
+  fun testOpaqueCirclesDifferOnlyAtEdges() {
+    val centers = createCenters()
+    val decimated = RPlotDecimator.decimate(RFigure.Circles(centers, RADIUS, -1, -1, 0), GRID, false)
+    assertEquals(CELL_COUNT * CELL_COUNT, decimated.size)
+    val expected = render(createPerFigurePlot(centers, OPAQUE))
+    val actual = render(createPlot(centers, OPAQUE))
+    assertDifferOnlyAtEdges(expected, actual)
+  }
+
+  fun testPreviewKeepsDrawnCirclesOfBins() {
+    // Note: the last circle of each cluster is hidden in a preview, so the one before it must represent the cluster
+    val centers = createCenters().also { centers ->
+      for (index in centers.size - CELL_COUNT * CELL_COUNT until centers.size) {
+        centers[index] = centers[index] or BIT_63
+      }
+    }
+    val decimated = RPlotDecimator.decimate(RFigure.Circles(centers, RADIUS, -1, -1, 0), GRID, true)
+    assertEquals(CELL_COUNT * CELL_COUNT, decimated.size)
+    assertTrue(decimated.all { it and BIT_63 == 0L })
+    val expected = render(createPerFigurePlot(centers, OPAQUE), isPreview = true)
+    val actual = render(createPlot(centers, OPAQUE), isPreview = true)
+    assertDifferOnlyAtEdges(expected, actual)
+  }
+
+  fun testTranslucentCirclesAreNotDecimated() {
+    val centers = createCenters()
+    val expected = render(createPerFigurePlot(centers, TRANSLUCENT))
+    val actual = render(createPlot(centers, TRANSLUCENT))
+    for (y in 0 until SIZE) {
+      for (x in 0 until SIZE) {
+        assertEquals("Pixel ($x, $y)", expected.getRGB(x, y), actual.getRGB(x, y))
+      }
+    }
+  }
+
+  private fun assertDifferOnlyAtEdges(expected: BufferedImage, actual: BufferedImage) {
+    for (y in 0 until SIZE) {
+      for (x in 0 until SIZE) {
+        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+          val distance = getDistanceToNearestCell(x + 0.5f, y + 0.5f)
+          assertTrue("Pixel ($x, $y) differs at distance $distance", abs(distance - RADIUS_PIXELS) <= EDGE_WIDTH)
+        }
+      }
+    }
+  }
+
+  private fun render(plot: RPlot, isPreview: Boolean = false): BufferedImage {
+    return RPlotUtil.createImage(plot, PARAMETERS, darkMode = false, isPreview = isPreview)
+  }
+
+  private fun createPlot(centers: LongArray, color: Color): RPlot {
+    return createPlot(listOf(RFigure.Circles(centers, RADIUS, -1, -1, 0)), color)
+  }
+
+  private fun createPerFigurePlot(centers: LongArray, color: Color): RPlot {
+    return createPlot(centers.map { RFigure.Circle(it, RADIUS, -1, -1, 0) }, color)
+  }
+
+  private fun createPlot(figures: List<RFigure>, color: Color): RPlot {
+    val layer = RLayer(0, 0, figures, false)
+    val viewports = listOf(RViewport.Free(0L, 0L, 0))
+    return RPlot(0, emptyList(), listOf(color), emptyList(), viewports, listOf(layer), figures.size, figures.size, null)
+  }
+
+  /**
+   * Clusters of circles arranged in a grid of cells.
+   * The circles of a cluster are slightly shifted from each other but their centers are within the same pixel
+   */
+  private fun createCenters(): LongArray {
+    val random = Random(42)
+    return LongArray(CELL_COUNT * CELL_COUNT * CLUSTER_SIZE) { index ->
+      val cell = index % (CELL_COUNT * CELL_COUNT)
+      val x = getCellCenter(cell % CELL_COUNT) + random.nextFloat() * 0.8f - 0.4f
+      val y = getCellCenter(cell / CELL_COUNT) + random.nextFloat() * 0.8f - 0.4f
+      pack(toScale(x), toScale(y))
+    }
+  }
+
+  private fun getDistanceToNearestCell(x: Float, y: Float): Float {
+    val column = ((x - CELL_MARGIN) / CELL_SIZE).toInt().coerceIn(0, CELL_COUNT - 1)
+    val row = ((y - CELL_MARGIN) / CELL_SIZE).toInt().coerceIn(0, CELL_COUNT - 1)
+    return hypot(x - getCellCenter(column), y - getCellCenter(row))
+  }
+
+  companion object {
+    private const val SIZE = 200
+    private const val CELL_COUNT = 16
+    private const val CELL_SIZE = 12
+    private const val CELL_MARGIN = 4
+    private const val CLUSTER_SIZE = 16
+    private const val EDGE_WIDTH = 2.0f
+    private const val BIT_63 = 1L shl 63
+
+    // Note: a radius of 123 scale units is 3 pixels of a 200-pixel viewport
+    private const val RADIUS = 123 shl 16
+    private const val RADIUS_PIXELS = 123.0f / 8192.0f * SIZE
+
+    private val OPAQUE = Color(0, 0, 255)
+    private val TRANSLUCENT = Color(0, 0, 255, 128)
+
+    private val PARAMETERS = RGraphicsUtils.ScreenParameters(Dimension(SIZE, SIZE), 72)
+    private val GRID = RPlotDecimator.PixelGrid(0.0f, 0.0f, SIZE.toFloat(), SIZE.toFloat(), 72, 1)
+
+    /**
+     * @return the center of the pixel in the middle of a cell
+     */
+    private fun getCellCenter(index: Int): Float {
+      return CELL_MARGIN + index * CELL_SIZE + CELL_SIZE / 2 + 0.5f
+    }
+
+    private fun toScale(pixel: Float): Int {
+      return (pixel / SIZE * 8192.0f).toInt()
+    }
+
+    private fun pack(xScale: Int, yScale: Int): Long {
+      return ((xScale shl 16).toLong() shl 32) or ((yScale shl 16).toLong() and 0xffffffffL)
+    }
+  }
+}
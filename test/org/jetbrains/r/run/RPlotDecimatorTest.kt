@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.graphics.RFigure
+import org.jetbrains.r.run.graphics.RPlotDecimator
+import org.jetbrains.r.run.graphics.RPolyline
+
+class RPlotDecimatorTest : TestCase() {
+  fun testPixelGrid() {
+    val grid = RPlotDecimator.PixelGrid(10.5f, 0.0f, 8192.0f, 1024.0f, 72, 2)
+    assertEquals(21, grid.getColumn(pack(0, 0)))
+    assertEquals(2 * 100 + 21, grid.getColumn(pack(100, 0)))
+    assertEquals(2 * 128, grid.getRow(pack(0, 1024)))
+    // Note: an offset of 1024 is an inch
+    assertEquals(2 * 72 + 21, grid.getColumn(pack(0, 0, xOffset = 1024)))
+  }
+
+  fun testMinMaxPerColumn() {
+    // 8 points per pixel column, y goes up and down within each column
+    val ys = intArrayOf(0, 5, -3, 2, 7, 1, -6, 4)
+    val points = LongArray(4096) { i -> pack(i, ys[i % 8] + (i / 8)) }
+    val polyline = RPolyline(points, points.size)
+    val grid = RPlotDecimator.PixelGrid(0.0f, 0.0f, 1024.0f, 8192.0f, 72, 1)
+    val decimated = RPlotDecimator.decimate(polyline, grid, false)
+    assertEquals(512 * 4, decimated.size)
+    for (column in 0 until 512) {
+      val expected = listOf(8 * column, 8 * column + 4, 8 * column + 6, 8 * column + 7).map { points[it] }
+      assertEquals(expected, decimated.points.slice(4 * column until 4 * column + 4))
+    }
+    assertSame(decimated, RPlotDecimator.decimate(polyline, grid.copy(), false))
+    assertSame(polyline, RPlotDecimator.decimate(polyline, grid.copy(width = 8192.0f), false))
+  }
+
+  fun testPolylineColumnsAreAlignedToPixels() {
+    val points = LongArray(4096) { i -> pack(i, 0) }
+    val polyline = RPolyline(points, points.size)
+    // Note: the viewport starts in the middle of a pixel, so the first column has 4 points instead of 8
+    val decimated = RPlotDecimator.decimate(polyline, RPlotDecimator.PixelGrid(0.5f, 0.0f, 1024.0f, 1024.0f, 72, 1), false)
+    val expected = listOf(0, 3) + (4 until 4092 step 8).flatMap { listOf(it, it + 7) } + listOf(4092, 4095)
+    assertEquals(expected.map { points[it] }, decimated.points.toList())
+  }
+
+  fun testDensityBinsKeepLastCircle() {
+    val centers = LongArray(4096) { i -> pack(i % 16, i / 1024 * 16) }
+    val circles = RFigure.Circles(centers, 1, 0, 0, 0)
+    val grid = RPlotDecimator.PixelGrid(0.0f, 0.0f, 512.0f, 512.0f, 72, 1)
+    val decimated = RPlotDecimator.decimate(circles, grid, false)
+    assertEquals(listOf(pack(15, 0), pack(15, 16), pack(15, 32), pack(15, 48)), decimated.toList())
+    assertSame(decimated, RPlotDecimator.decimate(circles, grid.copy(), false))
+  }
+
+  fun testDensityBinsAreAlignedToPixels() {
+    val centers = LongArray(4096) { i -> pack(i, 0) }
+    val circles = RFigure.Circles(centers, 1, 0, 0, 0)
+    val decimated = RPlotDecimator.decimate(circles, RPlotDecimator.PixelGrid(0.5f, 0.0f, 1024.0f, 1024.0f, 72, 1), false)
+    val expected = listOf(3) + (11 until 4095 step 8) + listOf(4095)
+    assertEquals(expected.map { centers[it] }, decimated.toList())
+  }
+
+  fun testDifferentOffsetsAreBinnedByPixels() {
+    // Note: each pair of points has the same scales but the offset moves every second point an inch down
+    val centers = LongArray(4096) { i -> pack(i / 2, 0, yOffset = (i % 2) * 1024) }
+    val circles = RFigure.Circles(centers, 1, 0, 0, 0)
+    val decimated = RPlotDecimator.decimate(circles, RPlotDecimator.PixelGrid(0.0f, 0.0f, 8192.0f, 8192.0f, 72, 1), false)
+    assertSame(centers, decimated)
+  }
+
+  fun testPreviewKeepsExtremesOfDrawnPoints() {
+    // Note: the lowest and the highest points of each column are hidden in a preview
+    val ys = intArrayOf(0, 5, -3, 2, 7, 1, -6, 4)
+    val points = LongArray(4096) { i -> pack(i, ys[i % 8] + 16).let { if (i % 8 == 4 || i % 8 == 6) it or BIT_63 else it } }
+    val polyline = RPolyline(points, points.count { it and BIT_63 == 0L })
+    val grid = RPlotDecimator.PixelGrid(0.0f, 0.0f, 1024.0f, 8192.0f, 72, 1)
+    val preview = RPlotDecimator.decimate(polyline, grid, true)
+    assertSame(preview, RPlotDecimator.decimate(polyline, grid, true))
+    assertEquals(preview.size, preview.previewCount)
+    for (column in 0 until 512) {
+      val expected = listOf(8 * column, 8 * column + 1, 8 * column + 2, 8 * column + 7).map { points[it] }
+      assertEquals(expected, preview.points.slice(4 * column until 4 * column + 4))
+    }
+    val full = RPlotDecimator.decimate(polyline, grid, false)
+    assertNotSame(preview, full)
+    assertTrue(full.points.any { it and BIT_63 != 0L })
+  }
+
+  fun testPreviewBinsKeepLastDrawnCircle() {
+    // Note: the last circle of each bin is hidden in a preview
+    val centers = LongArray(4096) { i -> pack(i % 16, i / 1024 * 16).let { if (i % 1024 == 1023) it or BIT_63 else it } }
+    val circles = RFigure.Circles(centers, 1, 0, 0, 0)
+    val grid = RPlotDecimator.PixelGrid(0.0f, 0.0f, 512.0f, 512.0f, 72, 1)
+    val preview = RPlotDecimator.decimate(circles, grid, true)
+    assertEquals(listOf(1022, 2046, 3070, 4094).map { centers[it] }, preview.toList())
+    assertEquals(listOf(1023, 2047, 3071, 4095).map { centers[it] }, RPlotDecimator.decimate(circles, grid, false).toList())
+  }
+
+  companion object {
+    private const val BIT_63 = 1L shl 63
+
+    private fun pack(xScale: Int, yScale: Int, xOffset: Int = 0, yOffset: Int = 0): Long {
+      val x = ((xScale and 0x7fff) shl 16) or (xOffset and 0xffff)
+      val y = ((yScale and 0x7fff) shl 16) or (yOffset and 0xffff)
+      return (x.toLong() shl 32) or (y.toLong() and 0xffffffffL)
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import com.intellij.openapi.util.io.FileUtil
+import org.jetbrains.r.RUsefulTestCase
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import java.util.*
+import javax.imageio.ImageIO
+
+class RPlotExporterTest : RUsefulTestCase() {
+  fun testPolylineIsNotDecimated() {
+    val points = LongArray(POINT_COUNT) { i -> pack(i, i % 2 * 100) }
+    val svg = export(RFigure.Polyline(RPolyline(points, points.size), 0, 0))
+    val path = svg.lines().single { it.startsWith("<path") }
+    assertEquals(POINT_COUNT - 1, path.count { it == 'L' })
+  }
+
+  fun testCirclesAreNotDecimated() {
+    val centers = LongArray(POINT_COUNT) { pack(4096, 4096) }
+    val svg = export(RFigure.Circles(centers, 1 shl 16, -1, -1, 0))
+    assertEquals(POINT_COUNT, svg.lines().count { it.startsWith("<path") })
+  }
+
+  fun testRasterResolutionIsFixed() {
+    val image = BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB)
+    val svg = export(RFigure.Raster(image, pack(0, 0), pack(4096, 4096), 0.0f, false))
+    val element = svg.lines().single { it.startsWith("<image") }
+    assertTrue(element.contains(" width=\"50\" height=\"50\""))
+    val png = Base64.getDecoder().decode(element.substringAfter("base64,").substringBefore("\""))
+    val embedded = ImageIO.read(png.inputStream())
+    assertEquals(50 * RVectorPlotter.RASTER_SCALE, embedded.width)
+    assertEquals(50 * RVectorPlotter.RASTER_SCALE, embedded.height)
+  }
+
+  private fun export(figure: RFigure): String {
+    val layer = RLayer(0, 0, listOf(figure), false)
+    val plot = RPlot(0, emptyList(), listOf(Color.BLACK), STROKES, listOf(RViewport.Free(0L, 0L, 0)), listOf(layer), 1, 1, null)
+    val file = FileUtil.createTempFile("plot", ".svg", true)
+    RPlotExporter.export(plot, PARAMETERS, RPlotExporter.Format.SVG, file)
+    return file.readText()
+  }
+
+  companion object {
+    private const val POINT_COUNT = 4096
+
+    private val PARAMETERS = RGraphicsUtils.ScreenParameters(Dimension(100, 100), 72)
+    private val STROKES = listOf(RStroke(1.0f / 72.0f, RLineCap.ROUND, RLineJoin.ROUND, 1.0f, null))
+
+    private fun pack(xScale: Int, yScale: Int): Long {
+      return ((xScale shl 16).toLong() shl 32) or ((yScale shl 16).toLong() and 0xffffffffL)
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.graphics.*
+
+class RPlotLayerSplitTest : TestCase() {
+  fun testEqualLayersAreSplitEvenly() {
+    val layers = List(10) { createLayer(100) }
+    val groups = RPlotUtil.splitLayers(layers, 4, isPreview = false)
+    assertEquals(listOf(3, 3, 2, 2), groups.map { it.size })
+    assertEquals(layers, groups.flatten())
+  }
+
+  fun testHeavyLayerDoesNotStarveOthers() {
+    val layers = listOf(createLayer(10000)) + List(6) { createLayer(100) }
+    val groups = RPlotUtil.splitLayers(layers, 3, isPreview = false)
+    assertEquals(3, groups.size)
+    assertEquals(1, groups.first().size)
+    assertEquals(layers, groups.flatten())
+  }
+
+  fun testFewerLayersThanGroups() {
+    val layers = List(2) { createLayer(100) }
+    val groups = RPlotUtil.splitLayers(layers, 8, isPreview = false)
+    assertEquals(listOf(1, 1), groups.map { it.size })
+  }
+
+  companion object {
+    private fun createLayer(pointCount: Int): RLayer {
+      val polyline = RPolyline(LongArray(pointCount), pointCount)
+      return RLayer(0, 0, listOf(RFigure.Polyline(polyline, 0, 0)), false)
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import org.jetbrains.r.RUsefulTestCase
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import java.util.concurrent.Executors
+import kotlin.math.abs
+
+class RPlotParallelReplayTest : RUsefulTestCase() {
+  private val executor = Executors.newFixedThreadPool(3)
+
+  override fun tearDown() {
+    try {
+      executor.shutdownNow()
+    } finally {
+      super.tearDown()
+    }
+  }
+
+  fun testCompositeEqualsSequentialReplay() {
+    val plot = createFacetedPlot()
+    val expected = createImage()
+    RPlotUtil.replayTile(expected, plot, PARAMETERS, darkMode = false, isPreview = false, tile = null)
+    for (groupCount in listOf(2, 4, 16)) {
+      val actual = createImage()
+      RPlotUtil.replayLayersInParallel(actual, plot, PARAMETERS, darkMode = false, isPreview = false, executor = executor,
+                                       groupCount = groupCount)
+      assertSameImages(expected, actual, groupCount)
+    }
+  }
+
+  private fun assertSameImages(expected: BufferedImage, actual: BufferedImage, groupCount: Int) {
+    for (y in 0 until HEIGHT) {
+      for (x in 0 until WIDTH) {
+        val expectedColor = Color(expected.getRGB(x, y), true)
+        val actualColor = Color(actual.getRGB(x, y), true)
+        // Note: blending of a buffer might round the channels of semi-transparent pixels differently
+        val isSame = abs(expectedColor.red - actualColor.red) <= TOLERANCE && abs(expectedColor.green - actualColor.green) <= TOLERANCE &&
+                     abs(expectedColor.blue - actualColor.blue) <= TOLERANCE && abs(expectedColor.alpha - actualColor.alpha) <= TOLERANCE
+        assertTrue("Pixel ($x, $y) differs for $groupCount groups: $expectedColor != $actualColor", isSame)
+      }
+    }
+  }
+
+  private fun createImage(): BufferedImage {
+    return BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB)
+  }
+
+  /**
+   * A grid of panels each of which is a viewport with a layer of its own (like produced by `facet_wrap`)
+   * and a final layer on the whole display which crosses all the panels
+   */
+  private fun createFacetedPlot(): RPlot {
+    val viewports = mutableListOf<RViewport>(RViewport.Free(0L, 0L, 0))
+    val layers = mutableListOf<RLayer>()
+    for (row in 0 until ROW_COUNT) {
+      for (column in 0 until COLUMN_COUNT) {
+        val from = pack(column * 8192 / COLUMN_COUNT + MARGIN, row * 8192 / ROW_COUNT + MARGIN)
+        val to = pack((column + 1) * 8192 / COLUMN_COUNT - MARGIN, (row + 1) * 8192 / ROW_COUNT - MARGIN)
+        viewports.add(RViewport.Free(from, to, 0))
+        val index = viewports.lastIndex
+        val points = LongArray(100) { i -> pack(i * 8192 / 99, (i * i * 37) % 8192) }
+        val centers = LongArray(50) { i -> pack((i * 613) % 8192, (i * 997) % 8192) }
+        val figures = listOf(
+          RFigure.Rectangle(pack(0, 0), pack(8192 - 1, 8192 - 1), 0, 0, 1),
+          RFigure.Polyline(RPolyline(points, points.size), 0, 2),
+          RFigure.Circles(centers, 200 shl 16, 0, 0, 3),
+          // Note: this line crosses the borders of the panel, so it's clipped
+          RFigure.Line(pack(-2048, 4096), pack(8192 + 2048, 4096), 0, 2)
+        )
+        layers.add(RLayer(index, index, figures, false))
+      }
+    }
+    val diagonal = RFigure.Line(pack(0, 0), pack(8192 - 1, 8192 - 1), 0, 2)
+    layers.add(RLayer(0, 0, listOf(diagonal), false))
+    return RPlot(0, emptyList(), COLORS, STROKES, viewports, layers, 0, 0, null)
+  }
+
+  companion object {
+    private const val WIDTH = 300
+    private const val HEIGHT = 200
+    private const val ROW_COUNT = 3
+    private const val COLUMN_COUNT = 4
+    private const val MARGIN = 100
+    private const val TOLERANCE = 2
+
+    private val PARAMETERS = RGraphicsUtils.ScreenParameters(Dimension(WIDTH, HEIGHT), 72)
+    private val COLORS = listOf(Color.BLACK, Color(230, 230, 230), Color(0, 0, 255, 160), Color(255, 0, 0, 100))
+    private val STROKES = listOf(RStroke(2.0f / 72.0f, RLineCap.ROUND, RLineJoin.ROUND, 1.0f, null))
+
+    private fun pack(xScale: Int, yScale: Int): Long {
+      val x = (xScale and 0x7fff) shl 16
+      val y = (yScale and 0x7fff) shl 16
+      return (x.toLong() shl 32) or (y.toLong() and 0xffffffffL)
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import com.intellij.util.ref.GCUtil
+import junit.framework.TestCase
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.image.BufferedImage
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+class RPlotRenderServiceTest : TestCase() {
+  private val rendered = mutableListOf<RGraphicsUtils.ScreenParameters>()
+
+  private val service = RPlotRenderService({ 2 * IMAGE_SIZE }, Executor { it.run() }) { _, parameters, _, _ ->
+    rendered.add(parameters)
+    BufferedImage(parameters.width, parameters.height, BufferedImage.TYPE_INT_ARGB)
+  }
+
+  fun testCachedImageIsReused() {
+    val plot = createPlot()
+    val first = service.render(plot, SMALL, darkMode = false, isPreview = false).blockingGet(1, TimeUnit.SECONDS)
+    val second = service.render(plot, SMALL, darkMode = false, isPreview = false).blockingGet(1, TimeUnit.SECONDS)
+    assertSame(first, second)
+    assertSame(first, service.getCached(plot, SMALL, darkMode = false, isPreview = false))
+    assertEquals(listOf(SMALL), rendered)
+  }
+
+  fun testKeyIncludesParameters() {
+    val plot = createPlot()
+    service.render(plot, SMALL, darkMode = false, isPreview = false)
+    service.render(plot, SMALL, darkMode = true, isPreview = false)
+    service.render(plot, SMALL, darkMode = false, isPreview = true)
+    service.render(createPlot(), SMALL, darkMode = false, isPreview = false)
+    assertEquals(4, rendered.size)
+  }
+
+  fun testImagesOfCollectedPlotsAreDropped() {
+    service.render(createPlot(), SMALL, darkMode = false, isPreview = false)
+    assertEquals(IMAGE_SIZE, service.totalSize)
+    GCUtil.tryGcSoftlyReachableObjects()
+    val plot = createPlot()
+    service.render(plot, SMALL, darkMode = false, isPreview = false)
+    assertEquals(IMAGE_SIZE, service.totalSize)
+  }
+
+  fun testEvictsLeastRecentlyUsed() {
+    val first = createPlot()
+    val second = createPlot()
+    val third = createPlot()
+    service.render(first, SMALL, darkMode = false, isPreview = false)
+    service.render(second, SMALL, darkMode = false, isPreview = false)
+    service.getCached(first, SMALL, darkMode = false, isPreview = false)
+    service.render(third, SMALL, darkMode = false, isPreview = false)
+    assertNotNull(service.getCached(first, SMALL, darkMode = false, isPreview = false))
+    assertNull(service.getCached(second, SMALL, darkMode = false, isPreview = false))
+    assertEquals(2 * IMAGE_SIZE, service.totalSize)
+  }
+
+  companion object {
+    private val SMALL = RGraphicsUtils.ScreenParameters(Dimension(10, 10), 72)
+    private const val IMAGE_SIZE = 10L * 10L * 4L
+
+    private fun createPlot(): RPlot {
+      return RPlot(1, emptyList(), listOf(Color.BLACK), emptyList(), emptyList(), emptyList(), 0, 0, null)
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import com.intellij.openapi.util.io.FileUtil
+import junit.framework.TestCase
+import org.jetbrains.r.rinterop.*
+import org.jetbrains.r.run.graphics.RPlotStore
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executor
+import kotlin.random.Random
+
+class RPlotStoreTest : TestCase() {
+  private lateinit var root: Path
+  private lateinit var directory: File
+
+  override fun setUp() {
+    super.setUp()
+    root = FileUtil.createTempDirectory("plot-store", null).toPath()
+    directory = FileUtil.createTempDirectory("chunk", null)
+  }
+
+  override fun tearDown() {
+    try {
+      FileUtil.delete(root.toFile())
+      FileUtil.delete(directory)
+    } finally {
+      super.tearDown()
+    }
+  }
+
+  fun testReadWrite() {
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    val plot = createPlot(1)
+    store.put(directory, 1, plot)
+    assertEquals(plot, store.get(directory, 1))
+    assertNull(store.get(directory, 2))
+    assertNull(store.get(File("/other"), 1))
+  }
+
+  fun testIdenticalPlotsAreStoredOnce() {
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    store.put(directory, 1, createPlot(1))
+    val size = store.size
+    store.put(directory, 2, createPlot(1))
+    store.put(File("/other"), 1, createPlot(1))
+    assertEquals(size, store.size)
+    assertEquals(createPlot(1), store.get(directory, 2))
+  }
+
+  fun testReopen() {
+    RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }.apply {
+      put(directory, 1, createPlot(1))
+      put(directory, 2, createPlot(2))
+      remove(directory, 1)
+    }
+    val reopened = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    assertNull(reopened.get(directory, 1))
+    assertEquals(createPlot(2), reopened.get(directory, 2))
+  }
+
+  fun testEvictsLeastRecentlyUsed() {
+    val probe = RPlotStore(root.resolve("probe"), DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    probe.put(directory, 1, createPlot(1))
+    val blobSize = probe.size
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { 3 * blobSize + blobSize / 2 }
+    for (seed in 1..3) {
+      store.put(directory, seed, createPlot(seed))
+    }
+    store.get(directory, 1)
+    store.put(directory, 4, createPlot(4))
+    assertNotNull(store.get(directory, 1))
+    assertNull(store.get(directory, 2))
+    assertNotNull(store.get(directory, 4))
+    assertTrue(store.size <= 3 * blobSize)
+  }
+
+  fun testCompactionRunsInBackground() {
+    val probe = RPlotStore(root.resolve("probe"), DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    probe.put(directory, 1, createPlot(1))
+    val blobSize = probe.size
+    val tasks = mutableListOf<Runnable>()
+    val store = RPlotStore(root, Executor { tasks.add(it) }) { 2 * blobSize + blobSize / 2 }
+    for (seed in 1..4) {
+      store.put(directory, seed, createPlot(seed))
+    }
+    assertEquals(1, tasks.size)
+    for (seed in 1..4) {
+      assertEquals(createPlot(seed), store.get(directory, seed))
+    }
+    tasks.single().run()
+    assertNull(store.get(directory, 1))
+    assertEquals(createPlot(4), store.get(directory, 4))
+    assertTrue(store.size <= 2 * blobSize)
+  }
+
+  fun testReferencesAreCompacted() {
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    for (number in 1..3000) {
+      store.put(directory, number % 2, createPlot(1))
+    }
+    store.remove(directory, 0)
+    val records = Files.readAllLines(root.resolve("plots.refs"))
+    assertTrue("Too many reference records: ${records.size}", records.size <= 1024)
+    val reopened = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    assertNull(reopened.get(directory, 0))
+    assertEquals(createPlot(1), reopened.get(directory, 1))
+  }
+
+  fun testRemoveDirectory() {
+    val nested = File(directory, "nested").apply { mkdirs() }
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    store.put(directory, 1, createPlot(1))
+    store.put(nested, 1, createPlot(2))
+    store.put(File(directory.path + "-sibling"), 1, createPlot(3))
+    store.removeDirectory(directory)
+    assertNull(store.get(directory, 1))
+    assertNull(store.get(nested, 1))
+    assertEquals(createPlot(3), store.get(File(directory.path + "-sibling"), 1))
+    val reopened = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    assertNull(reopened.get(directory, 1))
+    assertNull(reopened.get(nested, 1))
+  }
+
+  fun testReferencesOfDeletedDirectoryAreDroppedOnReopen() {
+    RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }.put(directory, 1, createPlot(1))
+    FileUtil.delete(directory)
+    directory.mkdirs()
+    val reopened = RPlotStore(root, DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    assertNull(reopened.get(directory, 1))
+  }
+
+  fun testReferencesOfDeletedDirectoryDoNotPinBlobs() {
+    val probe = RPlotStore(root.resolve("probe"), DIRECT_EXECUTOR) { Long.MAX_VALUE }
+    probe.put(directory, 1, createPlot(1))
+    val blobSize = probe.size
+    val deleted = FileUtil.createTempDirectory("deleted-chunk", null)
+    val store = RPlotStore(root, DIRECT_EXECUTOR) { 3 * blobSize + blobSize / 2 }
+    store.put(deleted, 1, createPlot(1))
+    store.put(directory, 2, createPlot(2))
+    store.put(directory, 3, createPlot(3))
+    store.get(deleted, 1)
+    FileUtil.delete(deleted)
+    store.put(directory, 4, createPlot(4))
+    assertEquals(createPlot(3), store.get(directory, 3))
+    assertEquals(createPlot(4), store.get(directory, 4))
+    deleted.mkdirs()
+    try {
+      assertNull(store.get(deleted, 1))
+    } finally {
+      FileUtil.delete(deleted)
+    }
+  }
+
+  companion object {
+    private val DIRECT_EXECUTOR = Executor { it.run() }
+
+    private fun createPlot(seed: Int): Plot {
+      val random = Random(seed)
+      val polyline = Polyline.newBuilder().addAllPoint(List(1000) { random.nextLong() })
+      val figure = Figure.newBuilder().setPolyline(PolylineFigure.newBuilder().setPolyline(polyline))
+      return Plot.newBuilder().addLayer(Layer.newBuilder().addFigure(figure)).setTotalComplexity(seed).build()
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.jetbrains.r.run
+
+import junit.framework.TestCase
+import org.jetbrains.r.run.graphics.*
+import java.awt.Color
+import java.awt.Dimension
+import java.awt.geom.Rectangle2D
+import java.io.ByteArrayOutputStream
+import java.io.StringWriter
+import javax.xml.parsers.DocumentBuilderFactory
+
+class RVectorPlotterTest : TestCase() {
+  fun testSvgIsWellFormed() {
+    val writer = StringWriter()
+    val provider = RSvgPlotterProvider(PARAMETERS, writer)
+    provider.create(FONTS, COLORS, STROKES).draw()
+    provider.finish()
+    val svg = writer.toString()
+    val document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(svg.byteInputStream())
+    assertEquals("svg", document.documentElement.tagName)
+    assertEquals(1, document.getElementsByTagName("clipPath").length)
+    assertEquals(3, document.getElementsByTagName("path").length)
+    assertEquals("a &lt; b", svg.substringAfter("xml:space=\"preserve\">").substringBefore("</text>"))
+  }
+
+  fun testPdfCrossReferencesAreValid() {
+    val output = ByteArrayOutputStream()
+    val provider = RPdfPlotterProvider(PARAMETERS)
+    provider.create(FONTS, COLORS, STROKES).draw()
+    provider.finish(output)
+    val pdf = String(output.toByteArray(), Charsets.ISO_8859_1)
+    assertTrue(pdf.startsWith("%PDF-1.4"))
+    assertTrue(pdf.endsWith("%%EOF\n"))
+    val xrefPosition = pdf.substringAfter("startxref\n").substringBefore("\n").toInt()
+    assertTrue(pdf.startsWith("xref", xrefPosition))
+    val entries = pdf.substring(xrefPosition).lines().drop(3).takeWhile { it.endsWith(" n ") }
+    assertTrue(entries.isNotEmpty())
+    for ((index, entry) in entries.withIndex()) {
+      val offset = entry.substring(0, 10).toInt()
+      assertTrue(pdf.startsWith("${index + 1} 0 obj", offset))
+    }
+  }
+
+  companion object {
+    private val PARAMETERS = RGraphicsUtils.ScreenParameters(Dimension(200, 100), 72)
+    private val FONTS = listOf(RFont("Serif", 12.0f, RFontStyle.BOLD))
+    private val COLORS = listOf(Color.BLACK, Color(255, 0, 0, 128))
+    private val STROKES = listOf(RStroke(1.0f, RLineCap.ROUND, RLineJoin.MITER, 10.0f, floatArrayOf(2.0f, 1.0f)))
+
+    private fun RPlotter.draw() {
+      setClippingArea(Rectangle2D.Float(0.0f, 0.0f, 200.0f, 100.0f))
+      drawRectangle(10.0f, 10.0f, 50.0f, 20.0f, 0, 0, 1)
+      drawCircle(100.0f, 50.0f, 5.0f, -1, -1, 1)
+      drawText("a < b", 20.0f, 80.0f, 90.0f, 0.5f, 0, 0)
+    }
+  }
+}